@@ -1,12 +1,10 @@
 package hudson.remoting;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.Objects;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.jenkinsci.remoting.util.AnonymousClassWarnings;
 
 /**
  * {@link CommandTransport} that works with {@code byte[]} instead of command object.
@@ -20,6 +18,10 @@ import org.jenkinsci.remoting.util.AnonymousClassWarnings;
 public abstract class AbstractByteArrayCommandTransport extends CommandTransport {
     protected Channel channel;
 
+    private final ClassDescriptorTable descriptors = new ClassDescriptorTable();
+
+    private final CommandCompressor compressor = new CommandCompressor();
+
     /**
      * Writes a byte[] to the transport.
      *
@@ -57,22 +59,31 @@ public abstract class AbstractByteArrayCommandTransport extends CommandTransport
     @Override
     public final void setup(final Channel channel, final CommandReceiver receiver) {
         this.channel = channel;
-        setup(new ByteArrayReceiverImpl(channel, receiver));
+        setup(new ByteArrayReceiverImpl(channel, receiver, descriptors, compressor));
     }
 
     private static class ByteArrayReceiverImpl implements ByteArrayReceiver {
         private final Channel channel;
         private final CommandReceiver receiver;
+        private final ClassDescriptorTable descriptors;
+        private final CommandCompressor compressor;
 
-        public ByteArrayReceiverImpl(Channel channel, CommandReceiver receiver) {
+        public ByteArrayReceiverImpl(
+                Channel channel,
+                CommandReceiver receiver,
+                ClassDescriptorTable descriptors,
+                CommandCompressor compressor) {
             this.channel = Objects.requireNonNull(channel);
             this.receiver = Objects.requireNonNull(receiver);
+            this.descriptors = descriptors;
+            this.compressor = compressor;
         }
 
         @Override
         public void handle(byte[] payload) {
             try {
-                Command cmd = Command.readFrom(channel, payload);
+                Command cmd = Command.readFrom(
+                        channel, descriptors, compressor, new ByteArrayInputStream(payload), payload.length);
                 receiver.handle(cmd);
             } catch (IOException | ClassNotFoundException e) {
                 LOGGER.log(Level.WARNING, "Failed to construct Command in channel " + channel.getName(), e);
@@ -87,13 +98,20 @@ public abstract class AbstractByteArrayCommandTransport extends CommandTransport
 
     @Override
     public final void write(Command cmd, boolean last) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try (ObjectOutputStream oos = AnonymousClassWarnings.checkingObjectOutputStream(baos)) {
-            cmd.writeTo(channel, oos);
-        }
-        byte[] block = baos.toByteArray();
-        channel.notifyWrite(cmd, block.length);
+        write(prepare(cmd), last);
+    }
+
+    @Override
+    final PreparedCommand prepare(Command cmd) throws IOException {
+        return PreparedBlock.serialize(channel, descriptors, compressor, cmd);
+    }
+
+    @Override
+    final void write(PreparedCommand cmd, boolean last) throws IOException {
+        byte[] block = ((PreparedBlock) cmd).toByteArray();
+        channel.notifyWrite(cmd.command, block.length);
         writeBlock(channel, block);
+        descriptors.commit(cmd.definitions);
     }
 
     private static final Logger LOGGER = Logger.getLogger(AbstractByteArrayCommandTransport.class.getName());
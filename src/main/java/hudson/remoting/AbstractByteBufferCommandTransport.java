@@ -23,18 +23,20 @@
  */
 package hudson.remoting;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.jenkinsci.remoting.util.AnonymousClassWarnings;
 import org.jenkinsci.remoting.util.ByteBufferQueue;
-import org.jenkinsci.remoting.util.ByteBufferQueueOutputStream;
 import org.jenkinsci.remoting.util.FastByteBufferQueueInputStream;
 import org.jenkinsci.remoting.util.IOUtils;
 
@@ -65,6 +67,10 @@ public abstract class AbstractByteBufferCommandTransport extends CommandTranspor
      * The {@link #readState} when a whole command has been read.
      */
     private static final int READ_STATE_COMMAND_READY = 3;
+    /**
+     * The {@link #readState} when waiting for the rest of a {@link Heartbeats heartbeat} frame.
+     */
+    private static final int READ_STATE_HEARTBEAT = 4;
     /**
      * Our channel.
      */
@@ -116,10 +122,31 @@ public abstract class AbstractByteBufferCommandTransport extends CommandTranspor
      * the commands we get and parse them later.
      */
     private int[] readCommandSizes = new int[16];
+    /**
+     * The body of the heartbeat frame being read.
+     */
+    private final ByteBuffer readHeartbeat = ByteBuffer.allocate(Heartbeats.BODY_SIZE);
+    /**
+     * Held while writing a frame, so that heartbeats are written in between the frames of commands.
+     */
+    private final Object writeLock = new Object();
     /**
      * The queue used to stage output.
      */
     private final ByteBufferQueue sendStaging = new ByteBufferQueue(transportFrameSize);
+    /**
+     * The class descriptors exchanged with the other side.
+     */
+    private final ClassDescriptorTable descriptors = new ClassDescriptorTable();
+    /**
+     * Compresses the commands sent to the other side.
+     */
+    private final CommandCompressor compressor = new CommandCompressor();
+    /**
+     * Gathers the frames of small commands into fewer writes, or {@code null} if every frame is written at once.
+     */
+    @CheckForNull
+    private final Coalescer coalescer;
 
     /**
      * @deprecated Pass {@code true} to {@link #AbstractByteBufferCommandTransport(boolean)} and switch {@link #write(ByteBuffer, ByteBuffer)} to {@link #write(ByteBuffer)}.
@@ -134,10 +161,12 @@ public abstract class AbstractByteBufferCommandTransport extends CommandTranspor
             writeChunkHeader = null;
             writeChunkBody = null;
             writeChunkCombined = ByteBuffer.allocate(transportFrameSize + ChunkHeader.SIZE);
+            coalescer = COALESCE_MICROS > 0 ? new Coalescer() : null;
         } else { // deprecated
             writeChunkHeader = ByteBuffer.allocate(ChunkHeader.SIZE);
             writeChunkBody = ByteBuffer.allocate(transportFrameSize);
             writeChunkCombined = null;
+            coalescer = null;
         }
     }
 
@@ -177,7 +206,7 @@ public abstract class AbstractByteBufferCommandTransport extends CommandTranspor
                         // jump straight to state 2
                         readFrameHeader = ChunkHeader.read(data);
                         readFrameRemaining = ChunkHeader.length(readFrameHeader);
-                        readState = READ_STATE_FRAME_BODY;
+                        readState = readFrameHeader == Heartbeats.HEADER ? READ_STATE_HEARTBEAT : READ_STATE_FRAME_BODY;
                     } else {
                         // store the first byte for resume
                         readFrameHeader = data.get();
@@ -188,7 +217,7 @@ public abstract class AbstractByteBufferCommandTransport extends CommandTranspor
                     // we have one byte already
                     readFrameHeader = ChunkHeader.parse(readFrameHeader, data.get());
                     readFrameRemaining = ChunkHeader.length(readFrameHeader);
-                    readState = READ_STATE_FRAME_BODY;
+                    readState = readFrameHeader == Heartbeats.HEADER ? READ_STATE_HEARTBEAT : READ_STATE_FRAME_BODY;
                     break;
                 case READ_STATE_FRAME_BODY:
                     if (data.remaining() < readFrameRemaining) {
@@ -221,6 +250,17 @@ public abstract class AbstractByteBufferCommandTransport extends CommandTranspor
                         processCommand();
                     }
                     break;
+                case READ_STATE_HEARTBEAT:
+                    while (readHeartbeat.hasRemaining() && data.hasRemaining()) {
+                        readHeartbeat.put(data.get());
+                    }
+                    if (!readHeartbeat.hasRemaining()) {
+                        ((Buffer) readHeartbeat).flip();
+                        Heartbeats.read(channel, this, readHeartbeat);
+                        ((Buffer) readHeartbeat).clear();
+                        readState = READ_STATE_NEED_HEADER;
+                    }
+                    break;
                 default:
                     throw new IllegalStateException("Unknown readState = " + readState);
             }
@@ -231,7 +271,7 @@ public abstract class AbstractByteBufferCommandTransport extends CommandTranspor
         try {
             FastByteBufferQueueInputStream is = new FastByteBufferQueueInputStream(receiveQueue, readCommandSizes[0]);
             try {
-                Command cmd = Command.readFrom(channel, is, readCommandSizes[0]);
+                Command cmd = Command.readFrom(channel, descriptors, compressor, is, readCommandSizes[0]);
                 receiver.handle(cmd);
             } catch (IOException | ClassNotFoundException e) {
                 LOGGER.log(Level.WARNING, "Failed to construct Command in channel " + channel.getName(), e);
@@ -317,12 +357,57 @@ public abstract class AbstractByteBufferCommandTransport extends CommandTranspor
      */
     @Override
     public final void write(Command cmd, boolean last) throws IOException {
-        ByteBufferQueueOutputStream bqos = new ByteBufferQueueOutputStream(sendStaging);
-        try (ObjectOutputStream oos = AnonymousClassWarnings.checkingObjectOutputStream(bqos)) {
-            cmd.writeTo(channel, oos);
-        }
-        long remaining = sendStaging.remaining();
+        Map<Class<?>, Integer> definitions = serialize(cmd, sendStaging);
+        writeStaged(cmd, sendStaging, last);
+        descriptors.commit(definitions);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    final PreparedCommand prepare(Command cmd) throws IOException {
+        ByteBufferQueue staging = new ByteBufferQueue(transportFrameSize);
+        return new StagedCommand(cmd, staging, serialize(cmd, staging));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    final void write(PreparedCommand cmd, boolean last) throws IOException {
+        writeStaged(cmd.command, ((StagedCommand) cmd).staging, last);
+        descriptors.commit(cmd.definitions);
+    }
+
+    /**
+     * Serializes the command into the supplied queue.
+     *
+     * @param cmd     the command.
+     * @param staging the queue to append the serialized form to.
+     * @return the class descriptors defined by the serialized form, see {@link ClassDescriptorTable#commit(Map)}.
+     * @throws IOException if the command could not be serialized.
+     */
+    @CheckForNull
+    private Map<Class<?>, Integer> serialize(Command cmd, ByteBufferQueue staging) throws IOException {
+        return CommandTransport.serialize(channel, descriptors, compressor, cmd, staging);
+    }
+
+    /**
+     * Splits a serialized command into frames and writes them.
+     *
+     * @param cmd     the command, used for notification only.
+     * @param staging the serialized form of the command, which will be drained.
+     * @param last    whether this is the last command, after which nothing is left to coalesce with.
+     * @throws IOException if the data could not be written.
+     */
+    private void writeStaged(Command cmd, ByteBufferQueue staging, boolean last) throws IOException {
+        long remaining = staging.remaining();
         channel.notifyWrite(cmd, remaining);
+        if (coalescer != null) {
+            coalescer.write(staging, remaining, last);
+            return;
+        }
         while (remaining > 0L) {
             int frame = remaining > transportFrameSize
                     ? transportFrameSize
@@ -331,23 +416,203 @@ public abstract class AbstractByteBufferCommandTransport extends CommandTranspor
                 ((Buffer) writeChunkCombined).clear();
                 ((Buffer) writeChunkCombined).limit(frame + ChunkHeader.SIZE);
                 ChunkHeader.write(writeChunkCombined, frame, remaining > transportFrameSize);
-                sendStaging.get(writeChunkCombined);
+                staging.get(writeChunkCombined);
                 ((Buffer) writeChunkCombined).flip();
-                write(writeChunkCombined);
+                synchronized (writeLock) {
+                    write(writeChunkCombined);
+                }
             } else {
                 ((Buffer) writeChunkHeader).clear();
                 ChunkHeader.write(writeChunkHeader, frame, remaining > transportFrameSize);
                 ((Buffer) writeChunkHeader).flip();
                 ((Buffer) writeChunkBody).clear();
                 ((Buffer) writeChunkBody).limit(frame);
-                sendStaging.get(writeChunkBody);
+                staging.get(writeChunkBody);
                 ((Buffer) writeChunkBody).flip();
-                write(writeChunkHeader, writeChunkBody);
+                synchronized (writeLock) {
+                    write(writeChunkHeader, writeChunkBody);
+                }
             }
             remaining -= frame;
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    boolean supportsHeartbeats() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void writeHeartbeat(byte kind, long id) throws IOException {
+        if (writeChunkHeader == null) {
+            ByteBuffer frame = ByteBuffer.allocate(ChunkHeader.SIZE + Heartbeats.BODY_SIZE);
+            Heartbeats.write(frame, kind, id);
+            ((Buffer) frame).flip();
+            synchronized (writeLock) {
+                write(frame);
+            }
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(ChunkHeader.SIZE);
+            ChunkHeader.write(header, 0, true);
+            ((Buffer) header).flip();
+            ByteBuffer body = ByteBuffer.allocate(Heartbeats.BODY_SIZE);
+            Heartbeats.writeBody(body, kind, id);
+            ((Buffer) body).flip();
+            synchronized (writeLock) {
+                write(header, body);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void dumpDiagnostics(PrintWriter w) {
+        if (coalescer != null) {
+            coalescer.dumpDiagnostics(w);
+        }
+    }
+
+    /**
+     * Gathers the frames of the commands written within {@link #COALESCE_MICROS} of each other, up to
+     * {@link #COALESCE_BYTES}, into a single {@link #write(ByteBuffer)}, so that a burst of small commands such as
+     * pipe chunks, flushes and acks does not turn into as many tiny network writes. Unlike Nagle's algorithm, the
+     * first frame of a batch waits for no more than {@link #COALESCE_MICROS}, whatever else is in flight.
+     */
+    private final class Coalescer implements Runnable {
+        private ByteBuffer buffer =
+                ByteBuffer.allocate(Math.max(COALESCE_BYTES, transportFrameSize + ChunkHeader.SIZE));
+        /**
+         * Number of commands in {@link #buffer}.
+         */
+        private int commands;
+        /**
+         * {@link System#nanoTime()} when the first frame in {@link #buffer} was added.
+         */
+        private long since;
+        /**
+         * Writes {@link #buffer} once the delay is over, or {@code null} if {@link #buffer} is empty.
+         */
+        @CheckForNull
+        private ScheduledFuture<?> scheduled;
+
+        private long batches;
+        private long batchedCommands;
+        private long batchedBytes;
+        private long maxBatchBytes;
+        private long addedLatency;
+        private long maxAddedLatency;
+
+        synchronized void write(ByteBufferQueue staging, long remaining, boolean last) throws IOException {
+            while (remaining > 0L) {
+                int frame = remaining > transportFrameSize ? transportFrameSize : (int) remaining;
+                if (buffer.remaining() < frame + ChunkHeader.SIZE) {
+                    flush();
+                    if (buffer.capacity() < frame + ChunkHeader.SIZE) { // the frame size has been changed
+                        buffer = ByteBuffer.allocate(frame + ChunkHeader.SIZE);
+                    }
+                }
+                if (buffer.position() == 0) {
+                    since = System.nanoTime();
+                }
+                ChunkHeader.write(buffer, frame, remaining > transportFrameSize);
+                ((Buffer) buffer).limit(buffer.position() + frame);
+                staging.get(buffer);
+                ((Buffer) buffer).limit(buffer.capacity());
+                remaining -= frame;
+            }
+            commands++;
+            if (last) {
+                flush();
+            } else if (scheduled == null && buffer.position() > 0) {
+                scheduled = ChannelTimer.get().schedule(this::due, COALESCE_MICROS, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        private void flush() throws IOException {
+            if (scheduled != null) {
+                scheduled.cancel(false);
+                scheduled = null;
+            }
+            if (buffer.position() == 0) {
+                return;
+            }
+            long latency = System.nanoTime() - since;
+            batches++;
+            batchedCommands += commands;
+            batchedBytes += buffer.position();
+            maxBatchBytes = Math.max(maxBatchBytes, buffer.position());
+            addedLatency += latency;
+            maxAddedLatency = Math.max(maxAddedLatency, latency);
+            commands = 0;
+            ((Buffer) buffer).flip();
+            try {
+                synchronized (writeLock) {
+                    AbstractByteBufferCommandTransport.this.write(buffer);
+                }
+            } finally {
+                ((Buffer) buffer).clear();
+            }
+        }
+
+        /**
+         * Hands the write over to the {@link Channel#executor} once the delay is over, as it may block on the
+         * network and the timer is shared by all channels.
+         */
+        private void due() {
+            try {
+                channel.executor.execute(this);
+            } catch (RuntimeException e) {
+                // the channel is shutting down, so there is nothing left for the timer to hold up
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                synchronized (this) {
+                    scheduled = null;
+                    flush();
+                }
+            } catch (IOException e) {
+                // nobody else is going to find out, as the commands that are lost have been "written" already
+                LOGGER.log(Level.FINE, e, () -> "Failed to write coalesced commands in channel " + channel.getName());
+                terminate(e);
+            }
+        }
+
+        synchronized void dumpDiagnostics(PrintWriter w) {
+            w.printf("  Coalesced writes=%d%n", batches);
+            if (batches > 0) {
+                w.printf("  Average commands per write=%.1f%n", (double) batchedCommands / batches);
+                w.printf("  Average write size=%d bytes%n", batchedBytes / batches);
+                w.printf("  Max write size=%d bytes%n", maxBatchBytes);
+                w.printf("  Average added latency=%dus%n", TimeUnit.NANOSECONDS.toMicros(addedLatency / batches));
+                w.printf("  Max added latency=%dus%n", TimeUnit.NANOSECONDS.toMicros(maxAddedLatency));
+            }
+        }
+    }
+
+    /**
+     * A command serialized by {@link #prepare(Command)} into its own staging queue.
+     */
+    private static final class StagedCommand extends PreparedCommand {
+        private final ByteBufferQueue staging;
+
+        StagedCommand(Command command, ByteBufferQueue staging, @CheckForNull Map<Class<?>, Integer> definitions) {
+            super(command, definitions);
+            this.staging = staging;
+        }
+    }
+
     /**
      * Indicates that the endpoint has encountered a problem.
      * This tells the transport that it shouldn't expect future invocation of {@link #receive(ByteBuffer)},
@@ -358,4 +623,17 @@ public abstract class AbstractByteBufferCommandTransport extends CommandTranspor
             receiver.terminate(e);
         }
     }
+
+    /**
+     * How long in microseconds a command may wait for others to be written together with it, or 0 to write
+     * each command at once.
+     */
+    static long COALESCE_MICROS =
+            Long.getLong(AbstractByteBufferCommandTransport.class.getName() + ".coalesceMicros", 0);
+
+    /**
+     * How many bytes of commands may be written together.
+     */
+    static int COALESCE_BYTES =
+            Integer.getInteger(AbstractByteBufferCommandTransport.class.getName() + ".coalesceBytes", 65536);
 }
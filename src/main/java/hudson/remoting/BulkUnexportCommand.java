@@ -0,0 +1,93 @@
+package hudson.remoting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * {@link Command} that unexports many objects at once, sent by the side that imported them once their proxies
+ * have been garbage collected.
+ *
+ * <p>
+ * An object ID is listed once per proxy that went away, just as if an {@link UnexportCommand} had been sent
+ * for each of them. Unlike those, the places where the proxies were created are not sent along, so the other side
+ * cannot tell them when an object is unexported twice. When {@link ExportTable#EXPORT_TRACES} is on, which is when
+ * those places are of interest, {@link UnexportCommand}s are sent instead.
+ *
+ * @see Capability#supportsBulkUnexport()
+ */
+/*package*/ final class BulkUnexportCommand extends Command {
+    /**
+     * Largest number of object IDs unexported by one command.
+     */
+    /*package*/ static final int MAX_OIDS = 16384;
+
+    /**
+     * Object IDs in ascending order, repeated if the object is to be released more than once.
+     */
+    /*package*/ final int[] oids;
+
+    /*package*/ BulkUnexportCommand(int[] oids) {
+        super(false);
+        this.oids = oids;
+    }
+
+    @Override
+    protected void execute(Channel channel) {
+        channel.unexport(oids);
+    }
+
+    @Override
+    boolean writeCompact(OutputStream out) throws IOException {
+        out.write(CompactCommandCodec.BULK_UNEXPORT);
+        CompactCommandCodec.writeInt(out, oids.length);
+        // objects exported one after the other die together, so write runs of consecutive IDs
+        int last = 0;
+        int i = 0;
+        while (i < oids.length) {
+            int start = oids[i];
+            int length = 1;
+            while (i + length < oids.length && oids[i + length] == start + length) {
+                length++;
+            }
+            CompactCommandCodec.writeInt(out, start - last);
+            CompactCommandCodec.writeInt(out, length);
+            last = start + length - 1;
+            i += length;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the command written by {@link #writeCompact(OutputStream)}.
+     */
+    /*package*/ static BulkUnexportCommand readCompact(InputStream in) throws IOException {
+        int count = CompactCommandCodec.readInt(in);
+        if (count < 0 || count > MAX_OIDS) {
+            throw new StreamCorruptedException("Invalid number of object IDs " + count);
+        }
+        int[] oids = new int[count];
+        int last = 0;
+        int i = 0;
+        while (i < count) {
+            int start = last + CompactCommandCodec.readInt(in);
+            int length = CompactCommandCodec.readInt(in);
+            if (length <= 0 || length > count - i) {
+                throw new StreamCorruptedException("Invalid run of object IDs " + length);
+            }
+            for (int j = 0; j < length; j++) {
+                oids[i++] = start + j;
+            }
+            last = start + length - 1;
+        }
+        return new BulkUnexportCommand(oids);
+    }
+
+    @Override
+    public String toString() {
+        return "BulkUnexport(" + oids.length + ")";
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -49,7 +49,16 @@ public final class Capability implements Serializable {
                 | GREEDY_REMOTE_INPUTSTREAM
                 | MASK_PROXY_WRITER_2_35
                 | MASK_CHUNKED_ENCODING
-                | PROXY_EXCEPTION_FALLBACK);
+                | PROXY_EXCEPTION_FALLBACK
+                | MASK_CLASS_DESCRIPTOR_DICTIONARY
+                | MASK_COMPACT_COMMANDS
+                | MASK_COMPRESSION
+                | MASK_LEASE_RENEWAL
+                | MASK_BULK_UNEXPORT
+                | MASK_HEARTBEATS
+                | MASK_CLASS_IMAGE_CACHE
+                | MASK_ABSENT_CLASSES
+                | MASK_BULK_FETCH);
     }
 
     /**
@@ -133,6 +142,105 @@ public final class Capability implements Serializable {
         return (mask & PROXY_EXCEPTION_FALLBACK) != 0;
     }
 
+    /**
+     * Can commands sent to us refer to class descriptors sent with earlier commands?
+     *
+     * <p>
+     * In this mode, the chunked and {@code ByteBuffer} based transports remember the class descriptors
+     * of the JDK and remoting classes that went over the wire, and the stream of each subsequent command
+     * refers to them by number instead of repeating them.
+     *
+     * @since TODO
+     * @see ClassDescriptorTable
+     */
+    public boolean supportsClassDescriptorDictionary() {
+        return (mask & MASK_CLASS_DESCRIPTOR_DICTIONARY) != 0;
+    }
+
+    /**
+     * Can the small commands that remoting sends internally be sent to us in their compact binary form?
+     *
+     * @since TODO
+     * @see CompactCommandCodec
+     */
+    public boolean supportsCompactCommands() {
+        return (mask & MASK_COMPACT_COMMANDS) != 0;
+    }
+
+    /**
+     * Can commands be sent to us compressed?
+     *
+     * @since TODO
+     * @see CommandCompressor
+     */
+    public boolean supportsCompression() {
+        return (mask & MASK_COMPRESSION) != 0;
+    }
+
+    /**
+     * Do we renew the leases of the objects we import, so that objects can be exported to us on a lease?
+     *
+     * @since TODO
+     * @see RenewLeasesCommand
+     */
+    public boolean supportsLeaseRenewal() {
+        return (mask & MASK_LEASE_RENEWAL) != 0;
+    }
+
+    /**
+     * Can the objects that are no longer imported be unexported many at once?
+     *
+     * @since TODO
+     * @see BulkUnexportCommand
+     */
+    public boolean supportsBulkUnexport() {
+        return (mask & MASK_BULK_UNEXPORT) != 0;
+    }
+
+    /**
+     * Do we answer the heartbeats sent in between the frames of the chunked encoding?
+     *
+     * @since TODO
+     * @see Heartbeats
+     */
+    public boolean supportsHeartbeats() {
+        return (mask & MASK_HEARTBEATS) != 0;
+    }
+
+    /**
+     * Can we be asked for classes by {@link RemoteClassLoader.IClassLoader#fetch5(String, long[])}, and send the
+     * images of the classes that the other side already has in its {@link ClassImageCache} by checksum alone?
+     *
+     * @since TODO
+     * @see ResourceImageCached
+     */
+    public boolean supportsClassImageCache() {
+        return (mask & MASK_CLASS_IMAGE_CACHE) != 0;
+    }
+
+    /**
+     * Can the responses of {@link RemoteClassLoader.IClassLoader#fetch3(String)} tell us about the classes
+     * that the other side could not find, so that we do not ask for them again?
+     *
+     * @since TODO
+     * @see NegativeLookupCache
+     */
+    public boolean supportsAbsentClasses() {
+        return (mask & MASK_ABSENT_CLASSES) != 0;
+    }
+
+    /**
+     * Can we ask for many classes or resources in one call, as
+     * {@link RemoteClassLoader.IClassLoader#fetchAll(String[], long[])} and
+     * {@link RemoteClassLoader.IClassLoader#getResourceAll(String[])} do?
+     *
+     * @since TODO
+     * @see ClassLoadingManifest
+     */
+    public boolean supportsBulkFetch() {
+        return (mask & MASK_BULK_FETCH) != 0;
+    }
+
     // TODO: ideally preamble handling needs to be reworked in order to avoid FB suppression
     /**
      * Writes {@link #PREAMBLE} then uses {@link #write}.
@@ -297,6 +405,70 @@ public final class Capability implements Serializable {
 
     private static final long PROXY_EXCEPTION_FALLBACK = 1L << 8;
 
+    /**
+     * Supports the {@link ClassDescriptorTable} for commands.
+     *
+     * @since TODO
+     */
+    private static final long MASK_CLASS_DESCRIPTOR_DICTIONARY = 1L << 9;
+
+    /**
+     * Supports the {@link CompactCommandCodec}.
+     *
+     * @since TODO
+     */
+    private static final long MASK_COMPACT_COMMANDS = 1L << 10;
+
+    /**
+     * Supports the {@link CommandCompressor}.
+     *
+     * @since TODO
+     */
+    private static final long MASK_COMPRESSION = 1L << 11;
+
+    /**
+     * Supports the {@link RenewLeasesCommand}.
+     *
+     * @since TODO
+     */
+    private static final long MASK_LEASE_RENEWAL = 1L << 12;
+
+    /**
+     * Supports the {@link BulkUnexportCommand}.
+     *
+     * @since TODO
+     */
+    private static final long MASK_BULK_UNEXPORT = 1L << 13;
+
+    /**
+     * Supports the {@link Heartbeats}.
+     *
+     * @since TODO
+     */
+    private static final long MASK_HEARTBEATS = 1L << 14;
+
+    /**
+     * Supports {@link RemoteClassLoader.IClassLoader#fetch5(String, long[])}.
+     *
+     * @since TODO
+     */
+    private static final long MASK_CLASS_IMAGE_CACHE = 1L << 15;
+
+    /**
+     * Understands the absent classes in {@link RemoteClassLoader.IClassLoader#fetch3(String)} responses.
+     *
+     * @since TODO
+     */
+    private static final long MASK_ABSENT_CLASSES = 1L << 16;
+
+    /**
+     * Understands {@link RemoteClassLoader.IClassLoader#fetchAll(String[], long[])} and
+     * {@link RemoteClassLoader.IClassLoader#getResourceAll(String[])}.
+     *
+     * @since TODO
+     */
+    private static final long MASK_BULK_FETCH = 1L << 17;
+
     static final byte[] PREAMBLE = "<===[JENKINS REMOTING CAPACITY]===>".getBytes(StandardCharsets.UTF_8);
 
     public static final Capability NONE = new Capability(0);
@@ -368,6 +540,78 @@ public final class Capability implements Serializable {
             }
             sb.append("ProxyException fallback");
         }
+        if ((mask & MASK_CLASS_DESCRIPTOR_DICTIONARY) != 0) {
+            if (first) {
+                first = false;
+            } else {
+                sb.append(", ");
+            }
+            sb.append("Class descriptor dictionary");
+        }
+        if ((mask & MASK_COMPACT_COMMANDS) != 0) {
+            if (first) {
+                first = false;
+            } else {
+                sb.append(", ");
+            }
+            sb.append("Compact commands");
+        }
+        if ((mask & MASK_COMPRESSION) != 0) {
+            if (first) {
+                first = false;
+            } else {
+                sb.append(", ");
+            }
+            sb.append("Compression");
+        }
+        if ((mask & MASK_LEASE_RENEWAL) != 0) {
+            if (first) {
+                first = false;
+            } else {
+                sb.append(", ");
+            }
+            sb.append("Lease renewal");
+        }
+        if ((mask & MASK_BULK_UNEXPORT) != 0) {
+            if (first) {
+                first = false;
+            } else {
+                sb.append(", ");
+            }
+            sb.append("Bulk unexport");
+        }
+        if ((mask & MASK_HEARTBEATS) != 0) {
+            if (first) {
+                first = false;
+            } else {
+                sb.append(", ");
+            }
+            sb.append("Heartbeats");
+        }
+        if ((mask & MASK_CLASS_IMAGE_CACHE) != 0) {
+            if (first) {
+                first = false;
+            } else {
+                sb.append(", ");
+            }
+            sb.append("Class image cache");
+        }
+        if ((mask & MASK_ABSENT_CLASSES) != 0) {
+            if (first) {
+                first = false;
+            } else {
+                sb.append(", ");
+            }
+            sb.append("Absent classes");
+        }
+        if ((mask & MASK_BULK_FETCH) != 0) {
+            if (first) {
+                first = false;
+            } else {
+                sb.append(", ");
+            }
+            sb.append("Bulk fetch");
+        }
         sb.append('}');
         return sb.toString();
     }
@@ -43,6 +43,7 @@ import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.nio.channels.ClosedChannelException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -52,9 +53,11 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -166,6 +169,12 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
     /*package*/ final Map<Integer, Request<? extends Serializable, ? extends Throwable>> pendingCalls =
             new ConcurrentHashMap<>();
 
+    /**
+     * Dispenses the IDs of the {@link Request}s in {@link #pendingCalls}.
+     * Starts at 1, as 0 stands for no request in {@link Request#getCurrentRequestId()}.
+     */
+    private final AtomicInteger requestId = new AtomicInteger(1);
+
     /**
      * Remembers last I/O ID issued from locally to the other side, per thread.
      * int[1] is used as a holder of int.
@@ -226,6 +235,23 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
      */
     private final AtomicLong commandsSent = new AtomicLong();
 
+    /**
+     * Commands that {@link #send(Command)} has yet to write.
+     */
+    private final SendLanes sendLanes = new SendLanes();
+
+    /**
+     * Heartbeats exchanged by the transport.
+     */
+    /*package*/ final Heartbeats heartbeats = new Heartbeats(this);
+
+    /**
+     * Acks of the bytes written to our end of the pipes of the other side.
+     */
+    /*package*/ final DelayedAcks outputStreamAcks = ProxyOutputStream.newDelayedAcks(this);
+
+    /*package*/ final DelayedAcks writerAcks = ProxyWriter.newDelayedAcks(this);
+
     /**
      * Number of {@link Command} objects received from the other side.
      *
@@ -299,6 +325,20 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
      */
     public final AtomicInteger resourceLoadingCount = new AtomicInteger();
 
+    /**
+     * Lookups of classes and resources that we knew the other side does not have, saving a remote roundtrip call.
+     * These are not part of {@link #classLoadingCount} nor {@link #resourceLoadingCount}.
+     * @since TODO
+     */
+    public final AtomicInteger negativeCacheHitCount = new AtomicInteger();
+
+    /**
+     * Classes and resources fetched ahead of time, as listed in the {@link ClassLoadingManifest} of the previous
+     * session. Those later loaded count as {@link #classLoadingPrefetchCacheCount} hits.
+     * @since TODO
+     */
+    public final AtomicInteger classLoadingWarmUpCount = new AtomicInteger();
+
     private final AtomicInteger ioId = new AtomicInteger();
 
     /**
@@ -338,6 +378,12 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
     @CheckForNull
     private JarCache jarCache;
 
+    /**
+     * Record of what the {@link RemoteClassLoader}s of this channel load, or {@code null} if not recorded.
+     */
+    @CheckForNull
+    private final ClassLoadingManifest classLoadingManifest;
+
     /*package*/ final JarLoaderImpl jarLoader;
 
     short maximumBytecodeLevel = Short.MAX_VALUE;
@@ -629,6 +675,8 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
         if (this.jarCache == null) {
             logger.log(Level.CONFIG, "JAR Cache is not defined for channel {0}", name);
         }
+        File manifest = settings.getClassLoadingManifest();
+        this.classLoadingManifest = manifest == null ? null : ClassLoadingManifest.load(manifest);
 
         this.baseClassLoader = settings.getBaseLoader();
         this.classFilter = settings.getClassFilter();
@@ -636,7 +684,7 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
         if (internalExport(IChannel.class, this, false) != 1) {
             throw new AssertionError(); // export number 1 is reserved for the channel itself
         }
-        remoteChannel = RemoteInvocationHandler.wrap(this, 1, IChannel.class, true, false, false, true);
+        remoteChannel = RemoteInvocationHandler.wrap(this, 1, IChannel.class, true, false, false, true, 0);
 
         this.remoteCapability = transport.getRemoteCapability();
         this.pipeWriter = new PipeWriter(createPipeWriterExecutor());
@@ -806,7 +854,7 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
      */
     private ExecutorService createPipeWriterExecutor() {
         if (remoteCapability.supportsPipeThrottling()) {
-            return new SingleLaneExecutorService(executor);
+            return new LockFreeLaneExecutorService(executor);
         }
         return new SynchronousExecutorService();
     }
@@ -817,16 +865,47 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
      * <p>
      * This is the lowest layer of abstraction in {@link Channel}.
      * {@link Command}s are executed on a remote system in the order they are sent.
+     *
+     * <p>
+     * If the transport supports {@link CommandTransport#prepare(Command)}, the command is serialized
+     * on the calling thread before the channel lock is taken, so that only the hand-off of the
+     * serialized frames to the transport is ordered.
+     *
+     * <p>
+     * Commands sent concurrently by different threads may be written in a different order than they were sent in,
+     * so that requests and responses do not wait behind pipe data; see {@link SendLanes}.
      */
-    /*package*/ synchronized void send(Command cmd) throws IOException {
+    /*package*/ void send(Command cmd) throws IOException {
         if (outClosed != null) {
             throw new ChannelClosedException(this, outClosed);
         }
         if (logger.isLoggable(Level.FINE)) {
             logger.fine("Send " + cmd);
         }
+        // so that they are likely to share a network write
+        outputStreamAcks.flushIfPending();
+        writerAcks.flushIfPending();
 
-        transport.write(cmd, cmd instanceof CloseCommand);
+        CommandTransport.PreparedCommand prepared = SERIALIZE_OUTSIDE_LOCK ? transport.prepare(cmd) : null;
+        SendLanes.Entry entry = sendLanes.add(cmd, prepared);
+        synchronized (this) {
+            sendLanes.drain(entry, this::write);
+        }
+    }
+
+    /**
+     * Writes one command queued by {@link #send(Command)}, possibly on behalf of another thread.
+     */
+    private void write(Command cmd, @CheckForNull CommandTransport.PreparedCommand prepared) throws IOException {
+        // the channel may have been closed while the command was serialized or queued
+        if (outClosed != null) {
+            throw new ChannelClosedException(this, outClosed);
+        }
+        if (prepared != null) {
+            transport.write(prepared, cmd instanceof CloseCommand);
+        } else {
+            transport.write(cmd, cmd instanceof CloseCommand);
+        }
         commandsSent.incrementAndGet();
         lastCommandSentAt.set(System.currentTimeMillis());
     }
@@ -874,9 +953,12 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
 
         // either local side will auto-unexport, or the remote side will unexport when it's GC-ed
         boolean autoUnexportByCaller = exportedObjects.isRecording();
-        final int id = internalExport(type, instance, autoUnexportByCaller);
+        // and in the latter case, the remote side can renew a lease in case the unexport never comes
+        long leaseMillis =
+                !autoUnexportByCaller && remoteCapability.supportsLeaseRenewal() ? ExportTable.LEASE_MILLIS : 0;
+        final int id = exportedObjects.export(type, instance, autoUnexportByCaller, leaseMillis > 0);
         return RemoteInvocationHandler.wrap(
-                null, id, type, userProxy, autoUnexportByCaller, userScope, recordCreatedAt);
+                null, id, type, userProxy, autoUnexportByCaller, userScope, recordCreatedAt, leaseMillis);
     }
 
     /*package*/ <T> int internalExport(Class<T> clazz, T instance) {
@@ -916,6 +998,24 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
         exportedObjects.unexportByOid(id, cause, severeErrorIfMissing);
     }
 
+    /**
+     * Unexports objects, once per occurrence of their ID.
+     *
+     * @see BulkUnexportCommand
+     */
+    /*package*/ void unexport(int[] ids) {
+        exportedObjects.unexportByOids(ids);
+    }
+
+    /**
+     * Renews the leases of objects exported on a lease.
+     *
+     * @see RenewLeasesCommand
+     */
+    /*package*/ void renewLeases(int[] oids) {
+        exportedObjects.renewLeases(oids);
+    }
+
     /**
      * Increase reference count so much to effectively prevent de-allocation.
      * @param instance Instance to be pinned
@@ -1066,6 +1166,31 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
         this.jarCache = jarCache;
     }
 
+    /**
+     * Gets the cache of the class images that do not come in a jar, which is kept along with the {@link JarCache}
+     * when that is a {@link FileSystemJarCache}.
+     *
+     * @return {@code null} if there is no such cache.
+     */
+    @CheckForNull
+    /*package*/ ClassImageCache getClassImageCache() {
+        JarCache jc = jarCache;
+        if (ClassImageCache.DISABLED || !(jc instanceof FileSystemJarCache)) {
+            return null;
+        }
+        return ((FileSystemJarCache) jc).getClassImageCache();
+    }
+
+    /**
+     * Gets the record of what the {@link RemoteClassLoader}s of this channel load.
+     *
+     * @return {@code null} if that is not recorded.
+     */
+    @CheckForNull
+    /*package*/ ClassLoadingManifest getClassLoadingManifest() {
+        return classLoadingManifest;
+    }
+
     /*package*/ PipeWindow getPipeWindow(int oid) {
         synchronized (pipeWindows) {
             PipeWindow.Key k = new PipeWindow.Key(oid);
@@ -1078,7 +1203,10 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
             }
 
             PipeWindow w;
-            if (remoteCapability.supportsPipeThrottling()) {
+            if (remoteCapability.supportsPipeThrottling() && PipeWindow.AUTO_TUNE) {
+                int initial = Math.min(PIPE_WINDOW_SIZE, PipeWindow.MIN_SIZE);
+                w = new PipeWindow.Real(k, initial + reservePipeWindow(PIPE_WINDOW_SIZE - initial), this);
+            } else if (remoteCapability.supportsPipeThrottling()) {
                 w = new PipeWindow.Real(k, PIPE_WINDOW_SIZE);
             } else {
                 w = new PipeWindow.Fake();
@@ -1088,6 +1216,47 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
         }
     }
 
+    /**
+     * Lets an auto-tuned {@link PipeWindow} grow by up to {@code wanted} bytes beyond {@link PipeWindow#MIN_SIZE},
+     * as long as the windows of this channel stay within {@link PipeWindow#MAX_TOTAL}, taking back from idle
+     * windows if needed.
+     *
+     * @return
+     *      The number of bytes the window may grow by.
+     */
+    /*package*/ int reservePipeWindow(int wanted) {
+        if (wanted <= 0) {
+            return 0;
+        }
+        synchronized (pipeWindows) {
+            long total = 0;
+            List<PipeWindow.Real> windows = getRealPipeWindows();
+            for (PipeWindow.Real w : windows) {
+                total += Math.max(w.max() - PipeWindow.MIN_SIZE, 0);
+            }
+            if (total + wanted > PipeWindow.MAX_TOTAL) {
+                long now = System.nanoTime();
+                for (PipeWindow.Real w : windows) {
+                    total -= w.shrinkIfIdle(now);
+                }
+            }
+            return (int) Math.max(Math.min(wanted, PipeWindow.MAX_TOTAL - total), 0);
+        }
+    }
+
+    private List<PipeWindow.Real> getRealPipeWindows() {
+        synchronized (pipeWindows) {
+            List<PipeWindow.Real> windows = new ArrayList<>();
+            for (WeakReference<PipeWindow> v : pipeWindows.values()) {
+                PipeWindow w = v.get();
+                if (w instanceof PipeWindow.Real) {
+                    windows.add((PipeWindow.Real) w);
+                }
+            }
+            return windows;
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1149,6 +1318,106 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
         };
     }
 
+    /**
+     * Makes an asynchronous remote procedure call that does not need any thread to wait for its completion.
+     *
+     * <p>
+     * Same as {@link #callAsyncCompletable(Callable, Executor)} with the executor of this channel.
+     *
+     * @since TODO
+     */
+    public <V, T extends Throwable> CompletableFuture<V> callAsyncCompletable(final Callable<V, T> callable)
+            throws IOException {
+        return callAsyncCompletable(callable, executor);
+    }
+
+    /**
+     * Makes an asynchronous remote procedure call that does not need any thread to wait for its completion.
+     *
+     * <p>
+     * Similar to {@link #callAsync(Callable)}, but the returned future is completed as soon as the response
+     * arrives, so stages can be chained to it without parking a thread per call in flight.
+     * Cancelling the future also interrupts the remote computation.
+     * An exception thrown by the {@link Callable} completes the future exceptionally with that very exception.
+     *
+     * <p>
+     * The result is deserialized on the given executor rather than on the thread that reads from this
+     * channel, as this may need to load classes from the other side. The returned future is then completed
+     * on that executor too, which is where dependent stages that are not asynchronous will run.
+     *
+     * @param executor
+     *      Used to deserialize the result and complete the returned future.
+     * @throws IOException
+     *      If there's an error during the communication.
+     * @since TODO
+     */
+    public <V, T extends Throwable> CompletableFuture<V> callAsyncCompletable(
+            final Callable<V, T> callable, @NonNull Executor executor) throws IOException {
+        if (isClosingOrClosed()) {
+            // No reason to even try performing a user request
+            throw new ChannelClosedException(
+                    this,
+                    "Remote call on " + name + " failed. " + "The channel is closing down or has closed down",
+                    getCloseRequestCause());
+        }
+
+        UserRequest<V, T> request = new UserRequest<>(this, callable);
+        CompletableFuture<UserRequest.ResponseToUserRequest<V, T>> response = request.callCompletable(this);
+        CompletableFuture<V> result = new CompletableFuture<>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                response.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        response.whenCompleteAsync(
+                (r, x) -> {
+                    if (x != null) {
+                        result.completeExceptionally(x);
+                        return;
+                    }
+                    try {
+                        // make sure any I/O preceding the response has completed, like call() does
+                        pipeWriter.get(request.responseIoId).get();
+                    } catch (ExecutionException e) {
+                        // ignore the I/O error
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    try {
+                        result.complete(r.retrieve(Channel.this, UserRequest.getClassLoader(callable)));
+                    } catch (Throwable t) { // really means catch(T t)
+                        result.completeExceptionally(t);
+                    }
+                },
+                executor);
+        return result;
+    }
+
+    /**
+     * Sends a heartbeat that the transport of the other side answers as soon as it reads it, without any
+     * {@link Command} being involved.
+     *
+     * @return
+     *      Completed with the round trip time in nanoseconds when the answer comes back, or {@code null} if either
+     *      transport has no heartbeats, in which case {@link #callAsyncCompletable(Callable)} can do instead.
+     * @throws IOException
+     *      If the heartbeat could not be written.
+     * @see Heartbeats
+     */
+    @CheckForNull
+    /*package*/ CompletableFuture<Long> heartbeat() throws IOException {
+        if (!remoteCapability.supportsHeartbeats() || !transport.supportsHeartbeats()) {
+            return null;
+        }
+        if (isClosingOrClosed()) {
+            throw new ChannelClosedException(
+                    this, "Heartbeat on " + name + " failed. The channel is closing down or has closed down",
+                    getCloseRequestCause());
+        }
+        return heartbeats.ping(transport);
+    }
+
     /**
      * Aborts the connection in response to an error.
      *
@@ -1171,6 +1440,10 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
             // Cache the cause value just in case it takes long to acquire the lock
             closeRequestCause = e;
         }
+        if (classLoadingManifest != null) {
+            // before anyone waiting for the channel to close is let go
+            classLoadingManifest.save();
+        }
 
         try {
             synchronized (this) {
@@ -1197,6 +1470,7 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
                     }
                     executingCalls.clear();
                     exportedObjects.abort(e);
+                    heartbeats.abort(e);
                     // break any object cycles into simple chains to simplify work for the garbage collector
                     reference.clear(e);
                 } finally {
@@ -1466,6 +1740,8 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
         classLoadingPrefetchCacheCount.set(0);
         resourceLoadingCount.set(0);
         resourceLoadingTime.set(0);
+        negativeCacheHitCount.set(0);
+        classLoadingWarmUpCount.set(0);
     }
 
     /**
@@ -1482,6 +1758,8 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
         w.printf(Locale.ENGLISH, "Class loading time=%,dms%n", classLoadingTime.get() / (1000 * 1000));
         w.printf(Locale.ENGLISH, "Resource loading count=%d%n", resourceLoadingCount.get());
         w.printf(Locale.ENGLISH, "Resource loading time=%,dms%n", resourceLoadingTime.get() / (1000 * 1000));
+        w.printf(Locale.ENGLISH, "Negative lookup cache hit=%d%n", negativeCacheHitCount.get());
+        w.printf(Locale.ENGLISH, "Class loading warm-up count=%d%n", classLoadingWarmUpCount.get());
     }
 
     // TODO: Make public after merge into the master branch
@@ -1557,6 +1835,13 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
         synchronized (pendingCalls) {
             w.printf("  Pending calls=%d%n", pendingCalls.size());
         }
+        exportedObjects.dumpDiagnostics(w);
+        sendLanes.dumpDiagnostics(w);
+        heartbeats.dumpDiagnostics(w);
+        for (PipeWindow.Real window : getRealPipeWindows()) {
+            window.dumpDiagnostics(w);
+        }
+        transport.dumpDiagnostics(w);
     }
 
     /**
@@ -1829,6 +2114,17 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
         return PortForwarder.create(this, recvPort, ForwarderFactory.create(forwardHost, forwardPort));
     }
 
+    /**
+     * Dispenses an ID for a {@link Request} sent over this channel, unique among {@link #pendingCalls}.
+     */
+    /*package*/ int newRequestId() {
+        int id;
+        do {
+            id = requestId.getAndIncrement();
+        } while (id == 0); // skipped when wrapping around, as it means no request
+        return id;
+    }
+
     /**
      * Dispenses an unique I/O ID.
      *
@@ -2154,11 +2450,23 @@ public class Channel implements VirtualChannel, IChannel, Closeable {
      * (100M bits/sec * 0.02sec / 8 bits/byte = 0.25MB. So 1MB or so is big enough for most network, and hopefully
      * this is an acceptable enough memory consumption in case of clogging.
      *
+     * <p>
+     * When {@link PipeWindow#AUTO_TUNE} is on, this is only the size windows start at, memory permitting.
+     *
      * @see PipeWindow
      */
     public static final int PIPE_WINDOW_SIZE =
             Integer.getInteger(Channel.class.getName() + ".pipeWindowSize", 1024 * 1024);
 
+    /**
+     * Whether {@link #send(Command)} serializes commands on the calling thread before taking the channel lock.
+     * Set {@code hudson.remoting.Channel.serializeOutsideLock=false} to go back to serializing under the lock.
+     *
+     * @see CommandTransport#prepare(Command)
+     */
+    static boolean SERIALIZE_OUTSIDE_LOCK =
+            Boolean.parseBoolean(System.getProperty(Channel.class.getName() + ".serializeOutsideLock", "true"));
+
     /**
      * Keep track of active channels in the system for diagnostics purposes.
      */
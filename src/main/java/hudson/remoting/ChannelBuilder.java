@@ -5,6 +5,7 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
@@ -76,6 +77,9 @@ public class ChannelBuilder {
     @CheckForNull
     private JarCache jarCache;
 
+    @CheckForNull
+    private File classLoadingManifest;
+
     private final List<CallableDecorator> decorators = new ArrayList<>();
     private boolean arbitraryCallableAllowed = true;
     private boolean remoteClassLoadingAllowed = true;
@@ -89,6 +93,8 @@ public class ChannelBuilder {
      *      Human readable name of this channel. Used for debug/logging. Can be anything.
      * @param executors
      *      Commands sent from the remote peer will be executed by using this {@link Executor}.
+     *      See {@link org.jenkinsci.remoting.util.VirtualThreads#newExecutorService(String)} to run them
+     *      on virtual threads.
      */
     public ChannelBuilder(String name, ExecutorService executors) {
         this.name = name;
@@ -273,6 +279,32 @@ public class ChannelBuilder {
         return jarCache;
     }
 
+    /**
+     * Records the classes and resources that the remote class loaders of the channel load into the given file,
+     * and fetches ahead of time those the file lists from the previous session.
+     *
+     * <p>
+     * The file should be kept per peer, as what one peer sends means nothing to another.
+     *
+     * @param manifest Manifest file. If {@code null}, nothing is recorded.
+     * @return {@code this}
+     * @since TODO
+     */
+    public ChannelBuilder withClassLoadingManifest(@CheckForNull File manifest) {
+        this.classLoadingManifest = manifest;
+        return this;
+    }
+
+    /**
+     * Gets the file where the classes and resources loaded through the channel are recorded.
+     * @return {@code null} if they are not recorded.
+     * @since TODO
+     */
+    @CheckForNull
+    public File getClassLoadingManifest() {
+        return classLoadingManifest;
+    }
+
     public ChannelBuilder with(CallableDecorator decorator) {
         this.decorators.add(decorator);
         return this;
@@ -0,0 +1,29 @@
+package hudson.remoting;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * A single daemon thread, shared by all channels, that runs the short tasks they schedule for a bit later,
+ * such as the delayed writes of {@link AbstractByteBufferCommandTransport} and the delayed acks of pipes.
+ * Those tasks hand anything that may block, such as writing to the network, over to the {@link Channel#executor}
+ * of their channel, so that a channel that is slow to write does not hold up the others.
+ */
+/*package*/ final class ChannelTimer {
+    private ChannelTimer() {}
+
+    /*package*/ static ScheduledExecutorService get() {
+        return Holder.TIMER;
+    }
+
+    private static final class Holder {
+        private static final ScheduledExecutorService TIMER = create();
+
+        private static ScheduledExecutorService create() {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(
+                    1, new NamingThreadFactory(new DaemonThreadFactory(), ChannelTimer.class.getSimpleName()));
+            timer.setRemoveOnCancelPolicy(true);
+            return timer;
+        }
+    }
+}
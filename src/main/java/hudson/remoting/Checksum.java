@@ -72,6 +72,19 @@ final class Checksum {
         return forURL(file.toURI().toURL());
     }
 
+    /**
+     * Returns the checksum for the given bytes.
+     */
+    static Checksum forBytes(byte[] data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance(JarLoaderImpl.DIGEST_ALGORITHM);
+            md.update(data);
+            return new Checksum(md.digest(), md.getDigestLength() / 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
     /**
      * Returns the checksum for the given URL.
      */
@@ -1,9 +1,11 @@
 package hudson.remoting;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * A variation of {@link ClassicCommandTransport} that uses the chunked encoding.
@@ -21,10 +23,19 @@ class ChunkedCommandTransport extends AbstractSynchronousByteArrayCommandTranspo
      */
     private final OutputStream rawOut;
 
+    private final ClassDescriptorTable descriptors = new ClassDescriptorTable();
+
+    private final CommandCompressor compressor = new CommandCompressor();
+
     /*package*/ ChunkedCommandTransport(
             Capability remoteCapability, InputStream in, OutputStream out, OutputStream rawOut) {
         this.remoteCapability = remoteCapability;
-        this.in = new ChunkedInputStream(in);
+        this.in = new ChunkedInputStream(in) {
+            @Override
+            protected void onHeartbeat(ByteBuffer body) {
+                Heartbeats.read(channel, ChunkedCommandTransport.this, body);
+            }
+        };
         this.out = new ChunkedOutputStream(8192, out);
         this.rawOut = rawOut;
     }
@@ -47,6 +58,43 @@ class ChunkedCommandTransport extends AbstractSynchronousByteArrayCommandTranspo
         out.sendBreak();
     }
 
+    @Override
+    public Command read() throws IOException, ClassNotFoundException {
+        byte[] block = readBlock(channel);
+        return Command.readFrom(channel, descriptors, compressor, new ByteArrayInputStream(block), block.length);
+    }
+
+    @Override
+    public void write(Command cmd, boolean last) throws IOException {
+        write(prepare(cmd), last);
+    }
+
+    @Override
+    PreparedCommand prepare(Command cmd) throws IOException {
+        return PreparedBlock.serialize(channel, descriptors, compressor, cmd);
+    }
+
+    @Override
+    void write(PreparedCommand cmd, boolean last) throws IOException {
+        PreparedBlock block = (PreparedBlock) cmd;
+        channel.notifyWrite(cmd.command, block.length);
+        out.write(block.payload, 0, block.length);
+        out.sendBreak();
+        descriptors.commit(cmd.definitions);
+    }
+
+    @Override
+    boolean supportsHeartbeats() {
+        return true;
+    }
+
+    @Override
+    void writeHeartbeat(byte kind, long id) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(ChunkHeader.SIZE + Heartbeats.BODY_SIZE);
+        Heartbeats.write(frame, kind, id);
+        out.sendHeartbeat(frame.array());
+    }
+
     @Override
     public void closeWrite() throws IOException {
         out.close();
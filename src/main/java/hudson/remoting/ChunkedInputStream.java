@@ -1,9 +1,11 @@
 package hudson.remoting;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Opposite of {@link ChunkedOutputStream}.
@@ -86,6 +88,19 @@ class ChunkedInputStream extends InputStream {
         }
 
         int header = ChunkHeader.parse(b1, b2);
+        if (header == Heartbeats.HEADER) {
+            byte[] body = new byte[Heartbeats.BODY_SIZE];
+            for (int n = 0; n < body.length; ) {
+                int read = base.read(body, n, body.length - n);
+                if (read < 0) {
+                    throw new EOFException("Unexpected EOF in a heartbeat");
+                }
+                n += read;
+            }
+            onHeartbeat(ByteBuffer.wrap(body));
+            isLast = false;
+            return false;
+        }
         if (isLast = ChunkHeader.isLast(header)) {
             onBreak();
         }
@@ -98,6 +113,11 @@ class ChunkedInputStream extends InputStream {
      */
     protected void onBreak() {}
 
+    /**
+     * Signifies a {@link Heartbeats heartbeat} frame, given its body.
+     */
+    protected void onHeartbeat(ByteBuffer body) {}
+
     /**
      * Reads bytes until we hit the chunk boundary. Bytes read will be written to the sink.
      */
@@ -89,7 +89,15 @@ class ChunkedOutputStream extends OutputStream {
         }
     }
 
-    private void sendFrame(boolean hasMore) throws IOException {
+    /**
+     * Sends a {@link Heartbeats heartbeat} frame in between the frames of the data, from any thread.
+     */
+    public synchronized void sendHeartbeat(byte[] frame) throws IOException {
+        base.write(frame);
+        base.flush();
+    }
+
+    private synchronized void sendFrame(boolean hasMore) throws IOException {
         base.write(ChunkHeader.pack(size, hasMore));
         base.write(buf, 0, size);
         size = 0;
@@ -0,0 +1,330 @@
+package hudson.remoting;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jenkinsci.remoting.util.AnonymousClassWarnings;
+
+/**
+ * Class descriptors exchanged over one {@link CommandTransport}, so that a descriptor is only sent
+ * in full the first time and later commands refer to it by number.
+ *
+ * <p>
+ * Every command is still written with its own {@link ObjectOutputStream}, so nothing but the descriptors
+ * outlives a command; object handles are not shared, and commands can keep being serialized concurrently
+ * by {@link CommandTransport#prepare(Command)}. A stream that uses the table starts with {@link #MAGIC}
+ * instead of the usual serialization stream header, which lets the receiving side read both kinds.
+ *
+ * <p>
+ * The sending side assigns the numbers while serializing, but only makes them available to later commands
+ * once the command that defined them has been handed to the transport by {@link #commit(Map)}, so that a
+ * reference can never overtake its definition on the wire.
+ *
+ * <p>
+ * Within the stream, a new descriptor is referred to like any other. Its definition is sent ahead of the stream,
+ * in the {@link #headerOf(ObjectOutputStream) header}, each on its own, and the receiving side records all of them
+ * before it reads the stream. Once a definition is sent, the other side knows it, even if it fails the command
+ * partway through, say as the {@link ClassFilter} rejects another class.
+ *
+ * <p>
+ * Only classes of the JDK and of remoting itself are remembered, as they can always be resolved by the
+ * other side; a definition that the other side fails to process would break every later reference.
+ * Descriptors of other classes are sent in full each time, exactly like a regular stream.
+ *
+ * @see Capability#supportsClassDescriptorDictionary()
+ */
+/*package*/ final class ClassDescriptorTable {
+    /**
+     * Replaces {@link java.io.ObjectStreamConstants#STREAM_MAGIC} and the stream version.
+     */
+    /*package*/ static final short MAGIC = (short) 0xACDE;
+
+    /**
+     * Starts the {@link #headerOf(ObjectOutputStream) header} of definitions, which is followed by {@link #MAGIC}.
+     */
+    private static final short DEFINITIONS = (short) 0xACDF;
+
+    /**
+     * The descriptor follows in full and is not remembered.
+     */
+    private static final byte INLINE = 0;
+    /**
+     * The number of a descriptor defined by this or an earlier stream follows.
+     */
+    private static final byte REFERENCE = 2;
+
+    /**
+     * Numbers of the descriptors that the other side has been sent, weakly keyed so that we do not pin classes.
+     */
+    private final Map<Class<?>, Integer> sent = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * Descriptors received from the other side. These are never resolved to a class themselves.
+     */
+    private final Map<Integer, ObjectStreamClass> received = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the stream to serialize a single command into.
+     *
+     * @param channel
+     *      Decides whether the other side understands the table.
+     */
+    /*package*/ ObjectOutputStream newOutputStream(Channel channel, OutputStream out) throws IOException {
+        return newOutputStream(channel.remoteCapability, out);
+    }
+
+    /*package*/ ObjectOutputStream newOutputStream(Capability remoteCapability, OutputStream out) throws IOException {
+        if (DISABLED || !remoteCapability.supportsClassDescriptorDictionary()) {
+            return AnonymousClassWarnings.checkingObjectOutputStream(out);
+        }
+        return new Output(out);
+    }
+
+    /**
+     * Gets the descriptors defined by a stream created with {@link #newOutputStream(Channel, OutputStream)}.
+     *
+     * @return
+     *      {@code null} if the stream did not define anything. Otherwise to be passed to {@link #commit(Map)}.
+     */
+    @CheckForNull
+    /*package*/ static Map<Class<?>, Integer> definitionsOf(ObjectOutputStream oos) {
+        return oos instanceof Output ? ((Output) oos).defined : null;
+    }
+
+    /**
+     * Gets what is to be sent right before what a stream created with {@link #newOutputStream(Channel, OutputStream)}
+     * wrote, once it is closed: the number and the serialized form of each descriptor it defined.
+     *
+     * @return
+     *      {@code null} if the stream did not define anything.
+     */
+    @CheckForNull
+    /*package*/ static byte[] headerOf(ObjectOutputStream oos) throws IOException {
+        if (!(oos instanceof Output) || ((Output) oos).definitions == null) {
+            return null;
+        }
+        Map<Integer, ObjectStreamClass> definitions = ((Output) oos).definitions;
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeShort(DEFINITIONS);
+        out.writeInt(definitions.size());
+        ByteArrayOutputStream definition = new ByteArrayOutputStream();
+        for (Map.Entry<Integer, ObjectStreamClass> e : definitions.entrySet()) {
+            definition.reset();
+            try (ObjectOutputStream d = new ObjectOutputStream(definition)) {
+                d.writeObject(e.getValue());
+            }
+            out.writeInt(e.getKey());
+            out.writeInt(definition.size());
+            definition.writeTo(out);
+        }
+        out.flush();
+        return header.toByteArray();
+    }
+
+    /**
+     * Makes the definitions of a command available to the commands serialized after it.
+     *
+     * Must be called in the order the commands are written, once the defining command has been handed
+     * to the transport.
+     */
+    /*package*/ void commit(@CheckForNull Map<Class<?>, Integer> definitions) {
+        if (definitions != null) {
+            definitions.forEach(sent::putIfAbsent);
+        }
+    }
+
+    /**
+     * Creates the stream to deserialize a single command from, whether or not the other side serialized
+     * it with the table.
+     */
+    /*package*/ ObjectInputStream newInputStream(InputStream in, ClassLoader cl, ClassFilter filter)
+            throws IOException {
+        return new Input(in, cl, filter);
+    }
+
+    private static boolean isShared(Class<?> c) {
+        ClassLoader cl = c.getClassLoader();
+        return cl == null
+                || cl == ClassLoader.getPlatformClassLoader()
+                || cl == ClassDescriptorTable.class.getClassLoader();
+    }
+
+    private final class Output extends ObjectOutputStream {
+        /**
+         * Descriptors defined by this stream, or {@code null} if none.
+         */
+        @CheckForNull
+        private Map<Class<?>, Integer> defined;
+
+        /**
+         * The same, by number, for {@link #headerOf(ObjectOutputStream)}.
+         */
+        @CheckForNull
+        private Map<Integer, ObjectStreamClass> definitions;
+
+        Output(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeStreamHeader() throws IOException {
+            writeShort(MAGIC);
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            Class<?> c = desc.forClass();
+            if (c == null || !isShared(c)) {
+                writeByte(INLINE);
+                super.writeClassDescriptor(desc);
+                return;
+            }
+            Integer id = sent.get(c);
+            if (id == null) {
+                id = nextId.getAndIncrement();
+                if (defined == null) {
+                    defined = new HashMap<>();
+                    definitions = new LinkedHashMap<>();
+                }
+                defined.put(c, id);
+                definitions.put(id, desc);
+            }
+            writeByte(REFERENCE);
+            writeInt(id);
+        }
+
+        @Override
+        protected void annotateClass(Class<?> c) throws IOException {
+            AnonymousClassWarnings.check(c);
+            super.annotateClass(c);
+        }
+    }
+
+    private final class Input extends ObjectInputStreamEx {
+        /**
+         * Set by {@link #readStreamHeader()}, which runs from the super constructor, hence no initializer.
+         */
+        private boolean dictionary;
+
+        Input(InputStream in, ClassLoader cl, ClassFilter filter) throws IOException {
+            super(in, cl, filter);
+        }
+
+        @Override
+        protected void readStreamHeader() throws IOException {
+            short magic = readShort();
+            if (magic == DEFINITIONS) {
+                readDefinitions();
+                magic = readShort();
+                if (magic != MAGIC) {
+                    throw new StreamCorruptedException(String.format("invalid stream header: %04X", magic));
+                }
+            }
+            if (magic == MAGIC) {
+                dictionary = true;
+                return;
+            }
+            short version = readShort();
+            if (magic != STREAM_MAGIC || version != STREAM_VERSION) {
+                throw new StreamCorruptedException(String.format("invalid stream header: %04X%04X", magic, version));
+            }
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            if (!dictionary) {
+                return super.readClassDescriptor();
+            }
+            byte tag = readByte();
+            switch (tag) {
+                case INLINE:
+                    return super.readClassDescriptor();
+                case REFERENCE:
+                    int id = readInt();
+                    ObjectStreamClass desc = received.get(id);
+                    if (desc == null) {
+                        throw new StreamCorruptedException("Unknown class descriptor " + id);
+                    }
+                    return desc;
+                default:
+                    throw new StreamCorruptedException("Unexpected class descriptor type " + tag);
+            }
+        }
+
+        /**
+         * Records the definitions of the header, all of them before anything else is read.
+         */
+        private void readDefinitions() throws IOException {
+            int count = readInt();
+            for (int i = 0; i < count; i++) {
+                int id = readInt();
+                byte[] definition = new byte[readInt()];
+                readFully(definition);
+                received.put(id, Definition.readFrom(definition));
+            }
+        }
+    }
+
+    /**
+     * Reads a definition without resolving its class, which is left to the streams that refer to it.
+     */
+    private static final class Definition extends ObjectInputStream {
+        @CheckForNull
+        private ObjectStreamClass desc;
+
+        private Definition(InputStream in) throws IOException {
+            super(in);
+        }
+
+        static ObjectStreamClass readFrom(byte[] definition) throws IOException {
+            Definition in = new Definition(new ByteArrayInputStream(definition));
+            try {
+                in.readObject();
+            } catch (ClassNotFoundException e) {
+                // as expected from resolveClass
+            }
+            if (in.desc == null) {
+                throw new StreamCorruptedException("Missing class descriptor");
+            }
+            return in.desc;
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass d = super.readClassDescriptor();
+            if (desc == null) {
+                // the ones that follow are of the superclasses
+                desc = d;
+            }
+            return d;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws ClassNotFoundException {
+            throw new ClassNotFoundException(desc.getName());
+        }
+    }
+
+    /**
+     * Set to true to always send class descriptors in full.
+     */
+    static boolean DISABLED = Boolean.getBoolean(ClassDescriptorTable.class.getName() + ".disabled");
+}
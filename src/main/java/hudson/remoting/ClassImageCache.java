@@ -0,0 +1,188 @@
+package hudson.remoting;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * On-disk cache of the images of the classes that the other side sends directly rather than as part of a jar,
+ * such as classes from directories or generated classes, so that they need not be sent again after a reconnect.
+ *
+ * <p>
+ * Images are stored by their {@link Checksum}, and checked against it when read back. For each class that was
+ * requested, the cache also remembers the checksums of the images that came with it, which are passed along
+ * the next time that class is requested so that the other side can send those images by their checksum alone.
+ *
+ * @see ResourceImageCached
+ * @see Capability#supportsClassImageCache()
+ * @since TODO
+ */
+/*package*/ final class ClassImageCache {
+    private final File rootDir;
+
+    /*package*/ ClassImageCache(@NonNull File rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    /**
+     * Reads the image of the given checksum.
+     *
+     * @return
+     *      {@code null} if the image is not in the cache, or if the cached file is corrupted.
+     */
+    @CheckForNull
+    /*package*/ byte[] get(@NonNull Checksum sum) {
+        File image = map(sum);
+        byte[] data;
+        try {
+            data = Files.readAllBytes(image.toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read " + image, e);
+            return null;
+        }
+        if (!sum.equals(Checksum.forBytes(data))) {
+            LOGGER.log(Level.WARNING, "Cached class image checksum mismatch: {0}", image);
+            try {
+                Files.deleteIfExists(image.toPath());
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to delete " + image, e);
+            }
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * Stores an image, unless it is already there.
+     */
+    /*package*/ void put(@NonNull Checksum sum, @NonNull byte[] data) {
+        File image = map(sum);
+        if (image.exists()) {
+            return;
+        }
+        try {
+            write(image, out -> out.write(data));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write " + image, e);
+        }
+    }
+
+    /**
+     * Gets the checksums of the images that came with the given class the last time it was requested.
+     *
+     * @return
+     *      The checksums as pairs of longs, as passed to {@link RemoteClassLoader.IClassLoader#fetch5(String, long[])}.
+     */
+    @NonNull
+    /*package*/ long[] getSums(@NonNull String className) {
+        File index = mapName(className);
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(index.toPath()))) {
+            int count = in.readInt();
+            if (count < 0 || count > MAX_SUMS) {
+                throw new IOException("Invalid number of checksums " + count);
+            }
+            long[] sums = new long[count * 2];
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] = in.readLong();
+            }
+            return sums;
+        } catch (NoSuchFileException e) {
+            return new long[0];
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to read " + index, e);
+            return new long[0];
+        }
+    }
+
+    /**
+     * Remembers the checksums of the images that came with the given class.
+     *
+     * @param sums
+     *      The checksums as pairs of longs.
+     */
+    /*package*/ void putSums(@NonNull String className, @NonNull long[] sums) {
+        File index = mapName(className);
+        int count = Math.min(sums.length / 2, MAX_SUMS);
+        try {
+            write(index, out -> {
+                DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(count);
+                for (int i = 0; i < count * 2; i++) {
+                    data.writeLong(sums[i]);
+                }
+                data.flush();
+            });
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write " + index, e);
+        }
+    }
+
+    /**
+     * Writes a file through a temporary file, so that readers never see it partially written.
+     */
+    @SuppressFBWarnings(value = "PATH_TRAVERSAL_IN", justification = "The path is derived from a checksum.")
+    private static void write(File target, Writer writer) throws IOException {
+        Path parent = target.getParentFile().toPath();
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, target.getName(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                writer.write(out);
+            }
+            Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Map to the cached image file name.
+     */
+    /*package*/ File map(Checksum sum) {
+        return new File(
+                rootDir,
+                String.format(
+                        "%02X/%014X%016X.class", (int) (sum.sum1 >>> (64 - 8)), sum.sum1 & 0x00FFFFFFFFFFFFFFL, sum.sum2));
+    }
+
+    /**
+     * Map to the file that lists the checksums that came with a class.
+     */
+    private File mapName(String className) {
+        Checksum sum = Checksum.forBytes(className.getBytes(StandardCharsets.UTF_8));
+        return new File(
+                rootDir,
+                String.format(
+                        "names/%02X/%014X%016X", (int) (sum.sum1 >>> (64 - 8)), sum.sum1 & 0x00FFFFFFFFFFFFFFL, sum.sum2));
+    }
+
+    /**
+     * Largest number of checksums remembered for a class.
+     */
+    private static final int MAX_SUMS = 4096;
+
+    /**
+     * Set to true to neither use nor fill the cache.
+     */
+    static boolean DISABLED = Boolean.getBoolean(ClassImageCache.class.getName() + ".disabled");
+
+    private static final Logger LOGGER = Logger.getLogger(ClassImageCache.class.getName());
+}
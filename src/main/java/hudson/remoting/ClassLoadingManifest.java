@@ -0,0 +1,239 @@
+package hudson.remoting;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Record of the classes and resources that the {@link RemoteClassLoader}s of a channel loaded during a session,
+ * kept in a file so that the next session with the same peer can fetch them ahead of time, in a few bulk calls,
+ * instead of one at a time as they are needed.
+ *
+ * <p>
+ * The record is kept per class loader of the other side, by its name, or for an unnamed one by the first class
+ * loaded through it. What a session loads is added to what the previous sessions loaded, less what the other side
+ * no longer has, up to {@link #MAX_ENTRIES} each of classes and resources. The class loaders that did not come up
+ * in a session are dropped from the record, so that it does not grow from one session to the next.
+ * The file is written once, when the channel is terminated.
+ *
+ * <p>
+ * The file is a list of sections, each starting with a {@code [key]} line followed by {@code C class-name} and
+ * {@code R resource-name} lines.
+ *
+ * @see ChannelBuilder#withClassLoadingManifest(File)
+ * @see Capability#supportsBulkFetch()
+ * @since TODO
+ */
+/*package*/ final class ClassLoadingManifest {
+    private final File file;
+
+    /**
+     * What the previous sessions recorded, by key.
+     */
+    private final Map<String, Section> previous;
+
+    /**
+     * What this session recorded, by key, seeded with what the previous sessions recorded.
+     */
+    private final Map<String, Section> current = new LinkedHashMap<>();
+
+    private final AtomicBoolean saved = new AtomicBoolean();
+
+    private ClassLoadingManifest(File file, Map<String, Section> previous) {
+        this.file = file;
+        this.previous = previous;
+    }
+
+    /**
+     * Reads the manifest that the previous session left in the given file, if any.
+     */
+    @NonNull
+    /*package*/ static ClassLoadingManifest load(@NonNull File file) {
+        Map<String, Section> sections = new LinkedHashMap<>();
+        try (BufferedReader r = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            Section section = null;
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("[") && line.endsWith("]")) {
+                    section = new Section();
+                    sections.put(line.substring(1, line.length() - 1), section);
+                } else if (section != null && line.startsWith("C ")) {
+                    section.addClass(line.substring(2));
+                } else if (section != null && line.startsWith("R ")) {
+                    section.addResource(line.substring(2));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // first session
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read " + file, e);
+            sections.clear();
+        }
+        return new ClassLoadingManifest(file, sections);
+    }
+
+    /**
+     * Gets the section to record into for the given key, which starts out with what the previous sessions recorded.
+     *
+     * @return {@code null} if the key cannot be recorded.
+     */
+    @CheckForNull
+    /*package*/ synchronized Section open(@NonNull String key) {
+        if (!isLine(key)) {
+            return null;
+        }
+        Section section = current.get(key);
+        if (section == null) {
+            section = new Section();
+            Section old = previous.get(key);
+            if (old != null) {
+                section.seed(old);
+            }
+            current.put(key, section);
+        }
+        return section;
+    }
+
+    /**
+     * Writes the manifest for the next session, unless that was already done.
+     */
+    /*package*/ void save() {
+        if (!saved.compareAndSet(false, true)) {
+            return;
+        }
+        Map<String, Section> all;
+        synchronized (this) {
+            all = new LinkedHashMap<>(current);
+        }
+        try {
+            write(all);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write " + file, e);
+        }
+    }
+
+    /**
+     * Writes the file through a temporary file, so that a reader never sees it partially written.
+     */
+    @SuppressFBWarnings(value = "PATH_TRAVERSAL_IN", justification = "The location is set by the administrator.")
+    private void write(Map<String, Section> all) throws IOException {
+        Path parent = file.getAbsoluteFile().getParentFile().toPath();
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, file.getName(), ".tmp");
+        try {
+            try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Section> e : all.entrySet()) {
+                    String[] classes = e.getValue().getClasses();
+                    String[] resources = e.getValue().getResources();
+                    if (classes.length == 0 && resources.length == 0) {
+                        continue;
+                    }
+                    w.write('[' + e.getKey() + "]\n");
+                    for (String c : classes) {
+                        w.write("C " + c + '\n');
+                    }
+                    for (String r : resources) {
+                        w.write("R " + r + '\n');
+                    }
+                }
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Can the string be written as a line of the file?
+     */
+    private static boolean isLine(String s) {
+        return s.indexOf('\n') < 0 && s.indexOf('\r') < 0;
+    }
+
+    /**
+     * Classes and resources recorded for one class loader of the other side.
+     */
+    /*package*/ static final class Section {
+        private final Set<String> classes = new LinkedHashSet<>();
+        private final Set<String> resources = new LinkedHashSet<>();
+
+        /**
+         * Whether this section started out with what the previous sessions recorded, and no one has yet claimed to
+         * fetch that ahead of time.
+         */
+        private boolean seeded;
+
+        private synchronized void seed(Section old) {
+            for (String c : old.getClasses()) {
+                addClass(c);
+            }
+            for (String r : old.getResources()) {
+                addResource(r);
+            }
+            seeded = !classes.isEmpty() || !resources.isEmpty();
+        }
+
+        /**
+         * Returns {@code true} to only one caller, and only if there is something from the previous sessions
+         * to fetch ahead of time.
+         */
+        /*package*/ synchronized boolean claimWarmUp() {
+            boolean r = seeded;
+            seeded = false;
+            return r;
+        }
+
+        /*package*/ synchronized void addClass(String name) {
+            if (classes.size() < MAX_ENTRIES && isLine(name)) {
+                classes.add(name);
+            }
+        }
+
+        /*package*/ synchronized void addResource(String name) {
+            if (resources.size() < MAX_ENTRIES && isLine(name)) {
+                resources.add(name);
+            }
+        }
+
+        /*package*/ synchronized void removeClass(String name) {
+            classes.remove(name);
+        }
+
+        /*package*/ synchronized void removeResource(String name) {
+            resources.remove(name);
+        }
+
+        @NonNull
+        /*package*/ synchronized String[] getClasses() {
+            return classes.toArray(new String[0]);
+        }
+
+        @NonNull
+        /*package*/ synchronized String[] getResources() {
+            return resources.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * The most classes, and separately the most resources, recorded for one class loader.
+     */
+    static int MAX_ENTRIES = Integer.getInteger(ClassLoadingManifest.class.getName() + ".maxEntries", 10000);
+
+    private static final Logger LOGGER = Logger.getLogger(ClassLoadingManifest.class.getName());
+}
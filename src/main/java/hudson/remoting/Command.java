@@ -31,6 +31,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.Serializable;
 import java.util.concurrent.ExecutionException;
 
@@ -103,6 +105,15 @@ public abstract class Command implements Serializable {
         }
     }
 
+    /**
+     * Whether this command carries pipe data, which other commands sent concurrently may be written ahead of.
+     *
+     * @see SendLanes
+     */
+    boolean isBulk() {
+        return false;
+    }
+
     /** Consider calling {@link Channel#notifyWrite} afterwards. */
     void writeTo(Channel channel, ObjectOutputStream oos) throws IOException {
         Channel old = Channel.setCurrent(channel);
@@ -113,6 +124,17 @@ public abstract class Command implements Serializable {
         }
     }
 
+    /**
+     * Writes this command in the form of {@link CompactCommandCodec}, starting with its tag.
+     *
+     * @return
+     *      {@code false}, without writing anything, if this command needs to be sent with Java serialization,
+     *      which is the default.
+     */
+    boolean writeCompact(OutputStream out) throws IOException {
+        return false;
+    }
+
     /**
      * Reads command from the specified payload.
      * @param channel Channel
@@ -144,6 +166,52 @@ public abstract class Command implements Serializable {
         return cmd;
     }
 
+    /**
+     * Reads a command written by
+     * {@link CommandTransport#serialize(Channel, ClassDescriptorTable, CommandCompressor, Command,
+     * org.jenkinsci.remoting.util.ByteBufferQueue)}
+     * or {@link CommandTransport.PreparedBlock#serialize(Channel, ClassDescriptorTable, CommandCompressor, Command)}.
+     */
+    /*package*/ static Command readFrom(
+            @NonNull Channel channel,
+            @NonNull ClassDescriptorTable descriptors,
+            @NonNull CommandCompressor compressor,
+            @NonNull InputStream istream,
+            int payloadSize)
+            throws IOException, ClassNotFoundException {
+        int b = istream.read();
+        Command cmd;
+        if (b == CommandCompressor.DEFLATED) {
+            try (InputStream iis = compressor.inflate(istream)) {
+                cmd = readFrom(channel, descriptors, iis.read(), iis);
+            }
+        } else {
+            cmd = readFrom(channel, descriptors, b, istream);
+        }
+        channel.notifyRead(cmd, payloadSize);
+        return cmd;
+    }
+
+    /**
+     * Reads an uncompressed command.
+     *
+     * @param b
+     *      The first byte of the command, already read from the stream.
+     */
+    private static Command readFrom(
+            @NonNull Channel channel, @NonNull ClassDescriptorTable descriptors, int b, @NonNull InputStream istream)
+            throws IOException, ClassNotFoundException {
+        if (CompactCommandCodec.isCompact(b)) {
+            return CompactCommandCodec.read(b, istream);
+        }
+        PushbackInputStream pis = new PushbackInputStream(istream);
+        if (b >= 0) {
+            pis.unread(b);
+        }
+        return Command.readFromObjectStream(
+                channel, descriptors.newInputStream(pis, channel.baseClassLoader, channel.classFilter));
+    }
+
     /** Consider calling {@link Channel#notifyRead} afterwards. */
     @SuppressFBWarnings(
             value = "OBJECT_DESERIALIZATION",
@@ -0,0 +1,200 @@
+package hudson.remoting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses the serialized form of commands sent over one {@link CommandTransport}, such as the pipe chunks
+ * of a remote {@link OutputStream} or the results of {@link UserRequest}s, which often compress well over
+ * links that are short on bandwidth.
+ *
+ * <p>
+ * Each command is compressed on its own, so that commands can keep being serialized concurrently by
+ * {@link CommandTransport#prepare(Command)} and written in any order. A compressed command is the tag byte
+ * {@link #DEFLATED}, which never starts the other forms of a command, followed by a zlib stream of its
+ * serialized form.
+ *
+ * <p>
+ * Compressing costs CPU on both sides, so it is adaptive: commands smaller than {@link #MIN_SIZE} are sent
+ * as is, and when a command does not shrink by at least an eighth, compression is skipped for the next
+ * commands, twice as many each time it keeps failing, as their contents are likely similar.
+ *
+ * <p>
+ * Commands larger than {@link #MAX_SIZE} are not compressed either, and a compressed command that inflates to
+ * more than {@link #MAX_INFLATED_SIZE} is rejected, so that a few bytes on the wire cannot take up an unbounded
+ * amount of memory.
+ *
+ * @see Capability#supportsCompression()
+ */
+/*package*/ final class CommandCompressor {
+    /**
+     * Read by {@link Command#readFrom(Channel, ClassDescriptorTable, CommandCompressor, InputStream, int)}.
+     */
+    /*package*/ static final int DEFLATED = 0x40;
+
+    /**
+     * Maximum number of commands that are sent uncompressed after a poor ratio.
+     */
+    private static final int MAX_BACKOFF = 64;
+
+    /**
+     * Number of commands that are still to be sent uncompressed.
+     */
+    private final AtomicInteger skip = new AtomicInteger();
+
+    /**
+     * Number of commands to skip the next time the ratio is poor.
+     */
+    private final AtomicInteger backoff = new AtomicInteger(1);
+
+    /**
+     * {@link Deflater}s not currently in use, as they are expensive to create.
+     */
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * {@link Inflater}s not currently in use.
+     */
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Checks if commands to the other side of the channel should go through {@link #compress(byte[], int, byte[])}.
+     */
+    /*package*/ static boolean isEnabled(Channel channel) {
+        return !DISABLED && channel.remoteCapability.supportsCompression();
+    }
+
+    /**
+     * Checks if a serialized command of the given length is worth compressing, which counts it as skipped if
+     * compression is backing off.
+     */
+    /*package*/ boolean shouldCompress(long length) {
+        return length >= MIN_SIZE
+                && length <= Math.min(MAX_SIZE, MAX_INFLATED_SIZE)
+                && skip.getAndUpdate(s -> s > 0 ? s - 1 : 0) == 0;
+    }
+
+    /**
+     * Size of the buffer that {@link #compress(byte[], int, byte[])} needs for a command of the given length, as
+     * anything that does not fit in there is not worth it.
+     */
+    /*package*/ static int bound(int length) {
+        return 1 + length - length / 8;
+    }
+
+    /**
+     * Compresses the serialized form of a command.
+     *
+     * @param out
+     *      At least {@link #bound(int)} bytes.
+     * @return
+     *      The number of bytes of the compressed form written to {@code out}, tag included, or {@code -1} if the
+     *      command did not shrink enough, in which case it is to be sent as is.
+     */
+    /*package*/ int compress(byte[] payload, int length, byte[] out) {
+        out[0] = DEFLATED;
+        int compressedLength = 1;
+        int limit = bound(length);
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL);
+        }
+        try {
+            deflater.setInput(payload, 0, length);
+            deflater.finish();
+            while (!deflater.finished() && compressedLength < limit) {
+                compressedLength += deflater.deflate(out, compressedLength, limit - compressedLength);
+            }
+            if (!deflater.finished()) {
+                int b = backoff.get();
+                backoff.set(Math.min(b * 2, MAX_BACKOFF));
+                skip.set(b);
+                return -1;
+            }
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+        backoff.set(1);
+        return compressedLength;
+    }
+
+    /**
+     * Inflates a compressed command, the {@link #DEFLATED} tag of which was already read.
+     * Closing the returned stream leaves the given one open.
+     */
+    /*package*/ InputStream inflate(InputStream in) {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        return new Inflated(in, inflater);
+    }
+
+    /**
+     * Fails once more than {@link #MAX_INFLATED_SIZE} bytes come out, and hands its {@link Inflater} back on close.
+     */
+    private final class Inflated extends InflaterInputStream {
+        private long inflated;
+        private boolean closed;
+
+        Inflated(InputStream in, Inflater inflater) {
+            super(in, inflater);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                inflated += n;
+                if (inflated > MAX_INFLATED_SIZE) {
+                    throw new IOException("Compressed command inflates to more than " + MAX_INFLATED_SIZE + " bytes");
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                inf.reset();
+                inflaters.offer(inf);
+            }
+        }
+    }
+
+    /**
+     * Commands smaller than this many bytes are never compressed.
+     */
+    static int MIN_SIZE = Integer.getInteger(CommandCompressor.class.getName() + ".minSize", 1024);
+
+    /**
+     * Compressed commands that inflate to more than this many bytes are rejected. Unlike {@link #MAX_SIZE}, this is
+     * not a setting, so that it is the same on both sides.
+     */
+    static int MAX_INFLATED_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Commands larger than this many bytes are never compressed. It can only be lowered, as commands larger than
+     * {@link #MAX_INFLATED_SIZE} would be rejected by the other side.
+     */
+    static int MAX_SIZE = Integer.getInteger(CommandCompressor.class.getName() + ".maxSize", MAX_INFLATED_SIZE);
+
+    /**
+     * The {@link Deflater} compression level.
+     */
+    static int LEVEL = Integer.getInteger(CommandCompressor.class.getName() + ".level", Deflater.BEST_SPEED);
+
+    /**
+     * Set to true to never compress commands.
+     */
+    static boolean DISABLED = Boolean.getBoolean(CommandCompressor.class.getName() + ".disabled");
+}
@@ -1,10 +1,18 @@
 package hudson.remoting;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import org.jenkinsci.remoting.util.ByteBufferQueue;
+import org.jenkinsci.remoting.util.ByteBufferQueueOutputStream;
 
 /**
  * Lower level abstraction under {@link Channel} for sending and receiving commands
@@ -142,6 +150,219 @@ public abstract class CommandTransport {
      */
     public abstract void write(Command cmd, boolean last) throws IOException;
 
+    /**
+     * Serializes the command ahead of {@link #write(PreparedCommand, boolean)}.
+     *
+     * <p>
+     * {@link Channel} calls this method from the sending thread <em>before</em> it takes the lock that
+     * orders writes, so any number of threads can be in this method concurrently. An implementation
+     * must therefore serialize the command into a private buffer without touching any state shared with
+     * other writers, and leave everything order-sensitive to {@link #write(PreparedCommand, boolean)}.
+     *
+     * @param cmd
+     *      The command object that needs to be sent. Never null.
+     * @return
+     *      The serialized form of the command, or {@code null} if this transport can only serialize
+     *      commands from within {@link #write(Command, boolean)}, which is the default.
+     */
+    @CheckForNull
+    /*package*/ PreparedCommand prepare(Command cmd) throws IOException {
+        return null;
+    }
+
+    /**
+     * Sends a command previously serialized by {@link #prepare(Command)} to the other side.
+     *
+     * {@link Channel} serializes the invocation of this method with {@link #write(Command, boolean)}
+     * for ordering, so this method only needs to hand the already serialized frames to the lower layer.
+     *
+     * @param cmd
+     *      The value returned from {@link #prepare(Command)} of this transport.
+     * @param last
+     *      Informational flag that indicates that this is the last command to be written.
+     */
+    /*package*/ void write(PreparedCommand cmd, boolean last) throws IOException {
+        write(cmd.command, last);
+    }
+
+    /**
+     * Serializes a command for the transports that support {@link ClassDescriptorTable}, {@link CompactCommandCodec}
+     * and {@link CommandCompressor}, to be read by
+     * {@link Command#readFrom(Channel, ClassDescriptorTable, CommandCompressor, InputStream, int)}.
+     *
+     * <p>
+     * The command is serialized straight into the given queue, which is expected to be empty, and only if it
+     * defines class descriptors, which have to go ahead of it, or is worth compressing is it copied.
+     *
+     * @return
+     *      The class descriptors defined by the serialized form, see {@link ClassDescriptorTable#commit(Map)}.
+     */
+    @CheckForNull
+    /*package*/ static Map<Class<?>, Integer> serialize(
+            Channel channel,
+            ClassDescriptorTable descriptors,
+            CommandCompressor compressor,
+            Command cmd,
+            ByteBufferQueue staging)
+            throws IOException {
+        ObjectOutputStream oos = serialize(channel, descriptors, cmd, new ByteBufferQueueOutputStream(staging));
+        byte[] header = ClassDescriptorTable.headerOf(oos);
+        long length = staging.remaining();
+        int headerLength = header == null ? 0 : header.length;
+        boolean compress = CommandCompressor.isEnabled(channel) && compressor.shouldCompress(headerLength + length);
+        if (header != null || compress) {
+            byte[] payload = new byte[(int) (headerLength + length)];
+            if (header != null) {
+                System.arraycopy(header, 0, payload, 0, headerLength);
+            }
+            staging.peek(ByteBuffer.wrap(payload, headerLength, (int) length));
+            int compressedLength = -1;
+            byte[] compressed = null;
+            if (compress) {
+                compressed = new byte[CommandCompressor.bound(payload.length)];
+                compressedLength = compressor.compress(payload, payload.length, compressed);
+            }
+            staging.skip(length);
+            if (compressedLength >= 0) {
+                staging.put(compressed, 0, compressedLength);
+            } else {
+                staging.put(payload, 0, payload.length);
+            }
+        }
+        return ClassDescriptorTable.definitionsOf(oos);
+    }
+
+    /**
+     * Serializes a command without the header of {@link ClassDescriptorTable#headerOf(ObjectOutputStream)}.
+     *
+     * @return
+     *      The stream it was serialized with, or {@code null} if the {@link CompactCommandCodec} wrote it.
+     */
+    @CheckForNull
+    private static ObjectOutputStream serialize(
+            Channel channel, ClassDescriptorTable descriptors, Command cmd, OutputStream out) throws IOException {
+        if (CompactCommandCodec.write(channel, cmd, out)) {
+            return null;
+        }
+        ObjectOutputStream oos = descriptors.newOutputStream(channel, out);
+        try (oos) {
+            cmd.writeTo(channel, oos);
+        }
+        return oos;
+    }
+
+    /**
+     * A {@link Command} that has already been serialized by {@link #prepare(Command)}.
+     */
+    /*package*/ abstract static class PreparedCommand {
+        /**
+         * The command that was serialized.
+         */
+        final Command command;
+
+        /**
+         * The class descriptors that the serialized form defines, to be passed to
+         * {@link ClassDescriptorTable#commit(Map)} once written.
+         */
+        @CheckForNull
+        final Map<Class<?>, Integer> definitions;
+
+        PreparedCommand(Command command, @CheckForNull Map<Class<?>, Integer> definitions) {
+            this.command = command;
+            this.definitions = definitions;
+        }
+    }
+
+    /**
+     * A {@link PreparedCommand} for transports that send each command as one {@code byte[]} block.
+     */
+    /*package*/ static final class PreparedBlock extends PreparedCommand {
+        /**
+         * The serialized command, in the first {@link #length} bytes.
+         */
+        final byte[] payload;
+
+        final int length;
+
+        private PreparedBlock(
+                Command command, byte[] payload, int length, @CheckForNull Map<Class<?>, Integer> definitions) {
+            super(command, definitions);
+            this.payload = payload;
+            this.length = length;
+        }
+
+        /**
+         * Serializes the command into a new block, which is only copied if it defines class descriptors, which have
+         * to go ahead of it, or is worth compressing.
+         */
+        static PreparedBlock serialize(
+                Channel channel, ClassDescriptorTable descriptors, CommandCompressor compressor, Command cmd)
+                throws IOException {
+            BlockOutputStream block = new BlockOutputStream();
+            ObjectOutputStream oos = CommandTransport.serialize(channel, descriptors, cmd, block);
+            Map<Class<?>, Integer> definitions = ClassDescriptorTable.definitionsOf(oos);
+            byte[] payload = block.buf();
+            int length = block.size();
+            byte[] header = ClassDescriptorTable.headerOf(oos);
+            if (header != null) {
+                byte[] b = new byte[header.length + length];
+                System.arraycopy(header, 0, b, 0, header.length);
+                System.arraycopy(payload, 0, b, header.length, length);
+                payload = b;
+                length = b.length;
+            }
+            if (CommandCompressor.isEnabled(channel) && compressor.shouldCompress(length)) {
+                byte[] compressed = new byte[CommandCompressor.bound(length)];
+                int compressedLength = compressor.compress(payload, length, compressed);
+                if (compressedLength >= 0) {
+                    return new PreparedBlock(cmd, compressed, compressedLength, definitions);
+                }
+            }
+            return new PreparedBlock(cmd, payload, length, definitions);
+        }
+
+        /**
+         * The serialized command as an array of its own length.
+         */
+        byte[] toByteArray() {
+            return payload.length == length ? payload : Arrays.copyOf(payload, length);
+        }
+    }
+
+    /**
+     * Hands its buffer over without copying it.
+     */
+    private static final class BlockOutputStream extends ByteArrayOutputStream {
+        byte[] buf() {
+            return buf;
+        }
+    }
+
+    /**
+     * Whether this transport can exchange heartbeats with {@link #writeHeartbeat(byte, long)}.
+     */
+    /*package*/ boolean supportsHeartbeats() {
+        return false;
+    }
+
+    /**
+     * Writes a heartbeat frame in between the frames of the commands being written, which the transport on the other
+     * side passes on to {@link Heartbeats#received(CommandTransport, byte, long)} without any command being read.
+     * Can be called from any thread, concurrently with {@link #write(Command, boolean)}, but never from the thread
+     * that reads, as it may block until the other side reads.
+     *
+     * <p>
+     * Does nothing by default, as {@link Channel} only sends heartbeats if {@link #supportsHeartbeats()}.
+     *
+     * @see Heartbeats
+     */
+    /*package*/ void writeHeartbeat(byte kind, long id) throws IOException {}
+
+    /**
+     * Adds the statistics of this transport, if any, to {@link Channel#dumpDiagnostics(PrintWriter)}.
+     */
+    /*package*/ void dumpDiagnostics(PrintWriter w) {}
+
     /**
      * Called to close the write side of the transport, allowing the underlying transport
      * to be shut down.
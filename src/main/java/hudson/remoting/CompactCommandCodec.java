@@ -0,0 +1,140 @@
+package hudson.remoting;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Hand written wire format for the tiny commands that remoting keeps sending to itself, such as pipe chunks
+ * and acks or the responses to {@link UserRequest}s. These are just a few ints and a {@code byte[]}, yet with
+ * Java serialization most of their bytes and of the CPU time spent on them go to the envelope.
+ *
+ * <p>
+ * A command in this form is a single tag byte followed by the fields of that command, where ints are written
+ * as unsigned varints and {@code byte[]}s as a varint length followed by the bytes. The tags never collide with
+ * the first byte of a serialization stream, so the receiving side can tell both forms apart.
+ *
+ * <p>
+ * Commands opt in by implementing {@link Command#writeCompact(OutputStream)}. Their creation trace is not sent,
+ * as if they had been created without recording it, so commands whose trace carries a cause are always sent
+ * with Java serialization.
+ *
+ * @see Capability#supportsCompactCommands()
+ */
+/*package*/ final class CompactCommandCodec {
+    /*package*/ static final int PIPE_CHUNK = 1;
+    /*package*/ static final int PIPE_FLUSH = 2;
+    /*package*/ static final int PIPE_EOF = 3;
+    /*package*/ static final int PIPE_UNEXPORT = 4;
+    /*package*/ static final int PIPE_ACK = 5;
+    /*package*/ static final int UNEXPORT = 6;
+    /*package*/ static final int CANCEL = 7;
+    /*package*/ static final int RESPONSE_NULL = 8;
+    /*package*/ static final int RESPONSE_NORMAL = 9;
+    /*package*/ static final int RESPONSE_EXCEPTION = 10;
+    /*package*/ static final int RENEW_LEASES = 11;
+    /*package*/ static final int BULK_UNEXPORT = 12;
+
+    private CompactCommandCodec() {}
+
+    /**
+     * Writes the command in the compact form, if both the other side and the command support it.
+     *
+     * @return
+     *      {@code false} if nothing was written and the command needs to be serialized instead.
+     */
+    /*package*/ static boolean write(Channel channel, Command cmd, OutputStream out) throws IOException {
+        if (DISABLED || !channel.remoteCapability.supportsCompactCommands()) {
+            return false;
+        }
+        if (cmd.createdAt != null && cmd.createdAt.getCause() != null) {
+            return false;
+        }
+        return cmd.writeCompact(out);
+    }
+
+    /**
+     * Checks if a payload that starts with the given byte is in the compact form.
+     */
+    /*package*/ static boolean isCompact(int firstByte) {
+        return firstByte >= PIPE_CHUNK && firstByte <= BULK_UNEXPORT;
+    }
+
+    /**
+     * Reads the rest of a command in the compact form.
+     *
+     * @param tag
+     *      The first byte of the payload, for which {@link #isCompact(int)} holds.
+     */
+    /*package*/ static Command read(int tag, InputStream in) throws IOException {
+        switch (tag) {
+            case PIPE_CHUNK:
+            case PIPE_FLUSH:
+            case PIPE_EOF:
+            case PIPE_UNEXPORT:
+            case PIPE_ACK:
+                return ProxyOutputStream.readCompact(tag, in);
+            case UNEXPORT:
+                return UnexportCommand.readCompact(in);
+            case CANCEL:
+                return Request.readCompactCancel(in);
+            case RESPONSE_NULL:
+            case RESPONSE_NORMAL:
+            case RESPONSE_EXCEPTION:
+                return Response.readCompact(tag, in);
+            case RENEW_LEASES:
+                return RenewLeasesCommand.readCompact(in);
+            case BULK_UNEXPORT:
+                return BulkUnexportCommand.readCompact(in);
+            default:
+                throw new StreamCorruptedException("Unknown compact command " + tag);
+        }
+    }
+
+    /*package*/ static void writeInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /*package*/ static int readInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    /*package*/ static void writeBytes(OutputStream out, byte[] bytes) throws IOException {
+        writeInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /*package*/ static byte[] readBytes(InputStream in) throws IOException {
+        int length = readInt(in);
+        if (length < 0) {
+            throw new StreamCorruptedException("Negative length " + length);
+        }
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException();
+        }
+        return bytes;
+    }
+
+    /**
+     * Set to true to always send commands with Java serialization.
+     */
+    static boolean DISABLED = Boolean.getBoolean(CompactCommandCodec.class.getName() + ".disabled");
+}
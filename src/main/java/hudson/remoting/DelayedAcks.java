@@ -0,0 +1,135 @@
+package hudson.remoting;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Acknowledges the bytes that the pipes of one {@link Channel} have written on behalf of the other side, so that
+ * the {@link PipeWindow} of the sender can grow back.
+ *
+ * <p>
+ * When {@link #ACK_DELAY_MILLIS} is set, rather than sending one ack per chunk, the bytes written to each pipe are
+ * added up and acked at once when they reach {@link #ACK_BYTES}, when that many milliseconds have passed, or when the
+ * channel sends some other command anyway, which is when the acks are likely to share a network write with it. An ack carries a number of bytes to
+ * add to the window, so the sender cannot tell a cumulative ack from a single one.
+ */
+/*package*/ final class DelayedAcks {
+    /**
+     * Creates the ack command of a kind of pipe.
+     */
+    /*package*/ interface Factory {
+        Command create(int oid, int size);
+    }
+
+    private final Channel channel;
+    private final Factory factory;
+
+    /**
+     * Bytes written but not acked yet, by oid.
+     */
+    private final Map<Integer, Integer> pending = new HashMap<>();
+
+    /**
+     * Lets {@link #flushIfPending()} skip the lock when there is nothing to ack, which is most of the time.
+     */
+    private volatile boolean hasPending;
+
+    private ScheduledFuture<?> scheduled;
+
+    /*package*/ DelayedAcks(Channel channel, Factory factory) {
+        this.channel = channel;
+        this.factory = factory;
+    }
+
+    /**
+     * Called once {@code size} bytes sent to the pipe {@code oid} have been written.
+     */
+    /*package*/ void ack(int oid, int size) {
+        if (ACK_DELAY_MILLIS <= 0) {
+            send(oid, size);
+            return;
+        }
+        int total;
+        synchronized (this) {
+            total = pending.merge(oid, size, Integer::sum);
+            if (total >= ACK_BYTES) {
+                pending.remove(oid);
+            } else {
+                hasPending = true;
+                if (scheduled == null) {
+                    scheduled = ChannelTimer.get().schedule(this::due, ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        send(oid, total);
+    }
+
+    /**
+     * Sends the pending acks, if any, ahead of another command.
+     */
+    /*package*/ void flushIfPending() {
+        if (hasPending) {
+            flush();
+        }
+    }
+
+    /**
+     * Hands the sending over to the {@link Channel#executor} once the delay is over, as sending may block on the
+     * network and the timer is shared by all channels.
+     */
+    private void due() {
+        try {
+            channel.executor.execute(this::flush);
+        } catch (RuntimeException e) {
+            // the channel is shutting down, and there is no use for the acks any more
+            LOGGER.log(Level.FINE, "Dropped the acks of a channel that is shutting down", e);
+        }
+    }
+
+    private void flush() {
+        Map<Integer, Integer> acks;
+        synchronized (this) {
+            if (scheduled != null) {
+                scheduled.cancel(false);
+                scheduled = null;
+            }
+            hasPending = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            acks = new HashMap<>(pending);
+            pending.clear();
+        }
+        acks.forEach(this::send);
+    }
+
+    private void send(int oid, int size) {
+        try {
+            channel.send(factory.create(oid, size));
+        } catch (ChannelClosedException x) {
+            // the other direction can be already closed if the connection
+            // shut down is initiated from this side. In that case, remain silent.
+        } catch (IOException e) {
+            // ignore errors
+            LOGGER.log(Level.WARNING, "Failed to ack the stream", e);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DelayedAcks.class.getName());
+
+    /**
+     * Number of bytes written to a pipe that are acked right away.
+     */
+    static int ACK_BYTES = Integer.getInteger(DelayedAcks.class.getName() + ".ackBytes", 8 * 1024);
+
+    /**
+     * Maximum number of milliseconds an ack is held back for; 0 to ack every chunk on its own.
+     */
+    static long ACK_DELAY_MILLIS = Long.getLong(DelayedAcks.class.getName() + ".ackDelayMillis", 0);
+}
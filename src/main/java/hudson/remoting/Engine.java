@@ -106,6 +106,7 @@ import org.jenkinsci.remoting.protocol.impl.ConnectionRefusalException;
 import org.jenkinsci.remoting.util.DurationFormatter;
 import org.jenkinsci.remoting.util.KeyUtils;
 import org.jenkinsci.remoting.util.VersionNumber;
+import org.jenkinsci.remoting.util.VirtualThreads;
 import org.jenkinsci.remoting.util.https.NoCheckHostnameVerifier;
 import org.jenkinsci.remoting.util.https.NoCheckTrustManager;
 import org.kohsuke.accmod.Restricted;
@@ -198,6 +199,19 @@ public class Engine extends Thread {
     @CheckForNull
     private JarCache jarCache = null;
 
+    /**
+     * Whether to record the classes and resources loaded from the controller, and fetch them ahead of time
+     * on the next connection.
+     */
+    private boolean warmUpClassLoading = false;
+
+    /**
+     * Directory of the {@link ClassLoadingManifest}s, one per controller.
+     * {@code null} if class loading is not warmed up.
+     */
+    @CheckForNull
+    private File warmUpDirectory;
+
     /**
      * Specifies a destination for the agent log.
      * If specified, this option overrides the default destination within {@link #workDir}.
@@ -301,9 +315,10 @@ public class Engine extends Thread {
     }
 
     private static ExecutorService makeExecutor(Engine engine, String agentName) {
-        return Executors.newCachedThreadPool(new ThreadFactory() {
-            private final ThreadFactory defaultFactory =
-                    new NamingThreadFactory(Executors.defaultThreadFactory(), agentName);
+        boolean virtual = VirtualThreads.isEnabled();
+        ThreadFactory factory = new ThreadFactory() {
+            private final ThreadFactory defaultFactory = new NamingThreadFactory(
+                    virtual ? VirtualThreads.newThreadFactory() : Executors.defaultThreadFactory(), agentName);
 
             @Override
             public Thread newThread(@NonNull final Runnable r) {
@@ -316,7 +331,8 @@ public class Engine extends Thread {
                         (t, e) -> LOGGER.log(Level.SEVERE, e, () -> "Uncaught exception in thread " + t));
                 return thread;
             }
-        });
+        };
+        return virtual ? VirtualThreads.newThreadPerTaskExecutor(factory) : Executors.newCachedThreadPool(factory);
     }
 
     /**
@@ -353,6 +369,9 @@ public class Engine extends Thread {
             final Path path = workDirManager.initializeWorkDir(workDir.toFile(), internalDir, failIfWorkDirIsMissing);
             jarCacheDirectory = workDirManager.getLocation(WorkDirManager.DirType.JAR_CACHE_DIR);
             workDirManager.setupLogging(path, agentLog);
+            if (warmUpClassLoading && path != null) {
+                warmUpDirectory = new File(path.toFile(), "warmUp");
+            }
         } else if (jarCache == null) {
             LOGGER.log(
                     Level.WARNING,
@@ -392,6 +411,32 @@ public class Engine extends Thread {
         this.jarCache = jarCache;
     }
 
+    /**
+     * Records the classes and resources loaded from the controller in the {@link #workDir},
+     * and fetches them ahead of time on the next connection to the same controller,
+     * so that the first build after a reconnection does not wait on them one at a time.
+     * Has no effect without a {@link #workDir}.
+     * @param warmUpClassLoading Flag
+     * @since TODO
+     */
+    public void setWarmUpClassLoading(boolean warmUpClassLoading) {
+        this.warmUpClassLoading = warmUpClassLoading;
+    }
+
+    /**
+     * Gets the {@link ClassLoadingManifest} file for the controller being connected to.
+     *
+     * @return {@code null} if class loading is not warmed up.
+     */
+    @CheckForNull
+    private File getClassLoadingManifest() {
+        String controller = hudsonUrl != null ? hudsonUrl.toString() : directConnection;
+        if (warmUpDirectory == null || controller == null) {
+            return null;
+        }
+        return new File(warmUpDirectory, Checksum.forBytes(controller.getBytes(StandardCharsets.UTF_8)) + ".manifest");
+    }
+
     /**
      * Sets path to the property file with JUL settings.
      * @param filePath JAR Cache to be used
@@ -697,6 +742,7 @@ public class Engine extends Thread {
                             transport = new Transport(session);
                             ch.set(new ChannelBuilder(agentName, executor)
                                     .withJarCacheOrDefault(jarCache)
+                                    .withClassLoadingManifest(getClassLoadingManifest())
                                     . // unless EngineJnlpConnectionStateListener can be used for this purpose
                                     build(transport));
                         } catch (IOException x) {
@@ -1374,6 +1420,7 @@ public class Engine extends Thread {
             if (jarCache != null) {
                 bldr.withJarCache(jarCache);
             }
+            bldr.withClassLoadingManifest(getClassLoadingManifest());
         }
 
         @Override
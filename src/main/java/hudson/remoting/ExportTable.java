@@ -36,6 +36,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.kohsuke.accmod.Restricted;
@@ -47,7 +50,12 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
  * @author Kohsuke Kawaguchi
  */
 final class ExportTable {
-    private final Map<Integer, Entry<?>> table = new HashMap<>();
+    /**
+     * Entries by object ID. Lookups take no lock, as every command to an exported object makes one;
+     * changes are made from within the monitor of this table.
+     */
+    private final IntKeyTable<Entry<?>> table = new IntKeyTable<>(e -> e.id);
+
     private final Map<Object, Entry<?>> reverse = new HashMap<>();
     /**
      * {@link ExportList}s which are actively recording the current
@@ -63,13 +71,38 @@ final class ExportTable {
      */
     private final List<Entry<?>> unexportLog = new LinkedList<>();
 
+    /**
+     * Timer wheel of the leased entries, by the tick their lease ends at, created with the first leased entry.
+     * An entry stays in its slot when its lease is renewed, and it is moved to a later slot when that slot comes up.
+     * Released entries are dropped from the wheel when their slot comes up.
+     */
+    @CheckForNull
+    private List<Entry<?>>[] wheel;
+
+    /**
+     * Length of a tick of {@link #wheel} in nanoseconds.
+     */
+    private long tickNanos;
+
+    /**
+     * Number of ticks done, the slot of the next one being {@code tick % WHEEL_SIZE}.
+     */
+    private long tick;
+
+    @CheckForNull
+    private ScheduledFuture<?> leaseTimer;
+
+    private final LongAdder leaseRenewals = new LongAdder();
+
+    private long leaseExpiries;
+
     /**
      * Information about one exported object.
      */
     private final class Entry<T> {
         final int id;
         private Class<? super T>[] interfaces;
-        private T object;
+        private volatile T object;
         /**
          * {@code object.getClass().getName()} kept around so that we can see the type even after it
          * gets deallocated.
@@ -92,6 +125,19 @@ final class ExportTable {
          * so accessing this field requires no further synchronization.
          */
         private int referenceCount;
+        /**
+         * Whether this entry is unexported once its lease ends, which holds as long as the object was only
+         * exported on a lease and has not been pinned.
+         */
+        private boolean leased;
+        /**
+         * {@link System#nanoTime()} at which the lease ends, if {@link #leased}.
+         */
+        private volatile long leaseEnd;
+        /**
+         * Whether this entry was unexported because its lease ended.
+         */
+        private boolean expired;
 
         Entry(@NonNull T object, Class<? super T>... interfaces) {
             this.id = iota++;
@@ -100,7 +146,7 @@ final class ExportTable {
             this.objectType = object.getClass().getName();
             this.allocationTrace = EXPORT_TRACES ? new CreatedAt() : null;
 
-            table.put(id, this);
+            table.put(this);
             reverse.put(object, this);
         }
 
@@ -129,6 +175,7 @@ final class ExportTable {
             if (referenceCount < 0x20000000) {
                 referenceCount += 0x40000000;
             }
+            leased = false;
         }
 
         /**
@@ -139,17 +186,24 @@ final class ExportTable {
          */
         void release(@CheckForNull Throwable callSite) {
             if (--referenceCount == 0) {
-                table.remove(id);
-                reverse.remove(object);
+                remove(callSite);
+            }
+        }
 
-                object = null;
-                if (EXPORT_TRACES) {
-                    releaseTrace = new ReleasedAt(callSite);
-                }
-                unexportLog.add(this);
-                while (unexportLog.size() > UNEXPORT_LOG_SIZE) {
-                    unexportLog.remove(0);
-                }
+        /**
+         * Removes the entry whatever its reference count.
+         */
+        void remove(@CheckForNull Throwable callSite) {
+            table.remove(id);
+            reverse.remove(object);
+
+            object = null;
+            if (EXPORT_TRACES) {
+                releaseTrace = new ReleasedAt(callSite);
+            }
+            unexportLog.add(this);
+            while (unexportLog.size() > UNEXPORT_LOG_SIZE) {
+                unexportLog.remove(0);
             }
         }
 
@@ -327,6 +381,26 @@ final class ExportTable {
      *      {@code 0} if the input parameter is {@code null}.
      */
     synchronized <T> int export(@NonNull Class<T> clazz, @CheckForNull T t, boolean notifyListener) {
+        return export(clazz, t, notifyListener, false);
+    }
+
+    /**
+     * Exports the given object.
+     * @param clazz Class of the object
+     * @param t Object to be exported
+     * @param notifyListener
+     *      If false, listener will not be notified.
+     * @param leased
+     *      If true, the other side renews the lease of the object for as long as it holds a proxy to it,
+     *      and the object gets unexported once the lease ends, unless it has also been exported without a lease.
+     * @return
+     *      The assigned 'object ID'. If the object is already exported,
+     *      it will return the ID already assigned to it.
+     *      {@code 0} if the input parameter is {@code null}.
+     * @see #LEASE_MILLIS
+     */
+    synchronized <T> int export(
+            @NonNull Class<T> clazz, @CheckForNull T t, boolean notifyListener, boolean leased) {
         if (t == null) {
             return 0; // bootstrap classloader
         }
@@ -334,8 +408,16 @@ final class ExportTable {
         Entry<T> e = (Entry<T>) reverse.get(t);
         if (e == null) {
             e = new Entry<>(t, clazz);
+            if (leased) {
+                startLease(e);
+            }
         } else {
             e.addInterface(clazz);
+            if (!leased) {
+                e.leased = false;
+            } else if (e.leased) {
+                e.leaseEnd = System.nanoTime() + leaseNanos();
+            }
         }
         e.addRef();
 
@@ -356,6 +438,81 @@ final class ExportTable {
         }
     }
 
+    /**
+     * Renews the leases of the given objects, without locking.
+     */
+    void renewLeases(@NonNull int[] oids) {
+        long end = System.nanoTime() + leaseNanos();
+        for (int oid : oids) {
+            Entry<?> e = table.get(oid);
+            if (e != null) {
+                e.leaseEnd = end;
+            }
+        }
+        leaseRenewals.add(oids.length);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void startLease(Entry<?> e) {
+        long now = System.nanoTime();
+        e.leased = true;
+        e.leaseEnd = now + leaseNanos();
+        if (wheel == null) {
+            wheel = new List[WHEEL_SIZE];
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel[i] = new ArrayList<>();
+            }
+            tickNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), leaseNanos() / LEASE_TICKS);
+            leaseTimer = ChannelTimer.get()
+                    .scheduleWithFixedDelay(this::expireLeases, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+        }
+        addToWheel(e, now);
+    }
+
+    /**
+     * Puts the entry into the slot of the tick its lease ends at, or into the last slot if that is further away.
+     */
+    private void addToWheel(Entry<?> e, long now) {
+        long ticks = (e.leaseEnd - now + tickNanos - 1) / tickNanos;
+        int k = (int) Math.max(1, Math.min(WHEEL_SIZE, ticks));
+        wheel[(int) ((tick + k - 1) % WHEEL_SIZE)].add(e);
+    }
+
+    /**
+     * Unexports the leased entries of the current slot of the {@link #wheel} whose lease has ended.
+     */
+    private synchronized void expireLeases() {
+        if (wheel == null) {
+            return; // aborted
+        }
+        int slot = (int) (tick % WHEEL_SIZE);
+        List<Entry<?>> due = wheel[slot];
+        wheel[slot] = new ArrayList<>();
+        tick++;
+        long now = System.nanoTime();
+        for (Entry<?> e : due) {
+            if (!e.leased || e.object == null) {
+                continue; // no longer leased, or already unexported
+            }
+            if (e.leaseEnd - now > 0) {
+                addToWheel(e, now);
+                continue;
+            }
+            LOGGER.log(
+                    Level.FINE, "Unexporting #{0} of type {1} as its lease was not renewed", new Object[] {
+                        e.id, e.objectType
+                    });
+            e.expired = true;
+            e.referenceCount = 0;
+            e.remove(null);
+            leaseExpiries++;
+        }
+    }
+
+    private static long leaseNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(LEASE_MILLIS);
+    }
+
     /**
      * Retrieves object by id.
      * @param id Object ID
@@ -364,10 +521,14 @@ final class ExportTable {
      *      The root cause will be diagnosed by {@link #diagnoseInvalidObjectId(int)}.
      */
     @NonNull
-    synchronized Object get(int id) throws ExecutionException {
+    Object get(int id) throws ExecutionException {
         Entry<?> e = table.get(id);
         if (e != null) {
-            return e.object;
+            // null if released since
+            Object o = e.object;
+            if (o != null) {
+                return o;
+            }
         }
 
         throw diagnoseInvalidObjectId(id);
@@ -379,7 +540,7 @@ final class ExportTable {
      * @return Object or {@code null} if the ID is missing in the {@link ExportTable}.
      */
     @CheckForNull
-    synchronized Object getOrNull(int oid) {
+    Object getOrNull(int oid) {
         Entry<?> e = table.get(oid);
         if (e != null) {
             return e.object;
@@ -389,7 +550,7 @@ final class ExportTable {
     }
 
     @NonNull
-    synchronized Class<?>[] type(int id) throws ExecutionException {
+    Class<?>[] type(int id) throws ExecutionException {
         Entry<?> e = table.get(id);
         if (e != null) {
             return e.getInterfaces();
@@ -412,7 +573,7 @@ final class ExportTable {
     void abort(@CheckForNull Throwable e) {
         List<Entry<?>> values;
         synchronized (this) {
-            values = new ArrayList<>(table.values());
+            values = table.values();
         }
         for (Entry<?> v : values) {
             if (v.object instanceof ErrorPropagatingOutputStream) {
@@ -430,6 +591,11 @@ final class ExportTable {
         synchronized (this) {
             table.clear();
             reverse.clear();
+            if (leaseTimer != null) {
+                leaseTimer.cancel(false);
+                leaseTimer = null;
+            }
+            wheel = null;
         }
     }
 
@@ -445,7 +611,10 @@ final class ExportTable {
         if (!unexportLog.isEmpty()) {
             for (Entry<?> e : unexportLog) {
                 if (e.id == id) {
-                    cause = new Exception("Object was recently deallocated\n" + Util.indent(e.dump()), e.releaseTrace);
+                    String message = e.expired
+                            ? "Object was unexported as its lease was not renewed\n"
+                            : "Object was recently deallocated\n";
+                    cause = new Exception(message + Util.indent(e.dump()), e.releaseTrace);
                     break;
                 }
             }
@@ -496,6 +665,17 @@ final class ExportTable {
         e.release(callSite);
     }
 
+    /**
+     * Removes the exported objects for the specified oids from the table, releasing an object as many times
+     * as its oid occurs.
+     * @param oids Object IDs
+     */
+    synchronized void unexportByOids(@NonNull int[] oids) {
+        for (int oid : oids) {
+            unexportByOid(oid, null, false);
+        }
+    }
+
     /**
      * Dumps the contents of the table to a file.
      * @throws IOException Output error
@@ -506,6 +686,21 @@ final class ExportTable {
         }
     }
 
+    /**
+     * Prints the size of the table and how leases fare.
+     */
+    synchronized void dumpDiagnostics(@NonNull PrintWriter w) {
+        int leased = 0;
+        for (Entry<?> e : table.values()) {
+            if (e.leased) {
+                leased++;
+            }
+        }
+        w.printf(
+                "  Exported objects=%d leased=%d lease renewals=%d lease expiries=%d%n",
+                table.size(), leased, leaseRenewals.sum(), leaseExpiries);
+    }
+
     /*package*/ synchronized boolean isExported(Object o) {
         return reverse.containsKey(o);
     }
@@ -518,5 +713,30 @@ final class ExportTable {
 
     static boolean EXPORT_TRACES = Boolean.getBoolean(ExportTable.class.getName() + ".exportTraces");
 
+    /**
+     * Number of milliseconds an object exported to a proxy that the other side unexports once it is garbage
+     * collected stays exported without the other side renewing its lease, or 0 to never unexport such objects
+     * unless told so. This guards against the unexport never coming, as when the other side loses it or a
+     * plugin there keeps its proxy in a way it cannot be collected after it stops using it.
+     * The length of the lease goes along with the proxy, and the other side renews it {@link #RENEWALS_PER_LEASE}
+     * times over that length.
+     */
+    static long LEASE_MILLIS = Long.getLong(ExportTable.class.getName() + ".leaseMillis", 0);
+
+    /**
+     * Number of times the other side renews a lease over its length, so that a late or lost renewal does not end it.
+     */
+    static final int RENEWALS_PER_LEASE = 4;
+
+    /**
+     * Number of slots of the timer wheel of leases.
+     */
+    private static final int WHEEL_SIZE = 16;
+
+    /**
+     * Number of ticks a lease lasts, which has to be less than {@link #WHEEL_SIZE}.
+     */
+    private static final int LEASE_TICKS = 8;
+
     private static final Logger LOGGER = Logger.getLogger(ExportTable.class.getName());
 }
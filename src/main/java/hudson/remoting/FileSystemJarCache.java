@@ -40,6 +40,11 @@ public class FileSystemJarCache extends JarCacheSupport {
     @GuardedBy("itself")
     private final Map<String, Checksum> checksumsByPath = new HashMap<>();
 
+    /**
+     * Images of the classes that do not come in a jar, kept next to the jars.
+     */
+    private final ClassImageCache classImageCache;
+
     // TODO: Create new IOException constructor
     /**
      * @param rootDir
@@ -62,6 +67,11 @@ public class FileSystemJarCache extends JarCacheSupport {
         } catch (IOException ex) {
             throw new IllegalArgumentException("Root directory not writable: " + rootDir, ex);
         }
+        this.classImageCache = new ClassImageCache(new File(rootDir, "images"));
+    }
+
+    /*package*/ ClassImageCache getClassImageCache() {
+        return classImageCache;
     }
 
     @Override
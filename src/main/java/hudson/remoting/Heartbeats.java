@@ -0,0 +1,252 @@
+package hudson.remoting;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Heartbeats that the chunked transports exchange in between the frames of commands, so that the liveness and the
+ * round trip time of a {@link Channel} can be measured without serializing a {@link Callable} nor waiting behind the
+ * commands that either side is executing.
+ *
+ * <p>
+ * A heartbeat is a frame whose {@link ChunkHeader} says it is empty and not the last of its command, which is never
+ * written otherwise, followed by {@link #BODY_SIZE} bytes: the kind, {@link #PING} or {@link #PONG}, and the ID of
+ * the ping as a long. The side that reads a ping writes back a pong from a thread of its own, as the reading thread
+ * must never wait for the writes to go through: with both sides reading a ping while their output is full, neither
+ * would read again. Those threads are not the {@link Channel#executor}, so that pongs never wait behind the requests
+ * that the channel is executing, and there is at most one per channel at a time, only while it has pongs to write,
+ * so that a channel whose output is stuck does not hold up the pongs of others. The pings that come in while a pong is being written are answered with
+ * a single pong, with the ID of the last of them, which answers all the pings up to that ID as frames are read in
+ * the order they were written.
+ *
+ * @see Capability#supportsHeartbeats()
+ */
+/*package*/ final class Heartbeats {
+    /**
+     * The {@link ChunkHeader} of a heartbeat frame.
+     */
+    /*package*/ static final int HEADER = 0x8000;
+
+    /**
+     * Number of bytes that follow {@link #HEADER}.
+     */
+    /*package*/ static final int BODY_SIZE = 9;
+
+    /*package*/ static final byte PING = 1;
+    /*package*/ static final byte PONG = 2;
+
+    private final Channel channel;
+
+    private final AtomicLong lastId = new AtomicLong();
+
+    /**
+     * The pings sent that have yet to come back, by ID.
+     */
+    private final ConcurrentNavigableMap<Long, Ping> pending = new ConcurrentSkipListMap<>();
+
+    /**
+     * ID of the last ping read that is yet to be answered, or {@code 0} if none.
+     */
+    private final AtomicLong pongDue = new AtomicLong();
+
+    /**
+     * Whether a thread is writing the pongs due.
+     */
+    private final AtomicBoolean answering = new AtomicBoolean();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * Round trip time in nanoseconds of the last ping that came back.
+     */
+    private volatile long lastRoundTrip;
+
+    /**
+     * Round trip time in nanoseconds of the slowest ping that came back.
+     */
+    private volatile long maxRoundTrip;
+
+    /*package*/ Heartbeats(Channel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Sends a ping.
+     *
+     * @return
+     *      Completed with the round trip time in nanoseconds when the pong comes back.
+     * @throws IOException
+     *      If the ping could not be written.
+     */
+    /*package*/ CompletableFuture<Long> ping(CommandTransport transport) throws IOException {
+        long id = lastId.incrementAndGet();
+        Ping p = new Ping(System.nanoTime());
+        pending.put(id, p);
+        p.whenComplete((v, x) -> pending.remove(id));
+        try {
+            transport.writeHeartbeat(PING, id);
+        } catch (IOException e) {
+            pending.remove(id);
+            throw e;
+        }
+        sent.incrementAndGet();
+        return p;
+    }
+
+    /**
+     * Called by the transport for each heartbeat read, from its reading thread, which this never blocks.
+     */
+    /*package*/ void received(CommandTransport transport, byte kind, long id) {
+        switch (kind) {
+            case PING:
+                pongDue.accumulateAndGet(id, Math::max);
+                answer(transport);
+                break;
+            case PONG:
+                long now = System.nanoTime();
+                Map<Long, Ping> answered = pending.headMap(id, true);
+                for (Long k : answered.keySet()) {
+                    Ping p = answered.remove(k);
+                    if (p != null) {
+                        long rtt = now - p.sentAt;
+                        received.incrementAndGet();
+                        lastRoundTrip = rtt;
+                        if (rtt > maxRoundTrip) {
+                            maxRoundTrip = rtt;
+                        }
+                        p.complete(rtt);
+                    }
+                }
+                break;
+            default:
+                LOGGER.log(Level.FINE, "Unknown heartbeat {0} in channel {1}", new Object[] {kind, channel.getName()});
+        }
+    }
+
+    /**
+     * Has a thread of {@link Writers} write the pongs due, unless one is already at it.
+     */
+    private void answer(CommandTransport transport) {
+        if (!answering.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Writers.POOL.execute(() -> writePongs(transport));
+        } catch (RejectedExecutionException e) {
+            // the channel is going down, the pings will not be answered
+            answering.set(false);
+        }
+    }
+
+    private void writePongs(CommandTransport transport) {
+        while (true) {
+            long id = pongDue.getAndSet(0);
+            if (id != 0) {
+                try {
+                    transport.writeHeartbeat(PONG, id);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, e, () -> "Failed to answer heartbeat in channel " + channel.getName());
+                }
+                continue;
+            }
+            answering.set(false);
+            // a ping read after the last check, but before the flag was cleared, is answered here
+            if (pongDue.get() == 0 || !answering.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fails the pings still pending, as the channel is going down.
+     */
+    /*package*/ void abort(Throwable cause) {
+        List<Ping> aborted = new ArrayList<>(pending.values());
+        pending.clear();
+        for (Ping p : aborted) {
+            p.completeExceptionally(new RequestAbortedException(cause));
+        }
+    }
+
+    /**
+     * Round trip time in nanoseconds of the last heartbeat that came back, or {@code -1} if none did yet.
+     */
+    /*package*/ long getLastRoundTrip() {
+        return received.get() == 0 ? -1 : lastRoundTrip;
+    }
+
+    /*package*/ void dumpDiagnostics(PrintWriter w) {
+        if (sent.get() == 0) {
+            return;
+        }
+        w.printf("  Heartbeats sent=%d%n", sent.get());
+        w.printf("  Heartbeats received=%d%n", received.get());
+        if (received.get() > 0) {
+            w.printf("  Last heartbeat round trip=%dus%n", TimeUnit.NANOSECONDS.toMicros(lastRoundTrip));
+            w.printf("  Max heartbeat round trip=%dus%n", TimeUnit.NANOSECONDS.toMicros(maxRoundTrip));
+        }
+    }
+
+    /**
+     * Writes a heartbeat frame, {@link ChunkHeader#SIZE} plus {@link #BODY_SIZE} bytes.
+     */
+    /*package*/ static void write(ByteBuffer buf, byte kind, long id) {
+        ChunkHeader.write(buf, 0, true);
+        writeBody(buf, kind, id);
+    }
+
+    /**
+     * Writes the {@link #BODY_SIZE} bytes of a heartbeat frame.
+     */
+    /*package*/ static void writeBody(ByteBuffer buf, byte kind, long id) {
+        buf.put(kind);
+        buf.putLong(id);
+    }
+
+    /**
+     * Reads the body of a heartbeat frame and passes it on to the channel, if there is one yet.
+     */
+    /*package*/ static void read(@CheckForNull Channel channel, CommandTransport transport, ByteBuffer body) {
+        byte kind = body.get();
+        long id = body.getLong();
+        if (channel != null) {
+            channel.heartbeats.received(transport, kind, id);
+        }
+    }
+
+    /**
+     * The threads that write the pongs of all channels, created as needed and let go once idle.
+     */
+    private static final class Writers {
+        private static final ExecutorService POOL = Executors.newCachedThreadPool(
+                new NamingThreadFactory(new DaemonThreadFactory(), Heartbeats.class.getSimpleName()));
+    }
+
+    private static final class Ping extends CompletableFuture<Long> {
+        private final long sentAt;
+
+        Ping(long sentAt) {
+            this.sentAt = sentAt;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Heartbeats.class.getName());
+}
@@ -50,7 +50,7 @@ final class ImportedClassLoaderTable {
     @NonNull
     public ClassLoader get(int oid) {
         return get(RemoteInvocationHandler.wrap(
-                channel, oid, RemoteClassLoader.IClassLoader.class, false, false, false, false));
+                channel, oid, RemoteClassLoader.IClassLoader.class, false, false, false, false, 0));
     }
 
     /**
@@ -61,8 +61,15 @@ final class ImportedClassLoaderTable {
      */
     @NonNull
     public ClassLoader get(@NonNull RemoteClassLoader.IClassLoader classLoaderProxy) {
+        ClassLoader cl = classLoaders.get(classLoaderProxy);
+        if (cl != null) {
+            return cl;
+        }
+        // not in computeIfAbsent, which would hold a lock over the remote call that creating it makes;
+        // if we race with another thread, the loser's class loader is simply dropped before it is ever used.
         // we need to be able to use the same hudson.remoting classes, hence delegate to this class loader.
-        return classLoaders.computeIfAbsent(
-                classLoaderProxy, proxy -> RemoteClassLoader.create(channel.baseClassLoader, proxy));
+        cl = RemoteClassLoader.create(channel.baseClassLoader, classLoaderProxy);
+        ClassLoader existing = classLoaders.putIfAbsent(classLoaderProxy, cl);
+        return existing != null ? existing : cl;
     }
 }
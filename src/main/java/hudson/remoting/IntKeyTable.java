@@ -0,0 +1,195 @@
+package hudson.remoting;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToIntFunction;
+
+/**
+ * Open addressing hash table of values that carry their own {@code int} key, such as the entries of
+ * {@link ExportTable} and their object IDs, so that neither the key is boxed nor an entry object is allocated
+ * per value.
+ *
+ * <p>
+ * {@link #get(int)} takes no lock. All the other methods must be called by one thread at a time, which
+ * {@link ExportTable} does by calling them from within its monitor. Slots are read and written through an
+ * {@link AtomicReferenceArray}, so a reader sees a value fully initialized, and a table that grows is filled in
+ * before it replaces the old one, which still holds the values it had for the readers that are in it.
+ *
+ * <p>
+ * Removed values leave a tombstone behind so that the probing for other keys goes on past them. The table is
+ * rebuilt once tombstones and values fill three quarters of it.
+ *
+ * @param <V> Type of the values.
+ */
+/*package*/ final class IntKeyTable<V> {
+    private static final Object TOMBSTONE = new Object();
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final ToIntFunction<? super V> keyOf;
+
+    /**
+     * Values, {@link #TOMBSTONE}s or {@code null}; the length is a power of two.
+     */
+    private volatile AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(MIN_CAPACITY);
+
+    private int size;
+
+    private int tombstones;
+
+    /*package*/ IntKeyTable(@NonNull ToIntFunction<? super V> keyOf) {
+        this.keyOf = keyOf;
+    }
+
+    /**
+     * Gets the value of a key, without locking.
+     */
+    @CheckForNull
+    @SuppressWarnings("unchecked")
+    /*package*/ V get(int key) {
+        AtomicReferenceArray<Object> s = slots;
+        int mask = s.length() - 1;
+        for (int i = indexFor(key, mask); ; i = (i + 1) & mask) {
+            Object o = s.get(i);
+            if (o == null) {
+                return null;
+            }
+            if (o != TOMBSTONE && keyOf.applyAsInt((V) o) == key) {
+                return (V) o;
+            }
+        }
+    }
+
+    /**
+     * Adds a value, replacing the value of the same key if any.
+     */
+    /*package*/ void put(@NonNull V value) {
+        if ((size + tombstones + 1) * 4L > slots.length() * 3L) {
+            rebuild((size + 1) * 2);
+        }
+        AtomicReferenceArray<Object> s = slots;
+        int key = keyOf.applyAsInt(value);
+        int index = find(s, key);
+        if (index >= 0) {
+            s.set(index, value);
+            return;
+        }
+        int mask = s.length() - 1;
+        for (int i = indexFor(key, mask); ; i = (i + 1) & mask) {
+            Object o = s.get(i);
+            if (o == null || o == TOMBSTONE) {
+                if (o == TOMBSTONE) {
+                    tombstones--;
+                }
+                s.set(i, value);
+                size++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the value of a key.
+     *
+     * @return
+     *      The value removed, or {@code null} if there was none.
+     */
+    @CheckForNull
+    @SuppressWarnings("unchecked")
+    /*package*/ V remove(int key) {
+        AtomicReferenceArray<Object> s = slots;
+        int index = find(s, key);
+        if (index < 0) {
+            return null;
+        }
+        V value = (V) s.get(index);
+        s.set(index, TOMBSTONE);
+        size--;
+        tombstones++;
+        if (size < s.length() / 8 && s.length() > MIN_CAPACITY) {
+            rebuild(size * 2);
+        }
+        return value;
+    }
+
+    /*package*/ void clear() {
+        slots = new AtomicReferenceArray<>(MIN_CAPACITY);
+        size = 0;
+        tombstones = 0;
+    }
+
+    /*package*/ int size() {
+        return size;
+    }
+
+    /**
+     * Copies the values, in no particular order.
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    /*package*/ List<V> values() {
+        AtomicReferenceArray<Object> s = slots;
+        List<V> values = new ArrayList<>(size);
+        for (int i = 0; i < s.length(); i++) {
+            Object o = s.get(i);
+            if (o != null && o != TOMBSTONE) {
+                values.add((V) o);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Index of the slot of a key, or -1.
+     */
+    @SuppressWarnings("unchecked")
+    private int find(AtomicReferenceArray<Object> s, int key) {
+        int mask = s.length() - 1;
+        for (int i = indexFor(key, mask); ; i = (i + 1) & mask) {
+            Object o = s.get(i);
+            if (o == null) {
+                return -1;
+            }
+            if (o != TOMBSTONE && keyOf.applyAsInt((V) o) == key) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * Replaces the slots by a table with room for {@code minSize} values and no tombstones.
+     */
+    @SuppressWarnings("unchecked")
+    private void rebuild(int minSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3L < minSize * 4L) {
+            capacity <<= 1;
+        }
+        AtomicReferenceArray<Object> old = slots;
+        AtomicReferenceArray<Object> s = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < old.length(); j++) {
+            Object o = old.get(j);
+            if (o != null && o != TOMBSTONE) {
+                int i = indexFor(keyOf.applyAsInt((V) o), mask);
+                while (s.get(i) != null) {
+                    i = (i + 1) & mask;
+                }
+                s.set(i, o);
+            }
+        }
+        slots = s;
+        tombstones = 0;
+    }
+
+    /**
+     * Spreads consecutive keys, which is how object IDs are allocated, over the table.
+     */
+    private static int indexFor(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ h >>> 16) & mask;
+    }
+}
@@ -79,6 +79,7 @@ import org.jenkinsci.remoting.engine.WorkDirManager;
 import org.jenkinsci.remoting.util.DurationFormatter;
 import org.jenkinsci.remoting.util.PathUtils;
 import org.jenkinsci.remoting.util.SettableFuture;
+import org.jenkinsci.remoting.util.VirtualThreads;
 import org.jenkinsci.remoting.util.https.NoCheckHostnameVerifier;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
@@ -300,6 +301,18 @@ public class Launcher {
     @Option(name = "-noKeepAlive", usage = "Disable TCP socket keep alive on connection to the controller.")
     public boolean noKeepAlive = false;
 
+    /**
+     * Records the classes loaded from the controller in the working directory,
+     * and fetches them ahead of time on the next connection.
+     * @since TODO
+     */
+    @Option(
+            name = "-warmUpClassLoading",
+            usage =
+                    "Records the classes loaded from the controller in the working directory and fetches them ahead of time on the next connection",
+            depends = "-workDir")
+    public boolean warmUpClassLoading = false;
+
     /**
      * Specifies a default working directory of the remoting instance.
      * If specified, this directory will be used to store logs, JAR cache, etc.
@@ -640,6 +653,9 @@ public class Launcher {
             if (failIfWorkDirIsMissing) {
                 jnlpArgs.add("-failIfWorkDirIsMissing");
             }
+            if (warmUpClassLoading) {
+                jnlpArgs.add("-warmUpClassLoading");
+            }
         }
         if (candidateCertificates != null && !candidateCertificates.isEmpty()) {
             for (String c : candidateCertificates) {
@@ -682,6 +698,9 @@ public class Launcher {
         if (bootstrap.failIfWorkDirIsMissing != WorkDirManager.DEFAULT_FAIL_IF_WORKDIR_IS_MISSING) {
             failIfWorkDirIsMissing = bootstrap.failIfWorkDirIsMissing;
         }
+        if (bootstrap.warmUpClassLoading) {
+            warmUpClassLoading = true;
+        }
     }
 
     private static void normalizeArguments(Launcher launcher) throws CmdLineException {
@@ -1019,7 +1038,9 @@ public class Launcher {
     public static void main(
             InputStream is, OutputStream os, Channel.Mode mode, boolean performPing, @CheckForNull JarCache cache)
             throws IOException, InterruptedException {
-        ExecutorService executor = Executors.newCachedThreadPool();
+        ExecutorService executor = VirtualThreads.isEnabled()
+                ? VirtualThreads.newExecutorService("channel")
+                : Executors.newCachedThreadPool();
         ChannelBuilder cb =
                 new ChannelBuilder("channel", executor).withMode(mode).withJarCacheOrDefault(cache);
 
@@ -1166,6 +1187,7 @@ public class Launcher {
         }
         engine.setInternalDir(internalDir);
         engine.setFailIfWorkDirIsMissing(failIfWorkDirIsMissing);
+        engine.setWarmUpClassLoading(warmUpClassLoading);
 
         return engine;
     }
@@ -0,0 +1,166 @@
+package hudson.remoting;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.remoting.util.ExecutorServiceUtils;
+
+/**
+ * Same as {@link SingleLaneExecutorService}, without taking a monitor for every task.
+ *
+ * <p>
+ * Any number of threads add tasks to a lock-free queue, and {@link #pending} counts the tasks that have been added
+ * but not run yet. The thread that raises it from zero schedules the runner on the base executor service, which
+ * runs tasks in the order they were added until it brings the count back to zero. So at most one task of the lane
+ * runs at any time, and a busy lane takes one thread of the base executor service instead of being submitted to it
+ * again after every task.
+ */
+/*package*/ final class LockFreeLaneExecutorService extends AbstractExecutorService {
+    private final ExecutorService base;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of tasks added to {@link #tasks} that the runner has not gone through yet.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * We are being shut down. No further submissions are allowed but existing tasks can continue.
+     */
+    private volatile boolean shuttingDown;
+
+    /**
+     * Counted down once every task has been executed after {@link #shutdown()}.
+     */
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private static final Logger LOGGER = Logger.getLogger(LockFreeLaneExecutorService.class.getName());
+
+    /**
+     * @param base
+     *      Executor service that actually provides the threads that execute tasks.
+     */
+    /*package*/ LockFreeLaneExecutorService(ExecutorService base) {
+        this.base = base;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * Note that this does not shutdown the wrapped {@link ExecutorService}.
+     */
+    @Override
+    public void shutdown() {
+        shuttingDown = true;
+        if (pending.get() == 0) {
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * Note that this does not shutdown the wrapped {@link ExecutorService}.
+     */
+    @Override
+    @NonNull
+    public List<Runnable> shutdownNow() {
+        shuttingDown = true;
+        List<Runnable> all = new ArrayList<>();
+        for (Runnable r; (r = tasks.poll()) != null; ) {
+            all.add(r);
+        }
+        // the runner still counts the tasks taken away from it
+        if (pending.get() == 0) {
+            terminated.countDown();
+        }
+        return all;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shuttingDown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        if (shuttingDown) {
+            throw new ExecutorServiceUtils.FatalRejectedExecutionException(
+                    "Cannot execute the command " + command + ". The executor service is shutting down");
+        }
+
+        tasks.add(command);
+
+        // If we haven't been scheduled yet, do so now
+        if (pending.getAndIncrement() == 0) {
+            try {
+                // Submit task in the async mode
+                ExecutorServiceUtils.submitAsync(base, runner);
+            } catch (ExecutorServiceUtils.ExecutionRejectedException ex) {
+                // Wrap by the runtime exception since there is no other solution here
+                throw new RejectedExecutionException(
+                        "Base executor service " + base + " has rejected the task " + command, ex);
+            }
+        }
+    }
+
+    private final Runnable runner = new Runnable() {
+        @Override
+        public void run() {
+            boolean more = true;
+            try {
+                while (more) {
+                    Runnable task = tasks.poll();
+                    try {
+                        if (task != null) { // null if taken away by shutdownNow()
+                            task.run();
+                        }
+                    } finally {
+                        more = pending.decrementAndGet() != 0;
+                    }
+                }
+            } finally {
+                if (more) {
+                    // a task failed with more things to do, which the next runner takes over
+                    try {
+                        ExecutorServiceUtils.submitAsync(base, this);
+                    } catch (ExecutorServiceUtils.ExecutionRejectedException ex) {
+                        LOGGER.log(
+                                Level.SEVERE,
+                                String.format(
+                                        "Base executor service %s has rejected the queue task %s. Propagating the RuntimeException to the caller.",
+                                        ex.getExecutorServiceDisplayName(), ex.getRunnableDisplayName()),
+                                ex);
+                        throw ExecutorServiceUtils.createRuntimeException(
+                                "Base executor service has rejected the task from the queue", ex);
+                    }
+                } else if (shuttingDown) {
+                    terminated.countDown();
+                }
+            }
+        }
+    };
+}
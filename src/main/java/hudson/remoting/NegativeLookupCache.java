@@ -0,0 +1,97 @@
+package hudson.remoting;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded set of the names that a {@link RemoteClassLoader} was told the other side does not have, so that probing
+ * for them again does not take a round trip every time.
+ *
+ * <p>
+ * Looking up a name takes no lock, as the class loader does that for every class and resource it is asked for,
+ * from as many threads as load classes in parallel. A name is dropped once it was added longer ago than the time
+ * to live, as the other side may have it by then, say when a plugin was installed in the meantime. Once there are
+ * more names than the limit, the names added the longest ago are dropped, down to three quarters of the limit,
+ * so the bound is only approximate while names are added concurrently.
+ *
+ * @since TODO
+ */
+/*package*/ final class NegativeLookupCache {
+    /**
+     * When each name was added, by {@link System#nanoTime()}.
+     */
+    private final Map<String, Long> names = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+
+    /**
+     * How long a name is kept for, in nanoseconds.
+     */
+    private final long ttl;
+
+    /**
+     * Whether a thread is dropping names to get back under {@link #maxSize}.
+     */
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /*package*/ NegativeLookupCache(int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    /*package*/ boolean contains(String name) {
+        Long added = names.get(name);
+        if (added == null) {
+            return false;
+        }
+        if (System.nanoTime() - added > ttl) {
+            names.remove(name, added);
+            return false;
+        }
+        return true;
+    }
+
+    /*package*/ void add(String name) {
+        names.put(name, System.nanoTime());
+        if (names.size() > maxSize) {
+            evict();
+        }
+    }
+
+    /*package*/ void clear() {
+        names.clear();
+    }
+
+    /*package*/ int size() {
+        return names.size();
+    }
+
+    /**
+     * Drops the expired names, then the names added the longest ago, unless another thread is already at it.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            names.values().removeIf(added -> now - added > ttl);
+            int excess = names.size() - (maxSize - maxSize / 4);
+            if (excess <= 0) {
+                return;
+            }
+            long[] ages = names.values().stream().mapToLong(added -> now - added).toArray();
+            if (excess >= ages.length) {
+                names.clear();
+                return;
+            }
+            Arrays.sort(ages);
+            long oldest = ages[ages.length - excess];
+            names.values().removeIf(added -> now - added >= oldest);
+        } finally {
+            evicting.set(false);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package hudson.remoting;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the serialized form of the {@link Callable} of a {@link UserRequest} or of its result as a list of
+ * fixed size chunks, so that a large payload is never copied into an array of its own size, which is what a
+ * {@link java.io.ByteArrayOutputStream} does as it grows and once more in
+ * {@link java.io.ByteArrayOutputStream#toByteArray()}.
+ *
+ * <p>
+ * A payload is serialized into this buffer once, written chunk by chunk into the outbound buffers of the
+ * transport by {@link #writeTo(OutputStream)}, read chunk by chunk from the inbound buffers of the transport by
+ * {@link #readFrom(InputStream)}, and deserialized from {@link #newInputStream()}. Chunks are small enough for
+ * the garbage collector not to treat them as huge objects.
+ */
+/*package*/ final class PayloadBuffer extends OutputStream {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+
+    /**
+     * Number of bytes used in the last chunk, or {@link #CHUNK_SIZE} if no more bytes go into it.
+     */
+    private int used = CHUNK_SIZE;
+
+    private int size;
+
+    @Override
+    public void write(int b) {
+        if (used == CHUNK_SIZE) {
+            chunks.add(new byte[CHUNK_SIZE]);
+            used = 0;
+        }
+        chunks.get(chunks.size() - 1)[used++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) {
+        if (len < 0 || Integer.MAX_VALUE - size < len) {
+            throw new IndexOutOfBoundsException("Cannot hold " + len + " more bytes");
+        }
+        while (len > 0) {
+            if (used == CHUNK_SIZE) {
+                chunks.add(new byte[CHUNK_SIZE]);
+                used = 0;
+            }
+            int n = Math.min(len, CHUNK_SIZE - used);
+            System.arraycopy(b, off, chunks.get(chunks.size() - 1), used, n);
+            used += n;
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    /**
+     * Number of bytes in this buffer.
+     */
+    /*package*/ int size() {
+        return size;
+    }
+
+    /**
+     * Copies the payload into a single array, for the forms of the commands that carry it as a {@code byte[]}.
+     */
+    /*package*/ byte[] toByteArray() {
+        byte[] bytes = new byte[size];
+        int pos = 0;
+        for (byte[] chunk : chunks) {
+            int n = Math.min(chunk.length, size - pos);
+            System.arraycopy(chunk, 0, bytes, pos, n);
+            pos += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the payload the way {@link CompactCommandCodec#writeBytes(OutputStream, byte[])} does.
+     */
+    /*package*/ void writeTo(OutputStream out) throws IOException {
+        CompactCommandCodec.writeInt(out, size);
+        int remaining = size;
+        for (byte[] chunk : chunks) {
+            int n = Math.min(chunk.length, remaining);
+            out.write(chunk, 0, n);
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Reads a payload written by {@link #writeTo(OutputStream)} or
+     * {@link CompactCommandCodec#writeBytes(OutputStream, byte[])}.
+     */
+    /*package*/ static PayloadBuffer readFrom(InputStream in) throws IOException {
+        int length = CompactCommandCodec.readInt(in);
+        if (length < 0) {
+            throw new StreamCorruptedException("Negative length " + length);
+        }
+        PayloadBuffer buffer = new PayloadBuffer();
+        while (buffer.size < length) {
+            byte[] chunk = new byte[Math.min(CHUNK_SIZE, length - buffer.size)];
+            if (in.readNBytes(chunk, 0, chunk.length) != chunk.length) {
+                throw new EOFException();
+            }
+            buffer.chunks.add(chunk);
+            buffer.size += chunk.length;
+        }
+        // the last chunk can be shorter, so anything written after goes into a new one
+        buffer.used = CHUNK_SIZE;
+        return buffer;
+    }
+
+    /**
+     * Reads the payload without copying it.
+     */
+    /*package*/ InputStream newInputStream() {
+        return new InputStream() {
+            private int index;
+            private int pos;
+            private int remaining = size;
+
+            @Override
+            public int read() {
+                if (remaining == 0) {
+                    return -1;
+                }
+                byte[] chunk = next();
+                remaining--;
+                return chunk[pos++] & 0xFF;
+            }
+
+            @Override
+            public int read(@NonNull byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (remaining == 0) {
+                    return -1;
+                }
+                byte[] chunk = next();
+                int n = Math.min(Math.min(len, chunk.length - pos), remaining);
+                System.arraycopy(chunk, pos, b, off, n);
+                pos += n;
+                remaining -= n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return remaining;
+            }
+
+            private byte[] next() {
+                byte[] chunk = chunks.get(index);
+                if (pos == chunk.length) {
+                    chunk = chunks.get(++index);
+                    pos = 0;
+                }
+                return chunk;
+            }
+        };
+    }
+}
@@ -41,6 +41,9 @@ import java.util.logging.Logger;
  * {@link #onDead()} method needs to be overridden to define
  * what to do when a connection appears to be dead.
  *
+ * <p>
+ * Each instance is a thread of its own, so consider {@link ScheduledPing} when pinging many channels.
+ *
  * @author Kohsuke Kawaguchi
  * @since 1.170
  */
@@ -154,7 +157,7 @@ public abstract class PingThread extends Thread {
         onDead(); // fall back
     }
 
-    private static final class Ping implements InternalCallable<Void, IOException> {
+    /*package*/ static final class Ping implements InternalCallable<Void, IOException> {
         private static final long serialVersionUID = 1L;
 
         @Override
@@ -27,6 +27,10 @@ import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,6 +50,11 @@ import java.util.logging.Logger;
  * writes data to {@link OutputStream}, it'll send back the "ack" command, which adds to this value, allowing
  * the sender to send more data.
  *
+ * <p>
+ * When {@link #AUTO_TUNE} is on, {@link Real} windows start at {@link Channel#PIPE_WINDOW_SIZE} and are then
+ * resized from the round trip time of the acks and the rate at which they come back, within the
+ * {@link #MAX_TOTAL} that all pipes of a channel share.
+ *
  * @author Kohsuke Kawaguchi
  */
 abstract class PipeWindow {
@@ -173,6 +182,11 @@ abstract class PipeWindow {
     @SuppressFBWarnings(value = "URF_UNREAD_FIELD", justification = "Legacy implementation")
     static class Real extends PipeWindow {
         private final int initial;
+        /**
+         * Current window size, which only changes if {@link #channel} is set.
+         */
+        private volatile int size;
+
         private int available;
         /**
          * Total bytes that left our side of the channel.
@@ -189,32 +203,156 @@ abstract class PipeWindow {
          * keeps this object accessible in {@link Channel#pipeWindows}.
          */
         private final Key key;
+        /**
+         * Guards the counters. Not a monitor, so that a virtual thread blocked in {@link #get(int)}
+         * does not pin its carrier thread.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition acks = lock.newCondition();
+
+        /**
+         * The channel whose {@link #MAX_TOTAL} this window shares, or {@code null} if the size of this window is fixed.
+         */
+        @CheckForNull
+        private final Channel channel;
+
+        /**
+         * Value of {@link #written} after the chunk whose ack ends the current round trip, or -1 if none is timed.
+         */
+        private long roundEnd = -1;
+
+        private long roundStartedAt;
+
+        private long roundStartAcked;
+
+        /**
+         * Whether {@link #get(int)} had to wait for acks during the current round trip.
+         */
+        private boolean limited;
+
+        private long minRtt = Long.MAX_VALUE;
+
+        private long smoothedRtt;
+
+        /**
+         * Bytes per second acked during the last round trip.
+         */
+        private long rate;
+
+        private long lastActive = System.nanoTime();
 
         Real(Key key, int initialSize) {
+            this(key, initialSize, null);
+        }
+
+        /**
+         * @param channel
+         *      If not {@code null}, the window is resized from the measured round trip time and ack rate.
+         */
+        Real(Key key, int initialSize, @CheckForNull Channel channel) {
             this.key = key;
             this.oid = key.oid;
             this.available = initialSize;
             this.initial = initialSize;
+            this.size = initialSize;
+            this.channel = channel;
         }
 
         @Override
         int max() {
-            return initial;
+            return size;
         }
 
         @Override
-        public synchronized void increase(int delta) {
-            if (LOGGER.isLoggable(Level.FINER)) {
-                LOGGER.finer(String.format("increase(%d,%d)->%d", oid, delta, delta + available));
+        public void increase(int delta) {
+            lock.lock();
+            try {
+                if (LOGGER.isLoggable(Level.FINER)) {
+                    LOGGER.finer(String.format("increase(%d,%d)->%d", oid, delta, delta + available));
+                }
+                available += delta;
+                acked += delta;
+                if (roundEnd >= 0 && acked >= roundEnd) {
+                    endRound(System.nanoTime());
+                }
+                acks.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Resizes the window TCP style once the chunk timed by {@link #roundEnd} is acked: double it if it kept
+         * the sender waiting while acks came back as fast as ever, or bring it down to twice the bandwidth-delay
+         * product if acks are slowing down, which means the receiver is not draining the pipe as fast as we fill it.
+         */
+        private void endRound(long now) {
+            long rtt = Math.max(now - roundStartedAt, 1);
+            minRtt = Math.min(minRtt, rtt);
+            smoothedRtt = smoothedRtt == 0 ? rtt : (7 * smoothedRtt + rtt) / 8;
+            rate = (acked - roundStartAcked) * TimeUnit.SECONDS.toNanos(1) / rtt;
+
+            int target = size;
+            // the other side may hold back its acks, presumably for as long as this side would
+            long slack = RTT_SLACK + TimeUnit.MILLISECONDS.toNanos(Math.max(DelayedAcks.ACK_DELAY_MILLIS, 0));
+            if (smoothedRtt > 2 * minRtt + slack) {
+                long bdp = rate * minRtt / TimeUnit.SECONDS.toNanos(1);
+                target = (int) Math.max(MIN_SIZE, Math.min(size, 2 * bdp));
+            } else if (limited && size < MAX_SIZE) {
+                target += channel.reservePipeWindow(Math.min(size, MAX_SIZE - size));
+            }
+            resize(target);
+            roundEnd = -1;
+            limited = false;
+        }
+
+        private void resize(int newSize) {
+            if (newSize != size) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(String.format("resize(%d,%d)->%d", oid, size, newSize));
+                }
+                available += newSize - size;
+                size = newSize;
+                acks.signalAll();
+            }
+        }
+
+        /**
+         * Gives back what this window grew by if it has not been written to for a while, so that other pipes of
+         * the channel can grow instead.
+         *
+         * @return
+         *      The number of bytes given back.
+         */
+        /*package*/ int shrinkIfIdle(long now) {
+            // never blocks, as the window that asks for more may be holding its own lock
+            if (lock.isHeldByCurrentThread() || !lock.tryLock()) {
+                return 0;
+            }
+            try {
+                int target = Math.min(size, MIN_SIZE);
+                if (now - lastActive < IDLE_NANOS || target == size) {
+                    return 0;
+                }
+                int freed = size - target;
+                resize(target);
+                minRtt = Long.MAX_VALUE;
+                smoothedRtt = 0;
+                return freed;
+            } finally {
+                lock.unlock();
             }
-            available += delta;
-            acked += delta;
-            notifyAll();
         }
 
         @Override
-        public synchronized int peek() {
-            return available;
+        public int peek() {
+            lock.lock();
+            try {
+                return available;
+            } finally {
+                lock.unlock();
+            }
         }
 
         /**
@@ -223,38 +361,106 @@ abstract class PipeWindow {
         @Override
         public int get(int min) throws InterruptedException, IOException {
             checkDeath();
-            synchronized (this) {
+            lock.lock();
+            try {
                 if (available >= min) {
                     return available;
                 }
 
-                while (available < min) {
-                    wait(100);
+                limited = true;
+                // the window may shrink below what the caller asked for, based on max(), while we wait
+                while (available < Math.min(min, size)) {
+                    acks.await(100, TimeUnit.MILLISECONDS);
                     checkDeath();
                 }
 
                 return available;
+            } finally {
+                lock.unlock();
             }
         }
 
         @Override
-        public synchronized void decrease(int delta) {
-            if (LOGGER.isLoggable(Level.FINER)) {
-                LOGGER.finer(String.format("decrease(%d,%d)->%d", oid, delta, available - delta));
+        public void decrease(int delta) {
+            lock.lock();
+            try {
+                if (LOGGER.isLoggable(Level.FINER)) {
+                    LOGGER.finer(String.format("decrease(%d,%d)->%d", oid, delta, available - delta));
+                }
+                available -= delta;
+                written += delta;
+                if (channel != null) {
+                    long now = System.nanoTime();
+                    lastActive = now;
+                    if (roundEnd < 0) {
+                        roundEnd = written;
+                        roundStartedAt = now;
+                        roundStartAcked = acked;
+                    }
+                }
+                /*
+                HUDSON-7745 says the following assertion fails, which AFAICT is only possible if multiple
+                threads write to OutputStream concurrently, but that doesn't happen in most of the situations, so
+                I'm puzzled. For the time being, cheating by just suppressing the assertion.
+
+                HUDSON-7581 appears to be related.
+                */
+                //            if (available<0)
+                //                throw new AssertionError();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /*package*/ void dumpDiagnostics(PrintWriter w) {
+            lock.lock();
+            try {
+                w.printf(
+                        "  Pipe %d window=%d in flight=%d rtt=%dus min rtt=%dus rate=%d bytes/s%n",
+                        oid,
+                        size,
+                        written - acked,
+                        TimeUnit.NANOSECONDS.toMicros(smoothedRtt),
+                        minRtt == Long.MAX_VALUE ? 0 : TimeUnit.NANOSECONDS.toMicros(minRtt),
+                        rate);
+            } finally {
+                lock.unlock();
             }
-            available -= delta;
-            written += delta;
-            /*
-            HUDSON-7745 says the following assertion fails, which AFAICT is only possible if multiple
-            threads write to OutputStream concurrently, but that doesn't happen in most of the situations, so
-            I'm puzzled. For the time being, cheating by just suppressing the assertion.
-
-            HUDSON-7581 appears to be related.
-            */
-            //            if (available<0)
-            //                throw new AssertionError();
         }
     }
 
+    /**
+     * Set to true to resize windows from the round trips of their acks, instead of keeping every window at
+     * {@link Channel#PIPE_WINDOW_SIZE}.
+     */
+    static boolean AUTO_TUNE = Boolean.getBoolean(PipeWindow.class.getName() + ".autoTune");
+
+    /**
+     * Size a window never shrinks below, nor needs {@link #MAX_TOTAL} for.
+     */
+    static int MIN_SIZE = Integer.getInteger(PipeWindow.class.getName() + ".minSize", 64 * 1024);
+
+    /**
+     * Size a window never grows beyond.
+     */
+    static int MAX_SIZE = Integer.getInteger(PipeWindow.class.getName() + ".maxSize", 16 * 1024 * 1024);
+
+    /**
+     * Combined size of the windows of one channel beyond which they no longer grow, which bounds the memory
+     * that the receiver may need for the chunks it has yet to write.
+     */
+    static long MAX_TOTAL = Long.getLong(PipeWindow.class.getName() + ".maxTotal", 64L * 1024 * 1024);
+
+    /**
+     * Round trip times that vary by less than this, plus the time acks are held back for, are not a sign of a slow
+     * receiver.
+     */
+    private static final long RTT_SLACK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Windows not written to for this long give back what they grew by.
+     */
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
     private static final Logger LOGGER = Logger.getLogger(PipeWindow.class.getName());
 }
@@ -1,10 +1,10 @@
 package hudson.remoting;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -46,6 +46,11 @@ import java.util.concurrent.atomic.AtomicInteger;
  *
  * I/O ID tracking and synchronization is per thread. This prevents the regression of JENKINS-5977.
  *
+ * <p>
+ * As only the last I/O ID of a thread is waited for, even when the thread wrote to several streams, the I/O
+ * tasks of a {@link Channel} all run in a single lane in the order they are received, and waiting for one task
+ * waits for every task before it.
+ *
  * <h2>Backward Compatibility</h2>
  * <p>
  * When one side (say sender) predates I/O ID, the other side sees all I/O IDs as 0. So the receiver won't actually does the
@@ -95,24 +100,12 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @author Kohsuke Kawaguchi
  */
 class PipeWriter {
-    private static final class FutureHolder {
-        private Future<?> f;
-
-        public synchronized Future<?> set(Future<?> f) {
-            this.f = f;
-            notifyAll();
-            return f;
-        }
-
-        public synchronized Future<?> get() throws InterruptedException {
-            while (f == null) {
-                wait();
-            }
-            return f;
-        }
-    }
-
-    private final Map<Integer, FutureHolder> pendingIO = Collections.synchronizedMap(new HashMap<>());
+    /**
+     * Tasks by I/O ID until they complete. A {@link FutureTask} tracks its completion and its waiters without
+     * a monitor, so neither a virtual thread waiting in {@link #get(int)} nor the writer signalling it pins a
+     * carrier thread.
+     */
+    private final Map<Integer, FutureTask<?>> pendingIO = new ConcurrentHashMap<>();
 
     /**
      * Actually carries out the {@link Runnable}s.
@@ -143,29 +136,36 @@ class PipeWriter {
             return base.submit(command);
         }
 
-        // this indirection is needed to ensure that put happens before remove
-        // if we store Future itself, then remove can happen before put, and
-        // we'll end up leaking
-        FutureHolder fh = new FutureHolder();
+        // the task is registered before it is queued, so that it cannot complete, and be removed, before
+        // it is put
+        FutureTask<?> task = new FutureTask<Void>(
+                () -> {
+                    final Thread t = Thread.currentThread();
+                    final String oldName = t.getName();
+                    try {
+                        t.setName(oldName + " : IO ID=" + id + " : seq#=" + iota.getAndIncrement());
+                        command.run();
+                    } finally {
+                        t.setName(oldName);
+                    }
+                },
+                null) {
+            @Override
+            protected void done() {
+                pendingIO.remove(id, this);
+            }
+        };
 
-        FutureHolder old = pendingIO.put(id, fh);
+        FutureTask<?> old = pendingIO.put(id, task);
         assert old == null;
 
-        return fh.set(base.submit(new Runnable() {
-            @Override
-            public void run() {
-                final Thread t = Thread.currentThread();
-                final String oldName = t.getName();
-                try {
-                    t.setName(oldName + " : IO ID=" + id + " : seq#=" + iota.getAndIncrement());
-                    command.run();
-                } finally {
-                    FutureHolder old = pendingIO.remove(id);
-                    assert old != null;
-                    t.setName(oldName);
-                }
-            }
-        }));
+        try {
+            base.execute(task);
+        } catch (RuntimeException e) {
+            pendingIO.remove(id, task);
+            throw e;
+        }
+        return task;
     }
 
     /**
@@ -181,11 +181,11 @@ class PipeWriter {
      *      cannot necessarily be able to distinguish the normal and abnormal completion of the task.
      */
     public Future<?> get(int id) throws InterruptedException {
-        FutureHolder f = pendingIO.get(id);
+        Future<?> f = pendingIO.get(id);
         if (f == null) {
             return SIGNALED; // already completed
         }
-        return f.get();
+        return f;
     }
 
     private static final Future<?> SIGNALED = new AsyncFutureImpl<>(new Object());
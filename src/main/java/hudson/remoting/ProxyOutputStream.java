@@ -25,9 +25,13 @@ package hudson.remoting;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,6 +56,17 @@ final class ProxyOutputStream extends OutputStream implements ErrorPropagatingOu
      */
     private Throwable error;
 
+    /**
+     * Guards the state of the stream. Not a monitor, so that a virtual thread blocked in a write
+     * does not pin its carrier thread.
+     */
+    private final Lock lock = new ReentrantLock();
+
+    /**
+     * Signalled when the stream gets connected or closed.
+     */
+    private final Condition stateChanged = lock.newCondition();
+
     /**
      * Creates unconnected {@link ProxyOutputStream}.
      * The returned stream accepts data right away, and
@@ -73,23 +88,28 @@ final class ProxyOutputStream extends OutputStream implements ErrorPropagatingOu
     /**
      * Connects this stream to the specified remote object.
      */
-    synchronized void connect(@NonNull Channel channel, int oid) throws IOException {
-        if (this.channel != null) {
-            throw new IllegalStateException("Cannot connect twice");
-        }
-        if (oid == 0) {
-            throw new IllegalArgumentException("oid=0");
-        }
-        this.channel = channel;
-        this.oid = oid;
+    void connect(@NonNull Channel channel, int oid) throws IOException {
+        lock.lock();
+        try {
+            if (this.channel != null) {
+                throw new IllegalStateException("Cannot connect twice");
+            }
+            if (oid == 0) {
+                throw new IllegalArgumentException("oid=0");
+            }
+            this.channel = channel;
+            this.oid = oid;
 
-        window = channel.getPipeWindow(oid);
+            window = channel.getPipeWindow(oid);
 
-        if (closed) { // already marked closed?
-            doClose(error);
-        }
+            if (closed) { // already marked closed?
+                doClose(error);
+            }
 
-        notifyAll(); // release blocking writes
+            stateChanged.signalAll(); // release blocking writes
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -98,14 +118,15 @@ final class ProxyOutputStream extends OutputStream implements ErrorPropagatingOu
     }
 
     @Override
-    public synchronized void write(@NonNull byte[] b, int off, int len) throws IOException {
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        lock.lock();
         try {
             // block until stream gets connected
             while (channel == null) {
                 if (closed) {
                     throw new IOException("stream is already closed");
                 }
-                wait();
+                stateChanged.await();
             }
 
             final int max = window.max();
@@ -144,39 +165,55 @@ final class ProxyOutputStream extends OutputStream implements ErrorPropagatingOu
                    with 2. Further analysis would be needed to determine the best value.
                 */
                 sendable = Math.min(sendable, max / 2);
+                // nor hold up the requests sent meanwhile for long, see SendLanes
+                sendable = Math.min(sendable, SendLanes.MAX_BULK_CHUNK);
 
-                channel.send(new Chunk(channel.newIoId(), oid, b, off, sendable));
+                Chunk chunk = new Chunk(channel.newIoId(), oid, b, off, sendable);
+                channel.send(chunk);
+                chunk.detach();
                 window.decrease(sendable);
                 off += sendable;
                 len -= sendable;
             }
         } catch (InterruptedException e) {
             throw (IOException) new InterruptedIOException().initCause(e);
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
-    public synchronized void flush() throws IOException {
-        if (channel != null && /* see #finalize */ oid != -1) {
-            channel.send(new Flush(channel.newIoId(), oid));
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            if (channel != null && /* see #finalize */ oid != -1) {
+                channel.send(new Flush(channel.newIoId(), oid));
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
-    public synchronized void close() throws IOException {
+    public void close() throws IOException {
         error(null);
     }
 
     @Override
-    public synchronized void error(Throwable e) throws IOException {
-        if (!closed) {
-            closed = true;
-            error = e;
-        }
-        if (channel != null) {
-            doClose(e);
+    public void error(Throwable e) throws IOException {
+        lock.lock();
+        try {
+            if (!closed) {
+                closed = true;
+                error = e;
+            }
+            if (channel != null) {
+                doClose(e);
+            }
+            stateChanged.signalAll(); // unblock any pending write
+        } finally {
+            lock.unlock();
         }
-        notifyAll(); // unblock any pending write
     }
 
     private void doClose(Throwable error) throws IOException {
@@ -228,12 +265,31 @@ final class ProxyOutputStream extends OutputStream implements ErrorPropagatingOu
 
     /**
      * {@link Command} for sending bytes.
+     *
+     * <p>
+     * On the sending side, the bytes are not copied out of the buffer passed to {@link #write(byte[], int, int)}:
+     * the transport serializes them straight from there while {@link Channel#send(Command)} runs, and
+     * {@link #detach()} only copies them if it has not.
      */
     private static final class Chunk extends Command {
         private final int oid;
         private final int ioId;
-        private final int requestId = Request.getCurrentRequestId();
-        private final byte[] buf;
+        private final int requestId;
+        private byte[] buf;
+
+        /**
+         * Whether the bytes are {@link #length} bytes of {@link #buf} from {@link #start},
+         * which belongs to the writer, rather than the whole of it.
+         */
+        private transient boolean slice;
+
+        private transient int start;
+        private transient int length;
+
+        /**
+         * Whether the bytes have been serialized.
+         */
+        private transient boolean serialized;
 
         public Chunk(int ioId, int oid, byte[] buf, int start, int len) {
             // to improve the performance when a channel is used purely as a pipe,
@@ -242,14 +298,69 @@ final class ProxyOutputStream extends OutputStream implements ErrorPropagatingOu
             super(false);
             this.ioId = ioId;
             this.oid = oid;
-            if (start == 0 && len == buf.length) {
-                this.buf = buf;
-            } else {
-                this.buf = new byte[len];
-                System.arraycopy(buf, start, this.buf, 0, len);
+            this.requestId = Request.getCurrentRequestId();
+            this.buf = buf;
+            if (start != 0 || len != buf.length) {
+                this.slice = true;
+                this.start = start;
+                this.length = len;
             }
         }
 
+        private Chunk(int ioId, int oid, int requestId, byte[] buf) {
+            super(false);
+            this.ioId = ioId;
+            this.oid = oid;
+            this.requestId = requestId;
+            this.buf = buf;
+        }
+
+        @Override
+        synchronized boolean writeCompact(OutputStream out) throws IOException {
+            out.write(CompactCommandCodec.PIPE_CHUNK);
+            CompactCommandCodec.writeInt(out, ioId);
+            CompactCommandCodec.writeInt(out, oid);
+            CompactCommandCodec.writeInt(out, requestId);
+            CompactCommandCodec.writeInt(out, length());
+            out.write(buf, slice ? start : 0, length());
+            serialized = true;
+            return true;
+        }
+
+        /**
+         * Keeps the Java serialized form of a slice as it always was.
+         */
+        private synchronized Object writeReplace() {
+            serialized = true;
+            return slice ? new Chunk(ioId, oid, requestId, copy()) : this;
+        }
+
+        /**
+         * Called once {@link Channel#send(Command)} returns, after which the writer may reuse its buffer.
+         * Copies the bytes in case the transport holds on to this command without having serialized it.
+         */
+        synchronized void detach() {
+            if (slice && !serialized) {
+                buf = copy();
+                slice = false;
+            }
+        }
+
+        private byte[] copy() {
+            byte[] copy = new byte[length];
+            System.arraycopy(buf, start, copy, 0, length);
+            return copy;
+        }
+
+        private int length() {
+            return slice ? length : buf.length;
+        }
+
+        @Override
+        boolean isBulk() {
+            return true;
+        }
+
         @Override
         protected void execute(final Channel channel) throws ExecutionException {
             final OutputStream os;
@@ -278,15 +389,7 @@ final class ProxyOutputStream extends OutputStream implements ErrorPropagatingOu
                     }
                 } finally {
                     if (channel.remoteCapability.supportsPipeThrottling()) {
-                        try {
-                            channel.send(new Ack(oid, buf.length));
-                        } catch (ChannelClosedException x) {
-                            // the other direction can be already closed if the connection
-                            // shut down is initiated from this side. In that case, remain silent.
-                        } catch (IOException e) {
-                            // ignore errors
-                            LOGGER.log(Level.WARNING, "Failed to ack the stream", e);
-                        }
+                        channel.outputStreamAcks.ack(oid, buf.length);
                     }
                 }
             }));
@@ -294,7 +397,7 @@ final class ProxyOutputStream extends OutputStream implements ErrorPropagatingOu
 
         @Override
         public String toString() {
-            return "Pipe.Chunk(" + oid + "," + buf.length + ")";
+            return "Pipe.Chunk(" + oid + "," + length() + ")";
         }
 
         private static final long serialVersionUID = 1L;
@@ -305,13 +408,27 @@ final class ProxyOutputStream extends OutputStream implements ErrorPropagatingOu
      */
     private static final class Flush extends Command {
         private final int oid;
-        private final int requestId = Request.getCurrentRequestId();
+        private final int requestId;
         private final int ioId;
 
         public Flush(int ioId, int oid) {
+            this(ioId, oid, Request.getCurrentRequestId());
+        }
+
+        private Flush(int ioId, int oid, int requestId) {
             super(false);
             this.ioId = ioId;
             this.oid = oid;
+            this.requestId = requestId;
+        }
+
+        @Override
+        boolean writeCompact(OutputStream out) throws IOException {
+            out.write(CompactCommandCodec.PIPE_FLUSH);
+            CompactCommandCodec.writeInt(out, ioId);
+            CompactCommandCodec.writeInt(out, oid);
+            CompactCommandCodec.writeInt(out, requestId);
+            return true;
         }
 
         @Override
@@ -349,6 +466,20 @@ final class ProxyOutputStream extends OutputStream implements ErrorPropagatingOu
             this.oid = oid;
         }
 
+        private Unexport(int ioId, int oid, boolean recordCreatedAt) {
+            super(recordCreatedAt);
+            this.ioId = ioId;
+            this.oid = oid;
+        }
+
+        @Override
+        boolean writeCompact(OutputStream out) throws IOException {
+            out.write(CompactCommandCodec.PIPE_UNEXPORT);
+            CompactCommandCodec.writeInt(out, ioId);
+            CompactCommandCodec.writeInt(out, oid);
+            return true;
+        }
+
         @Override
         protected void execute(final Channel channel) {
             channel.pipeWriter.submit(ioId, () -> channel.unexport(oid, createdAt, false));
@@ -367,16 +498,37 @@ final class ProxyOutputStream extends OutputStream implements ErrorPropagatingOu
      */
     private static final class EOF extends Command {
         private final int oid;
-        private final int requestId = Request.getCurrentRequestId();
+        private final int requestId;
         private final int ioId;
         private final Throwable error;
 
         public EOF(int ioId, int oid, Throwable error) {
             this.ioId = ioId;
             this.oid = oid;
+            this.requestId = Request.getCurrentRequestId();
             this.error = error;
         }
 
+        private EOF(int ioId, int oid, int requestId) {
+            super(false);
+            this.ioId = ioId;
+            this.oid = oid;
+            this.requestId = requestId;
+            this.error = null;
+        }
+
+        @Override
+        boolean writeCompact(OutputStream out) throws IOException {
+            if (error != null) {
+                return false;
+            }
+            out.write(CompactCommandCodec.PIPE_EOF);
+            CompactCommandCodec.writeInt(out, ioId);
+            CompactCommandCodec.writeInt(out, oid);
+            CompactCommandCodec.writeInt(out, requestId);
+            return true;
+        }
+
         @Override
         protected void execute(final Channel channel) {
             final OutputStream os = (OutputStream) channel.getExportedObjectOrNull(oid);
@@ -406,6 +558,13 @@ final class ProxyOutputStream extends OutputStream implements ErrorPropagatingOu
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Creates the {@link DelayedAcks} that sends the {@link Ack}s of this kind of pipe.
+     */
+    /*package*/ static DelayedAcks newDelayedAcks(Channel channel) {
+        return new DelayedAcks(channel, Ack::new);
+    }
+
     /**
      * {@link Command} to notify the sender that it can send some more data.
      */
@@ -425,6 +584,14 @@ final class ProxyOutputStream extends OutputStream implements ErrorPropagatingOu
             this.size = size;
         }
 
+        @Override
+        boolean writeCompact(OutputStream out) throws IOException {
+            out.write(CompactCommandCodec.PIPE_ACK);
+            CompactCommandCodec.writeInt(out, oid);
+            CompactCommandCodec.writeInt(out, size);
+            return true;
+        }
+
         @Override
         protected void execute(Channel channel) {
             PipeWindow w = channel.getPipeWindow(oid);
@@ -464,5 +631,31 @@ final class ProxyOutputStream extends OutputStream implements ErrorPropagatingOu
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Reads the commands of this class written by {@link Command#writeCompact(OutputStream)}.
+     */
+    /*package*/ static Command readCompact(int tag, InputStream in) throws IOException {
+        switch (tag) {
+            case CompactCommandCodec.PIPE_CHUNK:
+                return new Chunk(
+                        CompactCommandCodec.readInt(in),
+                        CompactCommandCodec.readInt(in),
+                        CompactCommandCodec.readInt(in),
+                        CompactCommandCodec.readBytes(in));
+            case CompactCommandCodec.PIPE_FLUSH:
+                return new Flush(
+                        CompactCommandCodec.readInt(in), CompactCommandCodec.readInt(in), CompactCommandCodec.readInt(in));
+            case CompactCommandCodec.PIPE_EOF:
+                return new EOF(
+                        CompactCommandCodec.readInt(in), CompactCommandCodec.readInt(in), CompactCommandCodec.readInt(in));
+            case CompactCommandCodec.PIPE_UNEXPORT:
+                return new Unexport(CompactCommandCodec.readInt(in), CompactCommandCodec.readInt(in), false);
+            case CompactCommandCodec.PIPE_ACK:
+                return new Ack(CompactCommandCodec.readInt(in), CompactCommandCodec.readInt(in));
+            default:
+                throw new IllegalArgumentException("Unexpected tag " + tag);
+        }
+    }
+
     private static final Logger LOGGER = Logger.getLogger(ProxyOutputStream.class.getName());
 }
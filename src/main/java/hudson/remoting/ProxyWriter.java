@@ -163,6 +163,8 @@ final class ProxyWriter extends Writer {
                        with 2. Further analysis would be needed to determine the best value.
                     */
                     sendable = Math.min(sendable, max / 2);
+                    // nor hold up the requests sent meanwhile for long, see SendLanes; a char is two bytes
+                    sendable = Math.min(sendable, SendLanes.MAX_BULK_CHUNK / 2);
                 } catch (InterruptedException e) {
                     throw (IOException) new InterruptedIOException().initCause(e);
                 }
@@ -284,6 +286,11 @@ final class ProxyWriter extends Writer {
             }
         }
 
+        @Override
+        boolean isBulk() {
+            return true;
+        }
+
         @Override
         protected void execute(final Channel channel) throws ExecutionException {
             final Writer os = (Writer) channel.getExportedObject(oid);
@@ -305,15 +312,7 @@ final class ProxyWriter extends Writer {
                     }
                 } finally {
                     if (channel.remoteCapability.supportsProxyWriter2_35()) {
-                        try {
-                            channel.send(new Ack(oid, buf.length));
-                        } catch (ChannelClosedException x) {
-                            // the other direction can be already closed if the connection
-                            // shut down is initiated from this side. In that case, remain silent.
-                        } catch (IOException e) {
-                            // ignore errors
-                            LOGGER.log(Level.WARNING, "Failed to ack the stream", e);
-                        }
+                        channel.writerAcks.ack(oid, buf.length);
                     }
                 }
             });
@@ -428,6 +427,13 @@ final class ProxyWriter extends Writer {
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Creates the {@link DelayedAcks} that sends the {@link Ack}s of this kind of pipe.
+     */
+    /*package*/ static DelayedAcks newDelayedAcks(Channel channel) {
+        return new DelayedAcks(channel, Ack::new);
+    }
+
     /**
      * {@link Command} to notify the sender that it can send some more data.
      * @since 2.35
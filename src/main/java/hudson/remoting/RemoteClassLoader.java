@@ -26,6 +26,7 @@ package hudson.remoting;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -36,17 +37,26 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jenkinsci.constant_pool_scanner.ConstantPoolScanner;
@@ -71,6 +81,12 @@ final class RemoteClassLoader extends URLClassLoader {
 
     private static final Logger LOGGER = Logger.getLogger(RemoteClassLoader.class.getName());
 
+    static {
+        // loads of different classes need not wait for one another. those of the same class still take turns
+        // on the lock of its name, so only the first of them fetches it from the other side.
+        registerAsParallelCapable();
+    }
+
     interface Interruptible {
         void run() throws InterruptedException;
     }
@@ -110,6 +126,44 @@ final class RemoteClassLoader extends URLClassLoader {
      */
     static int MAX_RETRIES = Integer.getInteger(RemoteClassLoader.class.getName() + "maxRetries", 6000);
 
+    /**
+     * How many levels of references {@link IClassLoader#fetch3(String)} follows from the requested class to find
+     * the classes to send along with it. The default value of 1 only sends the classes the requested class refers to.
+     */
+    static int PREFETCH_DEPTH = Integer.getInteger(RemoteClassLoader.class.getName() + ".prefetchDepth", 1);
+
+    /**
+     * The most classes {@link IClassLoader#fetch3(String)} sends in one response, the requested class included.
+     */
+    static int PREFETCH_MAX_CLASSES =
+            Integer.getInteger(RemoteClassLoader.class.getName() + ".prefetchMaxClasses", 1000);
+
+    /**
+     * The most bytes of class files {@link IClassLoader#fetch3(String)} scans for references in one request.
+     */
+    static long PREFETCH_MAX_BYTES =
+            Long.getLong(RemoteClassLoader.class.getName() + ".prefetchMaxBytes", 4 * 1024 * 1024);
+
+    /**
+     * How many class names, and separately how many resource names, each {@link RemoteClassLoader} remembers
+     * the other side not to have. Zero disables the negative lookup cache.
+     */
+    static int NEGATIVE_CACHE_SIZE =
+            Integer.getInteger(RemoteClassLoader.class.getName() + ".negativeCacheSize", 4096);
+
+    /**
+     * How many seconds a {@link RemoteClassLoader} remembers that the other side did not have a class or resource,
+     * after which it asks again.
+     */
+    static long NEGATIVE_CACHE_TTL_SECONDS =
+            Long.getLong(RemoteClassLoader.class.getName() + ".negativeCacheTtlSeconds", 60);
+
+    /**
+     * How many classes, or resources, are asked for in each call when fetching those a {@link ClassLoadingManifest}
+     * lists ahead of time.
+     */
+    static int WARM_UP_BATCH_SIZE = Integer.getInteger(RemoteClassLoader.class.getName() + ".warmUpBatchSize", 1000);
+
     /**
      * Proxy to the code running on remote end.
      * <p>
@@ -130,21 +184,49 @@ final class RemoteClassLoader extends URLClassLoader {
      */
     private /*mostly final*/ Channel.Ref channel;
 
-    private final Map<String, URLish> resourceMap = new HashMap<>();
-    private final Map<String, Vector<URLish>> resourcesMap = new HashMap<>();
+    private final Map<String, URLish> resourceMap = new ConcurrentHashMap<>();
+    private final Map<String, Vector<URLish>> resourcesMap = new ConcurrentHashMap<>();
 
     /**
-     * List of jars that are already pre-fetched through {@link #addURL(URL)}.
+     * Lookups of {@link #resourceMap} and {@link #resourcesMap} in progress, so that the threads looking up
+     * the same resource at the same time share one remote call.
+     */
+    private final ConcurrentMap<String, CompletableFuture<URLish>> resourceFetches = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, CompletableFuture<Vector<URLish>>> resourcesFetches =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Classes that the other side could not find.
+     */
+    private final NegativeLookupCache missingClasses =
+            new NegativeLookupCache(NEGATIVE_CACHE_SIZE, TimeUnit.SECONDS.toNanos(NEGATIVE_CACHE_TTL_SECONDS));
+
+    /**
+     * Resources that the other side could not find.
+     */
+    private final NegativeLookupCache missingResources =
+            new NegativeLookupCache(NEGATIVE_CACHE_SIZE, TimeUnit.SECONDS.toNanos(NEGATIVE_CACHE_TTL_SECONDS));
+
+    /**
+     * Jars that are already pre-fetched through {@link #addURL(URL)}, or being so, completed once they are.
      *
      * <p>
-     * Note that URLs in this set are URLs on the other peer.
+     * Note that URLs in this map are URLs on the other peer.
      */
-    private final Set<URL> prefetchedJars = new HashSet<>();
+    private final ConcurrentMap<URL, CompletableFuture<Void>> prefetchedJars = new ConcurrentHashMap<>();
 
     /**
      * {@link ClassFile}s that were sent by remote as pre-fetch.
      */
-    private final Map<String, ClassReference> prefetchedClasses = Collections.synchronizedMap(new HashMap<>());
+    private final Map<String, ClassReference> prefetchedClasses = new ConcurrentHashMap<>();
+
+    /**
+     * Where what this class loader loads from the other side is recorded, or {@code null} if it is not,
+     * or not yet for an unnamed class loader.
+     */
+    @CheckForNull
+    private volatile ClassLoadingManifest.Section recording;
 
     /**
      * Creates a remotable classloader
@@ -163,20 +245,28 @@ final class RemoteClassLoader extends URLClassLoader {
         }
 
         String name;
+        String recordAs;
         try {
             name = proxy.getName();
+            recordAs = name;
         } catch (IOException ignored) {
+            recordAs = null;
             name = String.format(Locale.ROOT, "unknown-due-to-io-error %1$#x", System.identityHashCode(proxy));
         } catch (IllegalStateException ignored) {
             // IllegalStateException is thrown if the method does not exist on the remote side.
             // TODO remove this at some point in the future when Jenkins sets the minimum remoting version to
             // 3244.vf7f977e04755 or higher
+            recordAs = null;
             name = String.format(
                     Locale.ROOT,
                     "upgrade-remoting-to-3244.vf7f977e04755-or-higher %1$#x",
                     System.identityHashCode(proxy));
         }
-        return new RemoteClassLoader(name, parent, proxy);
+        RemoteClassLoader rcl = new RemoteClassLoader(name, parent, proxy);
+        if (recordAs != null) {
+            rcl.record(recordAs);
+        }
+        return rcl;
     }
 
     private RemoteClassLoader(String name, @CheckForNull ClassLoader parent, @NonNull IClassLoader proxy) {
@@ -190,6 +280,130 @@ final class RemoteClassLoader extends URLClassLoader {
         this.proxy = proxy;
     }
 
+    /**
+     * Starts recording what this class loader loads in the {@link ClassLoadingManifest} of the channel, if it has one,
+     * under the given key, and fetches ahead of time what the previous session recorded there.
+     */
+    private synchronized void record(String key) {
+        final Channel channel = channel();
+        ClassLoadingManifest manifest = channel == null ? null : channel.getClassLoadingManifest();
+        if (recording != null || manifest == null) {
+            return;
+        }
+        ClassLoadingManifest.Section section = manifest.open(key);
+        if (section == null) {
+            return;
+        }
+        recording = section;
+        if (section.claimWarmUp()
+                && channel.remoteCapability.supportsBulkFetch()
+                && !(proxy instanceof DumbClassLoaderBridge)) {
+            channel.executor.submit(() -> warmUp(channel, section));
+        }
+    }
+
+    /**
+     * Records a class loaded from the other side, which for an unnamed class loader also starts the recording.
+     */
+    private void recordClass(String name) {
+        ClassLoadingManifest.Section section = recording;
+        if (section == null && getName() == null) {
+            record("@" + name);
+            section = recording;
+        }
+        if (section != null) {
+            section.addClass(name);
+        }
+    }
+
+    private void recordResource(String name) {
+        ClassLoadingManifest.Section section = recording;
+        if (section != null) {
+            section.addResource(name);
+        }
+    }
+
+    /**
+     * Fetches the classes and resources the previous session recorded, in batches, and keeps them as prefetched,
+     * so that loading them later does not take a round trip. Those the other side no longer has are dropped from
+     * the record.
+     */
+    private void warmUp(Channel channel, ClassLoadingManifest.Section section) {
+        try {
+            Set<Checksum> jars = new HashSet<>();
+            ClassImageCache cache =
+                    channel.remoteCapability.supportsClassImageCache() ? channel.getClassImageCache() : null;
+            String[] classes = section.getClasses();
+            for (int i = 0; i < classes.length && !channel.isClosingOrClosed(); i += WARM_UP_BATCH_SIZE) {
+                String[] batch = Arrays.copyOfRange(classes, i, Math.min(classes.length, i + WARM_UP_BATCH_SIZE));
+                Map<String, long[]> hints = new HashMap<>();
+                long[] cachedSums = null;
+                if (cache != null) {
+                    int length = 0;
+                    for (String cn : batch) {
+                        long[] h = cache.getSums(cn);
+                        hints.put(cn, h);
+                        length += h.length;
+                    }
+                    cachedSums = new long[length];
+                    int pos = 0;
+                    for (long[] h : hints.values()) {
+                        System.arraycopy(h, 0, cachedSums, pos, h.length);
+                        pos += h.length;
+                    }
+                }
+                Map<String, ClassFile2> all = proxy.fetchAll(batch, cachedSums);
+                for (String cn : batch) {
+                    ClassFile2 cf = all.get(cn);
+                    if (cf == null || cf.image == null) {
+                        section.removeClass(cn);
+                        continue;
+                    }
+                    if (cache != null) {
+                        keep(cache, cn, hints.get(cn), Collections.singleton(cf));
+                    }
+                    if (findLoadedClass(cn) != null) {
+                        continue;
+                    }
+                    ClassReference ref = new ClassReference(channel.importedClassLoaders.get(cf.classLoader), cf.image);
+                    ref.rememberIn(cn, this);
+                    ref.rememberIn(cn, ref.classLoader);
+                    if (cf.image instanceof ResourceImageInJar) {
+                        ResourceImageInJar image = (ResourceImageInJar) cf.image;
+                        if (jars.add(new Checksum(image.sum1, image.sum2))) {
+                            // have the jar on its way before the first of its classes is needed
+                            image._resolveJarURL(channel);
+                        }
+                    }
+                    channel.classLoadingWarmUpCount.incrementAndGet();
+                }
+            }
+
+            String[] resources = section.getResources();
+            for (int i = 0; i < resources.length && !channel.isClosingOrClosed(); i += WARM_UP_BATCH_SIZE) {
+                String[] batch =
+                        Arrays.copyOfRange(resources, i, Math.min(resources.length, i + WARM_UP_BATCH_SIZE));
+                Map<String, ResourceFile> all = proxy.getResourceAll(batch);
+                for (String rn : batch) {
+                    ResourceFile rf = all.get(rn);
+                    if (rf == null || rf.image == null) {
+                        section.removeResource(rn);
+                        continue;
+                    }
+                    if (!resourceMap.containsKey(rn)) {
+                        resourceMap.putIfAbsent(rn, rf.image.resolveURL(channel, rn).get());
+                        channel.classLoadingWarmUpCount.incrementAndGet();
+                    }
+                }
+            }
+            LOGGER.log(Level.FINE, "Warmed up {0}", this);
+        } catch (IOException | ExecutionException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to fetch the classes and resources of " + this + " ahead of time", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Returns the backing channel or {@code null} if the channel is disconnected or otherwise unavailable.
      *
@@ -231,18 +445,30 @@ final class RemoteClassLoader extends URLClassLoader {
             if (channel == null || !channel.isRemoteClassLoadingAllowed()) {
                 throw e;
             }
+            if (missingClasses.contains(name)) {
+                channel.negativeCacheHitCount.incrementAndGet();
+                throw e;
+            }
             // delegate to remote
+            Class<?> c;
             if (channel.remoteCapability.supportsMultiClassLoaderRPC()) {
-                return loadWithMultiClassLoader(name, channel);
+                c = loadWithMultiClassLoader(name, channel);
             } else {
-                return fetchFromProxy(name, channel);
+                c = fetchFromProxy(name, channel);
             }
+            recordClass(name);
+            return c;
         }
     }
 
     private Class<?> fetchFromProxy(String name, Channel channel) throws ClassNotFoundException {
         long startTime = System.nanoTime();
-        byte[] bytes = proxy.fetch(name);
+        byte[] bytes;
+        try {
+            bytes = proxy.fetch(name);
+        } catch (ClassNotFoundException x) {
+            throw missing(name, x);
+        }
         channel.classLoadingTime.addAndGet(System.nanoTime() - startTime);
         channel.classLoadingCount.incrementAndGet();
         return loadClassFile(name, bytes);
@@ -266,7 +492,11 @@ final class RemoteClassLoader extends URLClassLoader {
             cr = prefetchClassReference(name, channel);
         } else {
             LOGGER.log(Level.FINER, "fetch2 on {0}", name);
-            cr = new ClassReference(channel, proxy.fetch2(name));
+            try {
+                cr = new ClassReference(channel, proxy.fetch2(name));
+            } catch (ClassNotFoundException x) {
+                throw missing(name, x);
+            }
         }
         channel.classLoadingTime.addAndGet(System.nanoTime() - startTime);
         channel.classLoadingCount.incrementAndGet();
@@ -342,13 +572,57 @@ final class RemoteClassLoader extends URLClassLoader {
         return MAX_RETRIES <= 0 || tries <= MAX_RETRIES;
     }
 
-    private boolean isRetryException(Throwable e) {
+    private static boolean isRetryException(Throwable e) {
         return e instanceof InterruptedException
                 || (e instanceof RemotingSystemException
                         && (e.getCause() instanceof InterruptedException
                                 || e.getCause() instanceof InterruptedIOException));
     }
 
+    /**
+     * {@link IClassLoader#fetch3(String)} that keeps the images that come by {@link ResourceImageCached} in the cache,
+     * and tells the other side which of those it already has.
+     */
+    private Map<String, ClassFile2> fetch5(String name, ClassImageCache cache) throws ClassNotFoundException {
+        long[] hints = cache.getSums(name);
+        Map<String, ClassFile2> all = proxy.fetch5(name, hints);
+        keep(cache, name, hints, all.values());
+        return all;
+    }
+
+    /**
+     * Keeps the images that came by {@link ResourceImageCached} in the cache, and remembers their checksums
+     * as those that come with the given class.
+     *
+     * @param hints
+     *      The checksums already remembered for the class, as from {@link ClassImageCache#getSums(String)}.
+     */
+    private static void keep(ClassImageCache cache, String name, long[] hints, Collection<ClassFile2> files) {
+        Set<Checksum> sums = new LinkedHashSet<>();
+        for (int i = 0; i + 1 < hints.length; i += 2) {
+            sums.add(new Checksum(hints[i], hints[i + 1]));
+        }
+        int known = sums.size();
+        for (ClassFile2 cf : files) {
+            if (cf.image instanceof ResourceImageCached) {
+                ResourceImageCached image = (ResourceImageCached) cf.image;
+                if (image.payload != null) {
+                    cache.put(image.getChecksum(), image.payload);
+                }
+                sums.add(image.getChecksum());
+            }
+        }
+        if (sums.size() > known) {
+            long[] merged = new long[sums.size() * 2];
+            int i = 0;
+            for (Checksum sum : sums) {
+                merged[i++] = sum.sum1;
+                merged[i++] = sum.sum2;
+            }
+            cache.putSums(name, merged);
+        }
+    }
+
     private ClassReference prefetchClassReference(String name, Channel channel) throws ClassNotFoundException {
         ClassReference cr;
         cr = prefetchedClasses.remove(name);
@@ -360,50 +634,64 @@ final class RemoteClassLoader extends URLClassLoader {
                 try {
                     invokeClassReferenceLoadTestingHookIfNeeded();
 
-                    Map<String, ClassFile2> all = proxy.fetch3(name);
-                    synchronized (prefetchedClasses) {
-                        /*
-                         * Converts {@link ClassFile2} to {@link ClassReference} with minimal
-                         * proxy creation. This creates a reference to {@link ClassLoader}, so
-                         * it shouldn't be kept beyond the scope of single {@link #findClass(String)}  call.
-                         */
-                        class ClassReferenceBuilder {
-                            private final Map<Integer, ClassLoader> classLoaders = new HashMap<>();
-
-                            ClassReference toRef(ClassFile2 cf) {
-                                int n = cf.classLoader;
-
-                                ClassLoader cl = classLoaders.get(n);
-                                if (cl == null) {
-                                    classLoaders.put(n, cl = channel.importedClassLoaders.get(n));
-                                }
-
-                                return new ClassReference(cl, cf.image);
+                    ClassImageCache cache = channel.remoteCapability.supportsClassImageCache()
+                            ? channel.getClassImageCache()
+                            : null;
+                    Map<String, ClassFile2> all;
+                    try {
+                        all = cache == null ? proxy.fetch3(name) : fetch5(name, cache);
+                    } catch (ClassNotFoundException x) {
+                        throw missing(name, x);
+                    }
+                    /*
+                     * Converts {@link ClassFile2} to {@link ClassReference} with minimal
+                     * proxy creation. This creates a reference to {@link ClassLoader}, so
+                     * it shouldn't be kept beyond the scope of single {@link #findClass(String)}  call.
+                     */
+                    class ClassReferenceBuilder {
+                        private final Map<Integer, ClassLoader> classLoaders = new HashMap<>();
+
+                        ClassReference toRef(ClassFile2 cf) {
+                            int n = cf.classLoader;
+
+                            ClassLoader cl = classLoaders.get(n);
+                            if (cl == null) {
+                                classLoaders.put(n, cl = channel.importedClassLoaders.get(n));
                             }
+
+                            return new ClassReference(cl, cf.image);
                         }
-                        ClassReferenceBuilder crf = new ClassReferenceBuilder();
+                    }
+                    ClassReferenceBuilder crf = new ClassReferenceBuilder();
 
-                        for (Map.Entry<String, ClassFile2> entry : all.entrySet()) {
-                            String cn = entry.getKey();
-                            ClassFile2 cf = entry.getValue();
-                            ClassReference ref = crf.toRef(cf);
+                    for (Map.Entry<String, ClassFile2> entry : all.entrySet()) {
+                        String cn = entry.getKey();
+                        ClassFile2 cf = entry.getValue();
+                        ClassReference ref = crf.toRef(cf);
 
-                            if (cn.equals(name)) {
-                                cr = ref;
+                        if (cf.image == null) {
+                            // the class loader of its referer could not find it
+                            if (ref.classLoader instanceof RemoteClassLoader) {
+                                ((RemoteClassLoader) ref.classLoader).missingClasses.add(cn);
+                            }
+                            continue;
+                        }
+
+                        if (cn.equals(name)) {
+                            cr = ref;
+                        } else {
+                            // where we remember the prefetch is sensitive to who references it,
+                            // because classes need not be transitively visible in Java
+                            if (cf.referer != null) {
+                                ref.rememberIn(cn, crf.toRef(cf.referer).classLoader);
                             } else {
-                                // where we remember the prefetch is sensitive to who references it,
-                                // because classes need not be transitively visible in Java
-                                if (cf.referer != null) {
-                                    ref.rememberIn(cn, crf.toRef(cf.referer).classLoader);
-                                } else {
-                                    ref.rememberIn(cn, this);
-                                }
-
-                                LOGGER.log(Level.FINER, "prefetch {0} -> {1}", new Object[] {name, cn});
+                                ref.rememberIn(cn, this);
                             }
 
-                            ref.rememberIn(cn, ref.classLoader);
+                            LOGGER.log(Level.FINER, "prefetch {0} -> {1}", new Object[] {name, cn});
                         }
+
+                        ref.rememberIn(cn, ref.classLoader);
                     }
                     break;
                 } catch (InterruptedException | RemotingSystemException x) {
@@ -431,6 +719,22 @@ final class RemoteClassLoader extends URLClassLoader {
         return cr;
     }
 
+    /**
+     * Remembers that the other side could not find the class.
+     */
+    private ClassNotFoundException missing(String name, ClassNotFoundException x) {
+        missingClasses.add(name);
+        return x;
+    }
+
+    /**
+     * Forgets the classes and resources the other side did not have, as it may have them now.
+     */
+    /*package*/ void clearNegativeCache() {
+        missingClasses.clear();
+        missingResources.clear();
+    }
+
     private void invokeClassReferenceLoadTestingHookIfNeeded() throws InterruptedException {
         // Testing support only.
         if (TESTING_CLASS_REFERENCE_LOAD != null) {
@@ -494,7 +798,14 @@ final class RemoteClassLoader extends URLClassLoader {
             return;
         }
 
-        definePackage(packageName, null, null, null, null, null, null, null);
+        try {
+            definePackage(packageName, null, null, null, null, null, null, null);
+        } catch (IllegalArgumentException e) {
+            // another thread defined it in the meantime
+            if (getDefinedPackage(packageName) == null) {
+                throw e;
+            }
+        }
     }
 
     @Override
@@ -510,36 +821,45 @@ final class RemoteClassLoader extends URLClassLoader {
         int tries = 0;
         while (true) {
             try {
-                if (resourceMap.containsKey(name)) {
-                    URLish f = resourceMap.get(name);
-                    if (f == null) {
-                        return null; // no such resource
-                    }
+                if (missingResources.contains(name)) {
+                    channel.negativeCacheHitCount.incrementAndGet();
+                    return null; // no such resource
+                }
+                URLish f = resourceMap.get(name);
+                if (f != null) {
                     URL u = f.toURL();
                     if (u != null) {
+                        recordResource(name);
                         return u;
                     }
                 }
 
                 invokeResourceLoadTestingHookIfNeeded();
 
-                long startTime = System.nanoTime();
+                URLish res = coalesce(resourceFetches, name, () -> {
+                    long startTime = System.nanoTime();
 
-                ResourceFile r = proxy.getResource2(name);
-                ResourceImageRef image = null;
-                if (r != null) {
-                    image = r.image;
-                }
+                    ResourceFile r = proxy.getResource2(name);
+                    ResourceImageRef image = null;
+                    if (r != null) {
+                        image = r.image;
+                    }
 
-                channel.resourceLoadingTime.addAndGet(System.nanoTime() - startTime);
-                channel.resourceLoadingCount.incrementAndGet();
-                if (image == null) {
-                    resourceMap.put(name, null);
+                    channel.resourceLoadingTime.addAndGet(System.nanoTime() - startTime);
+                    channel.resourceLoadingCount.incrementAndGet();
+                    if (image == null) {
+                        missingResources.add(name);
+                        return null;
+                    }
+
+                    URLish u = image.resolveURL(channel, name).get();
+                    resourceMap.put(name, u);
+                    return u;
+                });
+                if (res == null) {
                     return null;
                 }
-
-                URLish res = image.resolveURL(channel, name).get();
-                resourceMap.put(name, res);
+                recordResource(name);
                 return res.toURL();
             } catch (IOException | ExecutionException e) {
                 throw new Error("Unable to load resource " + name, e);
@@ -561,6 +881,69 @@ final class RemoteClassLoader extends URLClassLoader {
         }
     }
 
+    /**
+     * Runs the fetch of the given name, unless another thread is already at it, in which case waits for
+     * and shares its outcome.
+     * <p>
+     * If the thread at it was interrupted, the waiting threads were not, so they have a go themselves instead.
+     */
+    /*package*/ static <V> V coalesce(ConcurrentMap<String, CompletableFuture<V>> inFlight, String name, Fetch<V> fetch)
+            throws IOException, InterruptedException, ExecutionException {
+        while (true) {
+            CompletableFuture<V> mine = new CompletableFuture<>();
+            CompletableFuture<V> theirs = inFlight.putIfAbsent(name, mine);
+            if (theirs == null) {
+                return fetch(inFlight, name, fetch, mine);
+            }
+            try {
+                return theirs.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (isRetryException(cause)) {
+                    continue;
+                }
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof ExecutionException) {
+                    throw (ExecutionException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Runs the fetch on behalf of those waiting on the given future.
+     */
+    private static <V> V fetch(
+            ConcurrentMap<String, CompletableFuture<V>> inFlight, String name, Fetch<V> fetch, CompletableFuture<V> mine)
+            throws IOException, InterruptedException, ExecutionException {
+        V v;
+        try {
+            v = fetch.fetch();
+        } catch (IOException | InterruptedException | ExecutionException | RuntimeException | Error e) {
+            // out of the way first, so that a waiter that has a go itself does not find the failed attempt
+            inFlight.remove(name, mine);
+            mine.completeExceptionally(e);
+            throw e;
+        }
+        inFlight.remove(name, mine);
+        mine.complete(v);
+        return v;
+    }
+
+    @FunctionalInterface
+    /*package*/ interface Fetch<V> {
+        V fetch() throws IOException, InterruptedException, ExecutionException;
+    }
+
     private RemotingSystemException determineRemotingSystemException(Exception x) {
         return x instanceof RemotingSystemException ? (RemotingSystemException) x : new RemotingSystemException(x);
     }
@@ -600,6 +983,11 @@ final class RemoteClassLoader extends URLClassLoader {
         // the challenge is how to combine the list from local jars
         // and the remote list
 
+        if (missingResources.contains(name)) {
+            channel.negativeCacheHitCount.incrementAndGet();
+            return EMPTY_ENUMERATION;
+        }
+
         int tries = 0;
         while (true) {
             try {
@@ -613,25 +1001,32 @@ final class RemoteClassLoader extends URLClassLoader {
 
                 invokeResourceLoadTestingHookIfNeeded();
 
-                long startTime = System.nanoTime();
-                ResourceFile[] images = proxy.getResources2(name);
-                channel.resourceLoadingTime.addAndGet(System.nanoTime() - startTime);
-                channel.resourceLoadingCount.incrementAndGet();
+                v = coalesce(resourcesFetches, name, () -> {
+                    long startTime = System.nanoTime();
+                    ResourceFile[] images = proxy.getResources2(name);
+                    channel.resourceLoadingTime.addAndGet(System.nanoTime() - startTime);
+                    channel.resourceLoadingCount.incrementAndGet();
 
-                v = new Vector<>();
-                for (ResourceFile image : images) {
-                    try {
-                        // getResources2 always give us ResourceImageBoth so
-                        // .get() shouldn't block
-                        v.add(image.image.resolveURL(channel, name).get());
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        throw new Error("Failed to load resources " + name, e);
-                    } catch (ExecutionException e) {
-                        throw new Error("Failed to load resources " + name, e);
+                    Vector<URLish> found = new Vector<>();
+                    for (ResourceFile image : images) {
+                        try {
+                            // getResources2 always give us ResourceImageBoth so
+                            // .get() shouldn't block
+                            found.add(image.image.resolveURL(channel, name).get());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new Error("Failed to load resources " + name, e);
+                        } catch (ExecutionException e) {
+                            throw new Error("Failed to load resources " + name, e);
+                        }
                     }
-                }
-                resourcesMap.put(name, v);
+                    if (found.isEmpty()) {
+                        missingResources.add(name);
+                    } else {
+                        resourcesMap.put(name, found);
+                    }
+                    return found;
+                });
 
                 Vector<URL> resURLs = toURLs(v);
                 if (resURLs == null) {
@@ -639,6 +1034,8 @@ final class RemoteClassLoader extends URLClassLoader {
                     throw new IOException("One of the URLish objects cannot be converted to URL");
                 }
                 return resURLs.elements();
+            } catch (ExecutionException e) {
+                throw new Error("Failed to load resources " + name, e);
             } catch (InterruptedException | RemotingSystemException x) {
                 tries++;
                 if (shouldRetry(x, tries)) {
@@ -688,18 +1085,7 @@ final class RemoteClassLoader extends URLClassLoader {
      */
     @Deprecated
     /*package*/ boolean prefetch(URL jar) throws IOException {
-        synchronized (prefetchedJars) {
-            if (prefetchedJars.contains(jar)) {
-                return false;
-            }
-
-            String p = jar.getPath().replace('\\', '/');
-            p = Util.getBaseName(p);
-            File localJar = Util.makeResource(p, proxy.fetchJar(jar));
-            addURL(localJar.toURI().toURL());
-            prefetchedJars.add(jar);
-            return true;
-        }
+        return prefetch(jar, () -> proxy.fetchJar(jar));
     }
 
     /**
@@ -713,20 +1099,43 @@ final class RemoteClassLoader extends URLClassLoader {
      * @since TODO 2024-08
      */
     /*package*/ boolean prefetch(URL jar, byte[] content) throws IOException {
-        synchronized (prefetchedJars) {
-            if (prefetchedJars.contains(jar)) {
-                return false;
+        return prefetch(jar, () -> content);
+    }
+
+    private boolean prefetch(URL jar, JarContent content) throws IOException {
+        while (true) {
+            CompletableFuture<Void> mine = new CompletableFuture<>();
+            CompletableFuture<Void> theirs = prefetchedJars.putIfAbsent(jar, mine);
+            if (theirs != null) {
+                try {
+                    theirs.join();
+                    return false;
+                } catch (CompletionException | CancellationException e) {
+                    // the other thread failed to prefetch it, so try ourselves
+                    continue;
+                }
             }
 
-            String p = jar.getPath().replace('\\', '/');
-            p = Util.getBaseName(p);
-            File localJar = Util.makeResource(p, content);
-            addURL(localJar.toURI().toURL());
-            prefetchedJars.add(jar);
-            return true;
+            try {
+                String p = jar.getPath().replace('\\', '/');
+                p = Util.getBaseName(p);
+                File localJar = Util.makeResource(p, content.get());
+                addURL(localJar.toURI().toURL());
+                mine.complete(null);
+                return true;
+            } catch (IOException | RuntimeException | Error e) {
+                prefetchedJars.remove(jar, mine);
+                mine.completeExceptionally(e);
+                throw e;
+            }
         }
     }
 
+    @FunctionalInterface
+    private interface JarContent {
+        byte[] get() throws IOException;
+    }
+
     /**
      * Receiver-side of {@link ClassFile2} uses this to remember the prefetch information.
      */
@@ -821,6 +1230,9 @@ final class RemoteClassLoader extends URLClassLoader {
     /**
      * A class file as a subtype of {@link ResourceFile}.
      * This supersedes {@link ClassFile}.
+     * <p>
+     * When {@link Capability#supportsAbsentClasses()}, a {@link ClassFile2} without an {@link #image}
+     * in a {@link IClassLoader#fetch3(String)} response stands for a class its {@link #classLoader} could not find.
      *
      * @since 2.24
      */
@@ -916,6 +1328,64 @@ final class RemoteClassLoader extends URLClassLoader {
          */
         Map<String, ClassFile2> fetch3(String className) throws ClassNotFoundException;
 
+        /**
+         * {@link #fetch3(String)} for a caller that keeps a {@link ClassImageCache}.
+         * <p>
+         * The images of classes that are not in a jar come as {@link ResourceImageCached}, without their payload
+         * if their checksum is among those the caller already has.
+         *
+         * @param cachedSums
+         *      The checksums of the images the caller has, as pairs of longs.
+         * @see Capability#supportsClassImageCache()
+         * @since TODO
+         */
+        default Map<String, ClassFile2> fetch5(String className, long[] cachedSums) throws ClassNotFoundException {
+            return fetch3(className);
+        }
+
+        /**
+         * Fetches many classes in one call, for a caller that knows ahead of time what it is going to load,
+         * such as from its {@link ClassLoadingManifest}.
+         * <p>
+         * The classes are returned as by {@link #fetch5(String, long[])}, but their references are not followed.
+         * Classes that are not found are left out.
+         *
+         * @param cachedSums
+         *      The checksums of the images the caller has in its {@link ClassImageCache}, as pairs of longs,
+         *      or {@code null} if it does not keep one.
+         * @see Capability#supportsBulkFetch()
+         * @since TODO
+         */
+        default Map<String, ClassFile2> fetchAll(String[] classNames, @CheckForNull long[] cachedSums) {
+            Map<String, ClassFile2> all = new HashMap<>();
+            for (String className : classNames) {
+                try {
+                    all.putAll(cachedSums == null ? fetch3(className) : fetch5(className, cachedSums));
+                } catch (ClassNotFoundException x) {
+                    // left out
+                }
+            }
+            return all;
+        }
+
+        /**
+         * {@link #getResource2(String)} of many resources in one call.
+         * Resources that are not found are left out.
+         *
+         * @see Capability#supportsBulkFetch()
+         * @since TODO
+         */
+        default Map<String, ResourceFile> getResourceAll(String[] names) throws IOException {
+            Map<String, ResourceFile> all = new HashMap<>();
+            for (String name : names) {
+                ResourceFile r = getResource2(name);
+                if (r != null) {
+                    all.put(name, r);
+                }
+            }
+            return all;
+        }
+
         /**
          * Remoting equivalent of {@link ClassLoader#getResource(String)}
          *
@@ -970,8 +1440,10 @@ final class RemoteClassLoader extends URLClassLoader {
         if (cl instanceof RemoteClassLoader) {
             // check if this is a remote classloader from the channel
             final RemoteClassLoader rcl = (RemoteClassLoader) cl;
-            int oid = RemoteInvocationHandler.unwrap(rcl.proxy, local);
+            int oid = RemoteInvocationHandler.unwrap(rcl.underlyingProxy, local);
             if (oid != -1) {
+                // it is here to stay, so do not hold on to what it was missing before
+                rcl.clearNegativeCache();
                 return;
             }
         }
@@ -1067,6 +1539,23 @@ final class RemoteClassLoader extends URLClassLoader {
          * Fetch a single class and creates a {@link ClassFile2} for it.
          */
         public ClassFile2 fetch4(String className, @CheckForNull ClassFile2 referer) throws ClassNotFoundException {
+            return fetch4(className, referer, null, referer == null);
+        }
+
+        /**
+         * @param cached
+         *      The checksums of the images the caller has in its {@link ClassImageCache},
+         *      or {@code null} if it does not keep one.
+         * @param inline
+         *      Whether to send the image of a class in a jar along with the checksum of the jar,
+         *      if the other side does not have the jar yet.
+         */
+        private ClassFile2 fetch4(
+                String className,
+                @CheckForNull ClassFile2 referer,
+                @CheckForNull Set<Checksum> cached,
+                boolean inline)
+                throws ClassNotFoundException {
             Class<?> referrerClass = referer == null ? null : referer.clazz;
             Class<?> c;
             try {
@@ -1093,7 +1582,7 @@ final class RemoteClassLoader extends URLClassLoader {
                         Checksum sum = channel.jarLoader.calcChecksum(jar);
 
                         ResourceImageRef imageRef;
-                        if (referer == null && !channel.jarLoader.isPresentOnRemote(sum)) {
+                        if (inline && !channel.jarLoader.isPresentOnRemote(sum)) {
                             // for the class being requested, if the remote doesn't have the jar yet
                             // send the image as well, so as not to require another call to get this class loaded
                             imageRef = new ResourceImageBoth(urlOfClassFile, sum);
@@ -1109,47 +1598,125 @@ final class RemoteClassLoader extends URLClassLoader {
                     // we determined that 'c' isn't in a jar file
                     LOGGER.log(Level.FINE, c + " isn't in a jar file: " + urlOfClassFile, e);
                 }
-                return fetch2(className).upconvert(referer, c, urlOfClassFile);
+                ClassFile cf = fetch2(className);
+                if (cached == null) {
+                    return cf.upconvert(referer, c, urlOfClassFile);
+                }
+                Checksum sum = Checksum.forBytes(cf.classImage);
+                ResourceImageRef imageRef = new ResourceImageCached(sum, cached.contains(sum) ? null : cf.classImage);
+                return new ClassFile2(cf.classLoader, imageRef, referer, c, urlOfClassFile);
             } catch (IOException e) {
                 throw new ClassNotFoundException("Failed to load " + className + " via " + referrerClass, e);
             }
         }
 
         @Override
+        public Map<String, ClassFile2> fetch3(String className) throws ClassNotFoundException {
+            return fetch3(className, null);
+        }
+
+        @Override
+        public Map<String, ClassFile2> fetch5(String className, long[] cachedSums) throws ClassNotFoundException {
+            return fetch3(className, toChecksums(cachedSums));
+        }
+
+        private static Set<Checksum> toChecksums(long[] sums) {
+            Set<Checksum> checksums = new HashSet<>();
+            for (int i = 0; i + 1 < sums.length; i += 2) {
+                checksums.add(new Checksum(sums[i], sums[i + 1]));
+            }
+            return checksums;
+        }
+
         @SuppressFBWarnings(
                 value = "URLCONNECTION_SSRF_FD",
                 justification = "This is only used for managing the jar cache as files.")
-        public Map<String, ClassFile2> fetch3(String className) throws ClassNotFoundException {
-            ClassFile2 cf = fetch4(className, null);
+        private Map<String, ClassFile2> fetch3(String className, @CheckForNull Set<Checksum> cached)
+                throws ClassNotFoundException {
+            ClassFile2 cf = fetch4(className, null, cached, true);
             Map<String, ClassFile2> all = new HashMap<>();
             all.put(className, cf);
             synchronized (prefetched) {
                 prefetched.add(className);
             }
-            try {
-                for (String other : analyze(cf.local.openStream())) {
-                    synchronized (prefetched) {
-                        if (!prefetched.add(other)) {
-                            continue;
-                        }
-                    }
+            // walk the references breadth first, so that the closest ones make it within the limits.
+            // classes we have already sent are not walked again, as the other side got their references back then.
+            List<ClassFile2> level = Collections.singletonList(cf);
+            long bytes = 0;
+            for (int depth = 1; depth <= PREFETCH_DEPTH && !level.isEmpty(); depth++) {
+                List<ClassFile2> next = new ArrayList<>();
+                for (ClassFile2 referer : level) {
+                    byte[] image;
                     try {
-                        // TODO could even traverse second-level dependencies, etc.
-                        all.put(other, fetch4(other, cf));
-                    } catch (ClassNotFoundException x) {
-                        // ignore: might not be real class name, etc.
-                    } catch (LinkageError x) {
-                        // maybe this class won't be actually used.
-                        // in any case, this shouldn't cause the loading of the current class to fail
+                        image = Util.readFully(referer.local.openStream());
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to analyze the class file: " + referer.local, e);
+                        continue;
+                    }
+                    bytes += image.length;
+                    for (String other : analyze(new ByteArrayInputStream(image))) {
+                        if (all.size() >= PREFETCH_MAX_CLASSES || bytes > PREFETCH_MAX_BYTES) {
+                            return all;
+                        }
+                        synchronized (prefetched) {
+                            if (!prefetched.add(other)) {
+                                continue;
+                            }
+                        }
+                        try {
+                            ClassFile2 dep = fetch4(other, referer, cached, false);
+                            all.put(other, dep);
+                            if (dep.clazz.getClassLoader() != null) {
+                                // the other side has its own JRE
+                                next.add(dep);
+                            }
+                        } catch (ClassNotFoundException x) {
+                            // might not be real class name, etc.
+                            if (isAbsent(other, referer)) {
+                                all.put(other, new ClassFile2(referer.classLoader, null, referer, null, null));
+                            }
+                        } catch (LinkageError x) {
+                            // maybe this class won't be actually used.
+                            // in any case, this shouldn't cause the loading of the current class to fail
+                        }
                     }
                 }
-            } catch (IOException e) {
-                LOGGER.log(Level.WARNING, "Failed to analyze the class file: " + cf.local, e);
-                // ignore
+                level = next;
             }
             return all;
         }
 
+        @Override
+        public Map<String, ClassFile2> fetchAll(String[] classNames, @CheckForNull long[] cachedSums) {
+            Set<Checksum> cached = cachedSums == null ? null : toChecksums(cachedSums);
+            Map<String, ClassFile2> all = new HashMap<>();
+            for (String className : classNames) {
+                try {
+                    // the other side fetches the jars as a whole, so the images are not sent along
+                    all.put(className, fetch4(className, null, cached, false));
+                } catch (ClassNotFoundException | LinkageError x) {
+                    // no longer there, the other side forgets about it
+                }
+            }
+            synchronized (prefetched) {
+                prefetched.addAll(all.keySet());
+            }
+            return all;
+        }
+
+        /**
+         * Is the class the referer refers to definitely not there, and is the other side to be told so?
+         */
+        private boolean isAbsent(String className, ClassFile2 referer) {
+            if (!channel.remoteCapability.supportsAbsentClasses() || className.startsWith("[")) {
+                return false;
+            }
+            ClassLoader rcl = referer.clazz.getClassLoader();
+            // a class that failed to load but whose class file is there, say of the bootstrap classloader, may yet
+            // be loaded by the other side in some other way
+            return rcl != null && rcl.getResource(className.replace('.', '/') + ".class") == null;
+        }
+
         @CheckForNull
         private URL getResourceURL(String name) {
             URL resource = cl.getResource(name);
@@ -1255,6 +1822,18 @@ final class RemoteClassLoader extends URLClassLoader {
             return r;
         }
 
+        @Override
+        public Map<String, ResourceFile> getResourceAll(String[] names) throws IOException {
+            Map<String, ResourceFile> all = new HashMap<>();
+            for (String name : names) {
+                URL resource = getResourceURL(name);
+                if (resource != null) {
+                    all.put(name, makeResource(name, resource));
+                }
+            }
+            return all;
+        }
+
         @Override
         public String getName() throws IOException {
             return cl.getName();
@@ -1336,6 +1915,16 @@ final class RemoteClassLoader extends URLClassLoader {
             return proxy.fetch3(className);
         }
 
+        @Override
+        public Map<String, ClassFile2> fetch5(String className, long[] cachedSums) throws ClassNotFoundException {
+            return proxy.fetch5(className, cachedSums);
+        }
+
+        @Override
+        public Map<String, ClassFile2> fetchAll(String[] classNames, long[] cachedSums) {
+            return proxy.fetchAll(classNames, cachedSums);
+        }
+
         @Override
         public byte[] getResource(String name) throws IOException {
             return proxy.getResource(name);
@@ -1358,6 +1947,11 @@ final class RemoteClassLoader extends URLClassLoader {
             return proxy.getResources2(name);
         }
 
+        @Override
+        public Map<String, ResourceFile> getResourceAll(String[] names) throws IOException {
+            return proxy.getResourceAll(names);
+        }
+
         @Override
         public String getName() throws IOException {
             return proxy.getName();
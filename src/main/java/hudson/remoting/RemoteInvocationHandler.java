@@ -41,6 +41,7 @@ import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -129,6 +130,15 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
     /** @see Command#Command(boolean) */
     private final boolean recordCreatedAt;
 
+    /**
+     * Number of milliseconds of the lease the object is exported on, which the importing side renews for as long
+     * as this proxy lives, or 0 if it is not exported on a lease. It comes from the exporting side along with the
+     * proxy, so that the importing side renews the lease in time whatever its own settings.
+     *
+     * @see ExportTable#LEASE_MILLIS
+     */
+    private final long leaseMillis;
+
     /**
      * Creates a proxy that wraps an existing OID on the remote.
      */
@@ -139,7 +149,8 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
             boolean autoUnexportByCaller,
             boolean userSpace,
             Class<?> proxyType,
-            boolean recordCreatedAt) {
+            boolean recordCreatedAt,
+            long leaseMillis) {
         this.channel = channel == null ? null : channel.ref();
         this.oid = id;
         this.userProxy = userProxy;
@@ -147,6 +158,7 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
         this.autoUnexportByCaller = autoUnexportByCaller;
         this.userSpace = userSpace;
         this.recordCreatedAt = recordCreatedAt;
+        this.leaseMillis = leaseMillis;
     }
 
     /**
@@ -155,6 +167,7 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
      * @param userProxy If {@code true} (recommended), all commands will be wrapped into {@link UserRequest}s.
      * @param userSpace If {@code true} (recommended), the requests will be executed in a user scope
      * @param recordCreatedAt as in {@link Command#Command(boolean)}
+     * @param leaseMillis the lease the object is exported on, or 0 if none
      */
     @NonNull
     static <T> T wrap(
@@ -164,14 +177,15 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
             boolean userProxy,
             boolean autoUnexportByCaller,
             boolean userSpace,
-            boolean recordCreatedAt) {
+            boolean recordCreatedAt,
+            long leaseMillis) {
         ClassLoader cl = type.getClassLoader();
         // if the type is a JDK-defined type, classloader should be for IReadResolve
         if (cl == null || cl == ClassLoader.getSystemClassLoader()) {
             cl = IReadResolve.class.getClassLoader();
         }
         RemoteInvocationHandler handler = new RemoteInvocationHandler(
-                channel, id, userProxy, autoUnexportByCaller, userSpace, type, recordCreatedAt);
+                channel, id, userProxy, autoUnexportByCaller, userSpace, type, recordCreatedAt, leaseMillis);
         if (channel != null) {
             if (!autoUnexportByCaller) {
                 UNEXPORTER.watch(handler);
@@ -398,10 +412,14 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
          * The reference to the channel on which to unexport.
          */
         private Channel.Ref channel;
+        /**
+         * Whether to renew the lease of {@link #oid} until then.
+         */
+        private final boolean leased;
 
         /**
          * Construct our reference and bind to the {@link ReferenceQueue} after capturing the required state for
-         * {@link #cleanup()}.
+         * {@link #cleanup(Map)}.
          *
          * @param referent       the {@link RemoteInvocationHandler} we will clean up.
          * @param referenceQueue the {@link ReferenceQueue}
@@ -412,20 +430,28 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
             this.oid = referent.oid;
             this.origin = Unexporter.retainOrigin ? referent.origin : null;
             this.channel = referent.channel;
+            this.leased = referent.leaseMillis > 0;
         }
 
         /**
-         * Sends the {@link UnexportCommand} for the specified {@link #oid} if the {@link Channel} is still open.
+         * Sends the {@link UnexportCommand} for the specified {@link #oid} if the {@link Channel} is still open,
+         * or adds the {@link #oid} to those to send in a {@link BulkUnexportCommand} if the other side supports it
+         * and {@link ExportTable#EXPORT_TRACES} is off, as the {@link #origin} does not go along with those.
+         * @param bulk the object IDs to unexport in bulk, by channel.
          * @throws IOException if the {@link UnexportCommand} could not be sent.
          */
-        private void cleanup() throws IOException {
+        private void cleanup(Map<Channel, List<Integer>> bulk) throws IOException {
             if (this.channel == null) {
                 return;
             }
             Channel channel = this.channel.channel();
             if (channel != null && !channel.isClosingOrClosed()) {
                 try {
-                    channel.send(new UnexportCommand(oid, origin));
+                    if (channel.remoteCapability.supportsBulkUnexport() && !ExportTable.EXPORT_TRACES) {
+                        bulk.computeIfAbsent(channel, c -> new ArrayList<>()).add(oid);
+                    } else {
+                        channel.send(new UnexportCommand(oid, origin));
+                    }
                 } finally {
                     // clear out references to simplify GC
                     this.origin = null;
@@ -459,7 +485,7 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
                 Boolean.parseBoolean(System.getProperty(Unexporter.class.getName() + ".retainOrigin", "true"));
         /**
          * How often to sweep out references from {@link Channel} instances that are closed (and therefore have a no-op
-         * {@link PhantomReferenceImpl#cleanup()}.
+         * {@link PhantomReferenceImpl#cleanup(Map)}.
          * @since 2.58
          */
         private static final long sweepInterval =
@@ -576,6 +602,16 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
          */
         private long nextReport = countStart + reportInterval;
 
+        /**
+         * When the leases were last renewed.
+         */
+        private long lastRenewal = countStart;
+
+        /**
+         * How often to renew the leases, as a fraction of the shortest lease of the proxies watched so far.
+         */
+        private volatile long renewalInterval = Long.MAX_VALUE;
+
         /**
          * Gets the named system property value which is treated as a number of seconds and converted into nanoseconds.
          * The value can be specified using decimals which allows the user to specify meaningful times in a consistent
@@ -615,6 +651,7 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
             try {
                 long nextSweep = System.nanoTime() + sweepInterval;
                 PhantomReferenceImpl[] batch = new PhantomReferenceImpl[batchSize];
+                Map<Channel, List<Integer>> bulk = new HashMap<>();
                 while (!referenceLists.isEmpty()) {
                     if (System.nanoTime() - nextMeasure > 0) {
                         updateStats();
@@ -622,6 +659,10 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
                     if (System.nanoTime() - nextReport > 0) {
                         reportStats();
                     }
+                    if (System.nanoTime() - lastRenewal > renewalInterval) {
+                        lastRenewal = System.nanoTime();
+                        renewLeases();
+                    }
                     try {
                         long remaining;
                         int batchIndex = 0;
@@ -641,7 +682,7 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
                                 count++;
                                 final Channel.Ref channelRef = batch[index].channel;
                                 try {
-                                    batch[index].cleanup();
+                                    batch[index].cleanup(bulk);
                                 } catch (ChannelClosedException e) {
                                     // ignore, the cleanup is a no-op
                                 } catch (Error e) {
@@ -673,6 +714,8 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
                                     batch[index] = null; // clear out the reference from the array as we reuse the array
                                 }
                             }
+                            batchIndex = 0;
+                            sendBulkUnexports(bulk);
                         }
                     } catch (InterruptedException e) {
                         logger.log(Level.FINE, "Interrupted", e);
@@ -828,6 +871,77 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
             }
         }
 
+        /**
+         * Sends the {@link BulkUnexportCommand}s for the object IDs collected from a batch, and clears them.
+         */
+        private void sendBulkUnexports(Map<Channel, List<Integer>> bulk) {
+            for (Map.Entry<Channel, List<Integer>> entry : bulk.entrySet()) {
+                Channel channel = entry.getKey();
+                List<Integer> list = entry.getValue();
+                int[] oids = new int[list.size()];
+                for (int i = 0; i < oids.length; i++) {
+                    oids[i] = list.get(i);
+                }
+                Arrays.sort(oids);
+                try {
+                    for (int from = 0; from < oids.length; from += BulkUnexportCommand.MAX_OIDS) {
+                        int to = Math.min(oids.length, from + BulkUnexportCommand.MAX_OIDS);
+                        channel.send(new BulkUnexportCommand(Arrays.copyOfRange(oids, from, to)));
+                    }
+                } catch (ChannelClosedException e) {
+                    // ignore, the cleanup is a no-op
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Couldn't clean up " + oids.length + " oids on " + channel, e);
+                }
+            }
+            bulk.clear();
+        }
+
+        /**
+         * Renews the leases of the objects that are exported on a lease and that the proxies still alive refer to,
+         * in one batch per channel.
+         */
+        private void renewLeases() {
+            for (Map.Entry<Channel.Ref, List<PhantomReferenceImpl>> entry : referenceLists.entrySet()) {
+                Channel channel = entry.getKey().channel();
+                if (channel == null || channel.isClosingOrClosed()) {
+                    continue;
+                }
+                List<PhantomReferenceImpl> referenceList = entry.getValue();
+                int[] oids;
+                int size = 0;
+                synchronized (referenceList) {
+                    oids = new int[referenceList.size()];
+                    for (PhantomReferenceImpl phantom : referenceList) {
+                        if (phantom.leased) {
+                            oids[size++] = phantom.oid;
+                        }
+                    }
+                }
+                if (size == 0) {
+                    continue;
+                }
+                // several proxies can refer to the same object
+                Arrays.sort(oids, 0, size);
+                int unique = 0;
+                for (int i = 0; i < size; i++) {
+                    if (unique == 0 || oids[unique - 1] != oids[i]) {
+                        oids[unique++] = oids[i];
+                    }
+                }
+                try {
+                    for (int from = 0; from < unique; from += RenewLeasesCommand.MAX_OIDS) {
+                        int to = Math.min(unique, from + RenewLeasesCommand.MAX_OIDS);
+                        channel.send(new RenewLeasesCommand(Arrays.copyOfRange(oids, from, to)));
+                    }
+                } catch (ChannelClosedException e) {
+                    // ignore, the leases no longer matter
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Couldn't renew the leases of " + channel, e);
+                }
+            }
+        }
+
         /**
          * Cleans a {@link List} of {@link PhantomReferenceImpl} as the {@link Channel} has closed.
          *
@@ -863,6 +977,12 @@ final class RemoteInvocationHandler implements InvocationHandler, Serializable {
                 referenceLists.putIfAbsent(ref, Collections.synchronizedList(new ArrayList<>()));
             }
             referenceList.add(new PhantomReferenceImpl(handler, queue));
+            if (handler.leaseMillis > 0) {
+                long interval = TimeUnit.MILLISECONDS.toNanos(handler.leaseMillis) / ExportTable.RENEWALS_PER_LEASE;
+                if (interval < renewalInterval) {
+                    renewalInterval = interval;
+                }
+            }
             if (isAlive.get()) {
                 // if already running we are all set and can return
                 return;
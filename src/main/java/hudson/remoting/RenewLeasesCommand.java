@@ -0,0 +1,71 @@
+package hudson.remoting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * {@link Command} that renews the leases of objects exported on a lease, sent by the side that imported them
+ * for as long as it holds proxies to them.
+ *
+ * @see ExportTable#LEASE_MILLIS
+ */
+/*package*/ final class RenewLeasesCommand extends Command {
+    /**
+     * Largest number of leases renewed by one command.
+     */
+    /*package*/ static final int MAX_OIDS = 16384;
+
+    /**
+     * Object IDs in ascending order.
+     */
+    /*package*/ final int[] oids;
+
+    /*package*/ RenewLeasesCommand(int[] oids) {
+        super(false);
+        this.oids = oids;
+    }
+
+    @Override
+    protected void execute(Channel channel) {
+        channel.renewLeases(oids);
+    }
+
+    @Override
+    boolean writeCompact(OutputStream out) throws IOException {
+        out.write(CompactCommandCodec.RENEW_LEASES);
+        CompactCommandCodec.writeInt(out, oids.length);
+        int last = 0;
+        for (int oid : oids) {
+            // consecutive IDs make small deltas
+            CompactCommandCodec.writeInt(out, oid - last);
+            last = oid;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the command written by {@link #writeCompact(OutputStream)}.
+     */
+    /*package*/ static RenewLeasesCommand readCompact(InputStream in) throws IOException {
+        int length = CompactCommandCodec.readInt(in);
+        if (length < 0 || length > MAX_OIDS) {
+            throw new StreamCorruptedException("Invalid number of leases " + length);
+        }
+        int[] oids = new int[length];
+        int last = 0;
+        for (int i = 0; i < length; i++) {
+            last += CompactCommandCodec.readInt(in);
+            oids[i] = last;
+        }
+        return new RenewLeasesCommand(oids);
+    }
+
+    @Override
+    public String toString() {
+        return "RenewLeases(" + oids.length + ")";
+    }
+
+    private static final long serialVersionUID = 1L;
+}
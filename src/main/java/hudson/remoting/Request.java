@@ -25,14 +25,19 @@ package hudson.remoting;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -65,10 +70,11 @@ public abstract class Request<RSP extends Serializable, EXC extends Throwable> e
     abstract RSP perform(Channel channel) throws EXC;
 
     /**
-     * Uniquely identifies this request.
+     * Uniquely identifies this request among the ones sent over the same channel.
      * Used for correlation between request and response.
+     * Assigned by {@link Channel#newRequestId()} when the request is sent.
      */
-    private final int id;
+    private int id;
 
     /**
      * Set by the sender to the ID of the last I/O issued from the sender thread.
@@ -81,8 +87,28 @@ public abstract class Request<RSP extends Serializable, EXC extends Throwable> e
 
     private volatile Response<RSP, ? extends Throwable> response;
 
+    /**
+     * Guards the wait for {@link #response} on the sending side. Not a monitor, so that a virtual thread
+     * waiting for the response does not pin its carrier thread.
+     *
+     * <p>
+     * Like {@link #responded}, only ever used by the side that sent the request, which is the one that created it;
+     * on the receiving side, which deserialized it, both are {@code null}.
+     */
+    private final transient Lock lock = new ReentrantLock();
+
+    /**
+     * Signalled under {@link #lock} once {@link #response} is set. Sending side only, see {@link #lock}.
+     */
+    private final transient Condition responded = lock.newCondition();
+
     transient long startTime;
 
+    /**
+     * Completed by {@link #onCompleted(Response)} if this request was sent by {@link #callCompletable(Channel)}.
+     */
+    private transient volatile CompletableFuture<RSP> completion;
+
     /**
      * While executing the call this is set to the handle of the execution.
      */
@@ -107,14 +133,8 @@ public abstract class Request<RSP extends Serializable, EXC extends Throwable> e
         this(true);
     }
 
-    @SuppressFBWarnings(
-            value = "ST_WRITE_TO_STATIC_FROM_INSTANCE_METHOD",
-            justification = "That is why we synchronize on the class.")
     Request(boolean recordCreatedAt) {
         super(recordCreatedAt);
-        synchronized (Request.class) {
-            id = nextId++;
-        }
     }
 
     /**
@@ -151,72 +171,80 @@ public abstract class Request<RSP extends Serializable, EXC extends Throwable> e
         // so that thread dump would give us more useful information.
         Thread t = Thread.currentThread();
         String name = t.getName();
+        id = channel.newRequestId();
         try {
             t.setName(name + " / waiting for " + channel.getName() + " id=" + id);
             checkIfCanBeExecutedOnChannel(channel);
             lastIoId = channel.lastIoId();
 
-            // Channel.send() locks channel, and there are other call sequences
+            // Do not hold any lock here: Channel.send() serializes this request on the calling thread
+            // before it takes the channel lock, and there are other call sequences
             // (  like Channel.terminate()->Request.abort()->Request.onCompleted()  )
-            // that locks channel -> request, so lock objects in the same order
-            synchronized (channel) {
-                synchronized (this) {
-                    response = null;
-
-                    channel.pendingCalls.put(id, this);
-                    startTime = System.nanoTime();
-                    channel.send(this);
-                }
+            // that lock channel -> request.
+            // If the channel gets terminated after we register, terminate() aborts us and send() fails;
+            // if it was terminated before, send() fails and we must not leave ourselves behind.
+            response = null;
+            channel.pendingCalls.put(id, this);
+            startTime = System.nanoTime();
+            try {
+                channel.send(this);
+            } catch (IOException | RuntimeException | Error e) {
+                channel.pendingCalls.remove(id);
+                throw e;
             }
 
             try {
-                synchronized (this) {
-                    while (response == null && !channel.isInClosed()) {
+                Response<RSP, ? extends Throwable> response;
+                lock.lock();
+                try {
+                    while ((response = this.response) == null && !channel.isInClosed()) {
                         // I don't know exactly when this can happen, as pendingCalls are cleaned up by Channel,
                         // but in production I've observed that in rare occasion it can block forever, even after a
                         // channel
                         // is gone. So be defensive against that.
-                        wait(30 * 1000);
-                    }
-
-                    if (response == null) {
-                        // channel is closed and we still don't have a response
-                        throw new RequestAbortedException(null);
+                        responded.await(30, TimeUnit.SECONDS);
                     }
+                } finally {
+                    lock.unlock();
+                }
 
-                    if (lastIo != null) {
-                        try {
-                            lastIo.get();
-                        } catch (ExecutionException e) {
-                            // ignore the I/O error
-                        }
-                    }
+                if (response == null) {
+                    // channel is closed and we still don't have a response
+                    throw new RequestAbortedException(null);
+                }
 
+                if (lastIo != null) {
                     try {
-                        channel.pipeWriter.get(responseIoId).get();
+                        lastIo.get();
                     } catch (ExecutionException e) {
                         // ignore the I/O error
                     }
+                }
 
-                    Throwable exc = response.exception;
+                try {
+                    channel.pipeWriter.get(responseIoId).get();
+                } catch (ExecutionException e) {
+                    // ignore the I/O error
+                }
 
-                    if (exc != null) {
-                        channel.attachCallSiteStackTrace(exc);
-                        throw (EXC) exc; // some versions of JDK fails to compile this line. If so, upgrade your JDK.
-                    }
+                Throwable exc = response.exception;
 
-                    return response.returnValue;
+                if (exc != null) {
+                    channel.attachCallSiteStackTrace(exc);
+                    throw (EXC) exc; // some versions of JDK fails to compile this line. If so, upgrade your JDK.
                 }
+
+                return response.returnValue;
             } catch (InterruptedException e) {
                 // if we are cancelled, abort the remote computation, too.
-                // do this outside the "synchronized(this)" block to prevent locking Request and Channel in a wrong
-                // order.
-                synchronized (
-                        channel) { // ... so that the close check and send won't be interrupted in the middle by a close
-                    if (!channel.isOutClosed()) {
-                        channel.send(new Cancel(
-                                id)); // only send a cancel if we can, or else ChannelClosedException will mask the
-                        // original cause
+                // do this without holding the lock to prevent locking Request and Channel in a wrong order.
+                // only send a cancel if we can, or else ChannelClosedException will mask the original cause
+                if (!channel.isOutClosed()) {
+                    try {
+                        channel.send(new Cancel(id));
+                    } catch (ChannelClosedException x) {
+                        // closed after the check above
+                        e.addSuppressed(x);
                     }
                 }
                 throw e;
@@ -240,12 +268,18 @@ public abstract class Request<RSP extends Serializable, EXC extends Throwable> e
     final hudson.remoting.Future<RSP> callAsync(final Channel channel) throws IOException {
         checkIfCanBeExecutedOnChannel(channel);
 
+        id = channel.newRequestId();
         response = null;
         lastIoId = channel.lastIoId();
 
         channel.pendingCalls.put(id, this);
         startTime = System.nanoTime();
-        channel.send(this);
+        try {
+            channel.send(this);
+        } catch (IOException | RuntimeException | Error e) {
+            channel.pendingCalls.remove(id);
+            throw e;
+        }
 
         return new hudson.remoting.Future<>() {
 
@@ -279,76 +313,153 @@ public abstract class Request<RSP extends Serializable, EXC extends Throwable> e
 
             @Override
             public RSP get() throws InterruptedException, ExecutionException {
-                synchronized (Request.this) {
-                    String oldThreadName = Thread.currentThread().getName();
-                    Thread.currentThread().setName(oldThreadName + " for " + channel.getName() + " id=" + id);
-                    try {
-                        while (response == null) {
-                            if (isCancelled()) {
-                                throw new CancellationException();
-                            }
-                            if (channel.isInClosed()) {
-                                throw new ExecutionException(new RequestAbortedException(null));
-                            }
-                            Request.this.wait(30 * 1000); // wait until the response arrives
+                if (isCancelled()) {
+                    // even if the response made it in before the other side noticed the cancellation
+                    throw new CancellationException();
+                }
+                Response<RSP, ? extends Throwable> response;
+                String oldThreadName = Thread.currentThread().getName();
+                Thread.currentThread().setName(oldThreadName + " for " + channel.getName() + " id=" + id);
+                lock.lock();
+                try {
+                    while ((response = Request.this.response) == null) {
+                        if (isCancelled()) {
+                            throw new CancellationException();
                         }
-                    } catch (InterruptedException e) {
-                        try {
-                            channel.send(new Cancel(id));
-                        } catch (IOException e1) {
-                            // couldn't cancel. ignore.
+                        if (channel.isInClosed()) {
+                            throw new ExecutionException(new RequestAbortedException(null));
                         }
-                        throw e;
-                    } finally {
-                        Thread.currentThread().setName(oldThreadName);
+                        responded.await(30, TimeUnit.SECONDS); // wait until the response arrives
                     }
-
-                    if (response.exception != null) {
-                        throw new ExecutionException(response.exception);
+                } catch (InterruptedException e) {
+                    try {
+                        channel.send(new Cancel(id));
+                    } catch (IOException e1) {
+                        // couldn't cancel. ignore.
                     }
+                    throw e;
+                } finally {
+                    lock.unlock();
+                    Thread.currentThread().setName(oldThreadName);
+                }
 
-                    return response.returnValue;
+                if (response.exception != null) {
+                    throw new ExecutionException(response.exception);
                 }
+
+                return response.returnValue;
             }
 
             @Override
             public RSP get(long timeout, @NonNull TimeUnit unit)
                     throws InterruptedException, ExecutionException, TimeoutException {
-                synchronized (Request.this) {
+                if (isCancelled()) {
+                    throw new CancellationException();
+                }
+                Response<RSP, ? extends Throwable> response;
+                lock.lock();
+                try {
                     // wait until the response arrives
-                    // Note that the wait method can wake up for no reasons at all (AKA spurious wakeup),
+                    // Note that the await method can wake up for no reasons at all (AKA spurious wakeup),
                     long now = System.nanoTime();
                     long end = now + unit.toNanos(timeout);
-                    while (response == null && (end - now > 0L)) {
+                    while ((response = Request.this.response) == null && (end - now > 0L)) {
                         if (isCancelled()) {
                             throw new CancellationException();
                         }
                         if (channel.isInClosed()) {
                             throw new ExecutionException(new RequestAbortedException(null));
                         }
-                        Request.this.wait(Math.min(30 * 1000, Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - now))));
+                        responded.await(Math.min(TimeUnit.SECONDS.toNanos(30), end - now), TimeUnit.NANOSECONDS);
                         now = System.nanoTime();
                     }
-                    if (response == null) {
-                        throw new TimeoutException();
-                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (response == null) {
+                    throw new TimeoutException();
+                }
 
-                    if (response.exception != null) {
-                        throw new ExecutionException(response.exception);
-                    }
+                if (response.exception != null) {
+                    throw new ExecutionException(response.exception);
+                }
+
+                return response.returnValue;
+            }
+        };
+    }
 
-                    return response.returnValue;
+    /**
+     * Makes an invocation that completes the returned future as soon as the response arrives,
+     * without any thread waiting for it.
+     *
+     * <p>
+     * The future is completed by {@link #onCompleted(Response)}, which usually runs on the thread that
+     * reads from the channel, so dependent stages must not block on the same channel; use the asynchronous
+     * variants of the {@link CompletableFuture} methods with an executor for anything more than trivial.
+     * Cancelling the future also cancels the remote computation.
+     *
+     * @param channel
+     *      The channel from which the request will be sent.
+     * @throws IOException
+     *      If there's an error during the communication.
+     */
+    final CompletableFuture<RSP> callCompletable(final Channel channel) throws IOException {
+        checkIfCanBeExecutedOnChannel(channel);
+
+        id = channel.newRequestId();
+        response = null;
+        lastIoId = channel.lastIoId();
+
+        CompletableFuture<RSP> f = new CompletableFuture<>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                if (!super.cancel(mayInterruptIfRunning)) {
+                    return false;
                 }
+                channel.pendingCalls.remove(id);
+                if (mayInterruptIfRunning && !channel.isOutClosed()) {
+                    try {
+                        channel.send(new Cancel(id));
+                    } catch (IOException x) {
+                        logger.log(Level.FINE, "Failed to cancel " + Request.this, x);
+                    }
+                }
+                return true;
             }
         };
+        completion = f;
+        channel.pendingCalls.put(id, this);
+        startTime = System.nanoTime();
+        try {
+            channel.send(this);
+        } catch (IOException | RuntimeException | Error e) {
+            channel.pendingCalls.remove(id);
+            throw e;
+        }
+        return f;
     }
 
     /**
      * Called by the {@link Response} when we received it.
      */
-    /*package*/ synchronized void onCompleted(Response<RSP, ? extends Throwable> response) {
-        this.response = response;
-        notifyAll();
+    /*package*/ void onCompleted(Response<RSP, ? extends Throwable> response) {
+        lock.lock();
+        try {
+            this.response = response;
+            responded.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        // outside the lock, as this runs the dependent stages that are not asynchronous
+        CompletableFuture<RSP> f = completion;
+        if (f != null) {
+            if (response.exception != null) {
+                f.completeExceptionally(response.exception);
+            } else {
+                f.complete(response.returnValue);
+            }
+        }
     }
 
     /**
@@ -420,11 +531,6 @@ public abstract class Request<RSP extends Serializable, EXC extends Throwable> e
         });
     }
 
-    /**
-     * Next request ID.
-     */
-    private static int nextId = 0;
-
     private static final long serialVersionUID = 1L;
 
     private static final Logger logger = Logger.getLogger(Request.class.getName());
@@ -450,6 +556,13 @@ public abstract class Request<RSP extends Serializable, EXC extends Throwable> e
         return r != null ? r.id : 0;
     }
 
+    /**
+     * Reads a {@link Cancel} written by {@link Command#writeCompact(OutputStream)}.
+     */
+    /*package*/ static Command readCompactCancel(InputStream in) throws IOException {
+        return new Cancel(CompactCommandCodec.readInt(in), false);
+    }
+
     /**
      * Interrupts the execution of the remote computation.
      */
@@ -460,6 +573,18 @@ public abstract class Request<RSP extends Serializable, EXC extends Throwable> e
             this.id = id;
         }
 
+        private Cancel(int id, boolean recordCreatedAt) {
+            super(recordCreatedAt);
+            this.id = id;
+        }
+
+        @Override
+        boolean writeCompact(OutputStream out) throws IOException {
+            out.write(CompactCommandCodec.CANCEL);
+            CompactCommandCodec.writeInt(out, id);
+            return true;
+        }
+
         @Override
         protected void execute(Channel channel) {
             Request<?, ?> r = channel.executingCalls.get(id);
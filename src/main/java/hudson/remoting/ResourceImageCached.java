@@ -0,0 +1,76 @@
+package hudson.remoting;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link ResourceImageRef} for an image that is not in a jar, like {@link ResourceImageDirect}, but that is identified
+ * by its {@link Checksum} so that the receiver can keep it in its {@link ClassImageCache}.
+ *
+ * <p>
+ * The payload is left out when the receiver said it already has the image in its cache.
+ *
+ * @see RemoteClassLoader.IClassLoader#fetch5(String, long[])
+ * @since TODO
+ */
+class ResourceImageCached extends ResourceImageRef {
+    /**
+     * Checksum of the image.
+     */
+    final long sum1, sum2;
+
+    /**
+     * The actual resource, or {@code null} if the receiver has it in its cache.
+     */
+    @CheckForNull
+    final byte[] payload;
+
+    ResourceImageCached(Checksum sum, @CheckForNull byte[] payload) {
+        this.sum1 = sum.sum1;
+        this.sum2 = sum.sum2;
+        this.payload = payload;
+    }
+
+    Checksum getChecksum() {
+        return new Checksum(sum1, sum2);
+    }
+
+    @Override
+    Future<byte[]> resolve(Channel channel, String resourcePath) throws IOException, InterruptedException {
+        if (payload != null) {
+            LOGGER.log(Level.FINE, "{0} image is direct", resourcePath);
+            return CompletableFuture.completedFuture(payload);
+        }
+        ClassImageCache cache = channel.getClassImageCache();
+        byte[] image = cache == null ? null : cache.get(getChecksum());
+        if (image == null) {
+            // the caller falls back to fetching the image by name
+            CompletableFuture<byte[]> failed = new CompletableFuture<>();
+            failed.completeExceptionally(
+                    new IOException(resourcePath + " image " + getChecksum() + " is no longer in the cache"));
+            return failed;
+        }
+        LOGGER.log(Level.FINE, "{0} image is cached", resourcePath);
+        return CompletableFuture.completedFuture(image);
+    }
+
+    @Override
+    Future<URLish> resolveURL(Channel channel, String resourcePath) throws IOException, InterruptedException {
+        byte[] image;
+        try {
+            image = resolve(channel, resourcePath).get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        return CompletableFuture.completedFuture(URLish.from(Util.makeResource(resourcePath, image)));
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ResourceImageCached.class.getName());
+
+    private static final long serialVersionUID = 1L;
+}
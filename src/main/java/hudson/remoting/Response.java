@@ -26,6 +26,9 @@ package hudson.remoting;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 
 /**
@@ -83,6 +86,17 @@ public final class Response<RSP extends Serializable, EXC extends Throwable> ext
         this.exception = exception;
     }
 
+    /**
+     * Used by {@link #readCompact(int, InputStream)}.
+     */
+    private Response(int id, int lastIoId, RSP returnValue) {
+        super(false);
+        this.id = id;
+        this.lastIoId = lastIoId;
+        this.returnValue = returnValue;
+        this.exception = null;
+    }
+
     /**
      * Notifies the waiting {@link Request}.
      */
@@ -105,6 +119,34 @@ public final class Response<RSP extends Serializable, EXC extends Throwable> ext
         }
     }
 
+    @Override
+    boolean writeCompact(OutputStream out) throws IOException {
+        if (exception != null) {
+            return false;
+        }
+        int tag = returnValue == null ? CompactCommandCodec.RESPONSE_NULL : UserRequest.compactTagOf(returnValue);
+        if (tag == 0) {
+            return false;
+        }
+        out.write(tag);
+        CompactCommandCodec.writeInt(out, id);
+        CompactCommandCodec.writeInt(out, lastIoId);
+        if (returnValue != null) {
+            UserRequest.writeCompact(returnValue, out);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a response written by {@link #writeCompact(OutputStream)}.
+     */
+    /*package*/ static Response<?, ?> readCompact(int tag, InputStream in) throws IOException {
+        int id = CompactCommandCodec.readInt(in);
+        int lastIoId = CompactCommandCodec.readInt(in);
+        Serializable returnValue = tag == CompactCommandCodec.RESPONSE_NULL ? null : UserRequest.readCompact(tag, in);
+        return new Response<Serializable, Throwable>(id, lastIoId, returnValue);
+    }
+
     @Override
     public String toString() {
         return "Response" + (request != null ? ":" + request : "") + "("
@@ -0,0 +1,223 @@
+package hudson.remoting;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically performs a ping, like {@link PingThread} does, but without a thread of its own.
+ *
+ * <p>
+ * The pings of all channels are scheduled on a single timer thread shared with the other channel timers,
+ * and each ping is sent from the {@link Channel#executor} with {@link Channel#callAsyncCompletable(Callable)}
+ * so that no thread waits for its response, and a channel that is slow to send does not hold up the timer.
+ * This matters when there are many channels to ping, as each {@link PingThread} is a thread that mostly sleeps.
+ *
+ * <p>
+ * When both transports exchange {@link Heartbeats heartbeats}, those are sent instead, which the other side answers
+ * from a thread apart from its {@link Channel#executor}. A saturated executor on the other side then no longer delays
+ * the answer enough to have the channel considered dead.
+ *
+ * <p>
+ * {@link #onDead(Throwable)} method needs to be overridden to define
+ * what to do when a connection appears to be dead. It is called on the {@link Channel#executor} of the channel.
+ *
+ * @since TODO
+ */
+public abstract class ScheduledPing {
+    private final Channel channel;
+
+    /**
+     * Time out in milliseconds.
+     * If the response doesn't come back by then, the channel is considered dead.
+     */
+    private final long timeout;
+
+    /**
+     * Performs a check every this milliseconds.
+     */
+    private final long interval;
+
+    /**
+     * The next ping, or the timeout of the ping in flight.
+     */
+    private ScheduledFuture<?> next;
+
+    private boolean stopped;
+
+    public ScheduledPing(Channel channel, long timeout, long interval) {
+        this.channel = channel;
+        this.timeout = timeout;
+        this.interval = interval;
+    }
+
+    public ScheduledPing(Channel channel, long interval) {
+        this(channel, TimeUnit.MINUTES.toMillis(4), interval);
+    }
+
+    public ScheduledPing(Channel channel) {
+        this(channel, TimeUnit.MINUTES.toMillis(10));
+    }
+
+    /**
+     * Starts pinging, right away and then every {@code interval} milliseconds.
+     */
+    public synchronized void start() {
+        stopped = false;
+        next = ChannelTimer.get().schedule(this::ping, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops pinging. A ping in flight is not waited for.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (next != null) {
+            next.cancel(false);
+            next = null;
+        }
+    }
+
+    /**
+     * Runs on the timer thread, which only arms the timeout and hands the sending to {@link Channel#executor},
+     * as sending may block on a slow transport and the timer is shared by all channels.
+     */
+    private void ping() {
+        if (channel.isClosingOrClosed()) {
+            LOGGER.log(Level.FINE, "Ping for channel {0} is closed. Terminating", channel.getName());
+            stop();
+            return;
+        }
+        long nextCheck = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(interval);
+        LOGGER.log(Level.FINE, "pinging {0}", channel.getName());
+        long start = System.currentTimeMillis();
+        CompletableFuture<Object> ping = new CompletableFuture<>();
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            // armed before sending, so that a send that hangs times out too
+            next = ChannelTimer.get().schedule(() -> ping.cancel(true), timeout, TimeUnit.MILLISECONDS);
+        }
+        ping.whenComplete((v, x) -> {
+            if (x instanceof CompletionException && x.getCause() != null) {
+                x = x.getCause();
+            }
+            if (x == null) {
+                LOGGER.log(Level.FINE, "ping succeeded on {0}", channel.getName());
+                if (v instanceof Long) {
+                    LOGGER.log(Level.FINE, "heartbeat round trip on {0} was {1}us", new Object[] {
+                        channel.getName(), TimeUnit.NANOSECONDS.toMicros((Long) v)
+                    });
+                }
+            } else if (x instanceof RequestAbortedException || x.getCause() instanceof RequestAbortedException) {
+                stop(); // connection has shut down orderly.
+                return;
+            } else if (x instanceof CancellationException) {
+                // only the timeout cancels it
+                dead(new TimeoutException(
+                        "Ping started at " + start + " hasn't completed by " + System.currentTimeMillis()));
+            } else if (x instanceof Sending) {
+                stop();
+                if (x.getCause() instanceof ChannelClosedException) {
+                    LOGGER.log(Level.FINE, "Ping for channel {0} is closed. Terminating", channel.getName());
+                } else {
+                    dead(x.getCause());
+                }
+                return;
+            } else {
+                dead(new ExecutionException(x));
+            }
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+                next.cancel(false);
+                next = ChannelTimer.get()
+                        .schedule(
+                                this::ping,
+                                Math.max(0, nextCheck - System.nanoTime()),
+                                TimeUnit.NANOSECONDS);
+            }
+        });
+        try {
+            channel.executor.execute(() -> send(ping));
+        } catch (RuntimeException e) {
+            // the executor is shut down along with the channel
+            ping.completeExceptionally(new Sending(new ChannelClosedException(channel, e)));
+        }
+    }
+
+    /**
+     * Sends the ping on behalf of {@link #ping()}, and completes it with the response.
+     */
+    private void send(CompletableFuture<Object> ping) {
+        if (ping.isDone()) {
+            // timed out before it could be sent
+            return;
+        }
+        CompletableFuture<?> f;
+        try {
+            f = send();
+        } catch (IOException e) {
+            ping.completeExceptionally(new Sending(e));
+            return;
+        }
+        // cancelling withdraws the request, and has the other side interrupt it
+        ping.whenComplete((v, x) -> f.cancel(true));
+        f.whenComplete((v, x) -> {
+            if (x == null) {
+                ping.complete(v);
+            } else {
+                ping.completeExceptionally(x);
+            }
+        });
+    }
+
+    /**
+     * Sends a heartbeat, or a {@link PingThread.Ping} if either transport has no heartbeats.
+     */
+    /*package*/ CompletableFuture<?> send() throws IOException {
+        CompletableFuture<Long> heartbeat = channel.heartbeat();
+        if (heartbeat != null) {
+            return heartbeat;
+        }
+        return channel.callAsyncCompletable(new PingThread.Ping());
+    }
+
+    /**
+     * Calls {@link #onDead(Throwable)} off the timer thread, unless the channel is already gone.
+     */
+    private void dead(Throwable diagnosis) {
+        try {
+            channel.executor.execute(() -> onDead(diagnosis));
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Ping for channel " + channel.getName() + " failed after it was shut down", e);
+        }
+    }
+
+    /**
+     * Wraps the failure to send a ping, as opposed to a failure of the ping that was sent.
+     */
+    private static final class Sending extends Exception {
+        Sending(IOException cause) {
+            super(cause);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Called when ping failed.
+     */
+    protected abstract void onDead(Throwable diagnosis);
+
+    private static final Logger LOGGER = Logger.getLogger(ScheduledPing.class.getName());
+}
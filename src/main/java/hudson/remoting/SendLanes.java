@@ -0,0 +1,157 @@
+package hudson.remoting;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Orders the commands that threads are concurrently sending through one {@link Channel}, so that requests, responses
+ * and acks are not stuck behind pipe chunks that another thread is streaming.
+ *
+ * <p>
+ * Every {@link Channel#send(Command)} first queues its command in either the control lane or, if
+ * {@link Command#isBulk()}, the bulk lane, then takes the channel lock and writes queued commands, control first,
+ * until its own command is written. A command is therefore only ever written ahead of commands whose
+ * {@link Channel#send(Command)} has not returned yet, so commands sent one after the other, such as the chunks of
+ * one pipe and the {@link Request} that waits on them, keep their order. To keep the bulk lane from starving under a
+ * stream of control commands, a bulk command is written after at most {@link #CONTROL_BURST} control commands.
+ *
+ * <p>
+ * The framing on the wire is unchanged, so this works with any remote side. The lock holder writes whole commands,
+ * so a control command waits for at most one bulk command, which is why pipes send chunks of no more than
+ * {@link #MAX_BULK_CHUNK} bytes.
+ */
+/*package*/ final class SendLanes {
+    private final Queue<Entry> control = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> bulk = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of control commands written in a row while bulk commands were waiting.
+     * Guarded by the channel lock.
+     */
+    private int controlRun;
+
+    /**
+     * Number of control commands written while bulk commands were waiting.
+     * Only updated with the channel lock held.
+     */
+    private volatile long overtakes;
+
+    /**
+     * Writes one command to the transport, with the channel lock held.
+     */
+    /*package*/ interface Writer {
+        void write(Command cmd, @CheckForNull CommandTransport.PreparedCommand prepared) throws IOException;
+    }
+
+    /**
+     * Queues a command, before the channel lock is taken.
+     */
+    /*package*/ Entry add(Command cmd, @CheckForNull CommandTransport.PreparedCommand prepared) {
+        Entry e = new Entry(cmd, prepared);
+        if (!DISABLED && cmd.isBulk()) {
+            bulk.add(e);
+        } else {
+            control.add(e);
+        }
+        return e;
+    }
+
+    /**
+     * Writes queued commands until {@code mine} is written, with the channel lock held.
+     *
+     * @throws IOException
+     *      if {@code mine} could not be written, whether by this thread or by another one that held the lock.
+     */
+    /*package*/ void drain(Entry mine, Writer writer) throws IOException {
+        while (!mine.done) {
+            Entry next = poll();
+            if (next == null) {
+                throw new IllegalStateException(mine.cmd + " is neither queued nor written");
+            }
+            try {
+                writer.write(next.cmd, next.prepared);
+            } catch (IOException | RuntimeException | Error e) {
+                if (next == mine) {
+                    throw e;
+                }
+                next.failure = e;
+            } finally {
+                next.done = true;
+            }
+        }
+        Throwable failure = mine.failure;
+        if (failure instanceof ChannelClosedException) {
+            // created for this very command
+            throw (ChannelClosedException) failure;
+        }
+        if (failure != null) {
+            throw new IOException("Failed to send " + mine.cmd, failure);
+        }
+    }
+
+    private Entry poll() {
+        boolean bulkWaiting = !bulk.isEmpty();
+        if (!bulkWaiting || controlRun < CONTROL_BURST) {
+            Entry next = control.poll();
+            if (next != null) {
+                if (bulkWaiting) {
+                    controlRun++;
+                    overtakes++;
+                }
+                return next;
+            }
+        }
+        controlRun = 0;
+        Entry next = bulk.poll();
+        return next != null ? next : control.poll();
+    }
+
+    /*package*/ void dumpDiagnostics(PrintWriter w) {
+        w.printf("  Commands sent ahead of pipe data=%d%n", overtakes);
+    }
+
+    /**
+     * A command waiting to be written.
+     */
+    /*package*/ static final class Entry {
+        private final Command cmd;
+
+        @CheckForNull
+        private final CommandTransport.PreparedCommand prepared;
+
+        /**
+         * Set once the command has been written or failed to be, with the channel lock held.
+         */
+        private boolean done;
+
+        /**
+         * Why another thread failed to write this command.
+         */
+        @CheckForNull
+        private Throwable failure;
+
+        private Entry(Command cmd, @CheckForNull CommandTransport.PreparedCommand prepared) {
+            this.cmd = cmd;
+            this.prepared = prepared;
+        }
+    }
+
+    /**
+     * Maximum number of bytes of pipe data in one command, which bounds how long a control command can wait for the
+     * bulk command that is being written.
+     */
+    static int MAX_BULK_CHUNK = Integer.getInteger(SendLanes.class.getName() + ".maxBulkChunk", 64 * 1024);
+
+    /**
+     * Maximum number of control commands written in a row while bulk commands are waiting.
+     */
+    static int CONTROL_BURST = Integer.getInteger(SendLanes.class.getName() + ".controlBurst", 16);
+
+    /**
+     * Set to true to write all commands in the order they are sent, as if they were all control commands.
+     */
+    static boolean DISABLED = Boolean.getBoolean(SendLanes.class.getName() + ".disabled");
+}
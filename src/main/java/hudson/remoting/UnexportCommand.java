@@ -24,6 +24,9 @@
 package hudson.remoting;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * {@link Command} that unexports an object.
@@ -37,6 +40,11 @@ public class UnexportCommand extends Command {
         chainCause(cause);
     }
 
+    private UnexportCommand(int oid, boolean recordCreatedAt) {
+        super(recordCreatedAt);
+        this.oid = oid;
+    }
+
     /**
      * @deprecated Use {@link #UnexportCommand(int, Throwable)}
      */
@@ -50,6 +58,20 @@ public class UnexportCommand extends Command {
         channel.unexport(oid, createdAt);
     }
 
+    @Override
+    boolean writeCompact(OutputStream out) throws IOException {
+        out.write(CompactCommandCodec.UNEXPORT);
+        CompactCommandCodec.writeInt(out, oid);
+        return true;
+    }
+
+    /**
+     * Reads the command written by {@link #writeCompact(OutputStream)}.
+     */
+    /*package*/ static UnexportCommand readCompact(InputStream in) throws IOException {
+        return new UnexportCommand(CompactCommandCodec.readInt(in), false);
+    }
+
     @Override
     public String toString() {
         return "Unexport";
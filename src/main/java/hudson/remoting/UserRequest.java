@@ -27,11 +27,13 @@ import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -100,7 +102,7 @@ final class UserRequest<RSP, EXC extends Throwable> extends Request<UserRequest.
         // Serialize the command to the channel
         exports = local.startExportRecording();
         try {
-            request = serialize(c, local);
+            request = serialize(c, local).toByteArray();
         } finally {
             exports.stopRecording();
         }
@@ -236,30 +238,31 @@ final class UserRequest<RSP, EXC extends Throwable> extends Request<UserRequest.
                 Channel.setCurrent(oldc);
             }
 
-            byte[] response = serialize(r, channel);
+            PayloadBuffer response = serialize(r, channel);
             return channel.remoteCapability.supportsProxyExceptionFallback()
                     ? new NormalResponse<>(response)
-                    : new UserResponse<>(response, false);
+                    : new UserResponse<>(response.toByteArray(), false);
         } catch (Throwable e) {
             // propagate this to the calling process
             try {
                 if (channel.remoteCapability.supportsProxyExceptionFallback()) {
                     byte[] rawResponse = null;
                     try {
-                        rawResponse = _serialize(e, channel);
+                        rawResponse = _serialize(e, channel).toByteArray();
                     } catch (NotSerializableException x) {
                         // OK
                     }
-                    byte[] proxyResponse = serialize(new ProxyException(e), channel);
+                    byte[] proxyResponse =
+                            serialize(new ProxyException(e), channel).toByteArray();
                     return new ExceptionResponse<>(rawResponse, proxyResponse);
                 }
                 // Remote side is old, so need to use less robust variant:
                 byte[] response;
                 try {
-                    response = _serialize(e, channel);
+                    response = _serialize(e, channel).toByteArray();
                 } catch (NotSerializableException x) {
                     // perhaps the thrown runtime exception is of type we can't handle
-                    response = serialize(new ProxyException(e), channel);
+                    response = serialize(new ProxyException(e), channel).toByteArray();
                 }
                 return new UserResponse<>(response, true);
             } catch (IOException x) {
@@ -269,25 +272,26 @@ final class UserRequest<RSP, EXC extends Throwable> extends Request<UserRequest.
         }
     }
 
-    private byte[] _serialize(Object o, final Channel channel) throws IOException {
+    private PayloadBuffer _serialize(Object o, final Channel channel) throws IOException {
         Channel old = Channel.setCurrent(channel);
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            PayloadBuffer buffer = new PayloadBuffer();
             ObjectOutputStream oos;
             if (channel.remoteCapability.supportsMultiClassLoaderRPC()) {
-                oos = new MultiClassLoaderSerializer.Output(channel, baos);
+                oos = new MultiClassLoaderSerializer.Output(channel, buffer);
             } else {
-                oos = AnonymousClassWarnings.checkingObjectOutputStream(baos);
+                oos = AnonymousClassWarnings.checkingObjectOutputStream(buffer);
             }
 
             oos.writeObject(o);
-            return baos.toByteArray();
+            oos.flush();
+            return buffer;
         } finally {
             Channel.setCurrent(old);
         }
     }
 
-    private byte[] serialize(Object o, Channel localChannel) throws IOException {
+    private PayloadBuffer serialize(Object o, Channel localChannel) throws IOException {
         try {
             return _serialize(o, localChannel);
         } catch (NotSerializableException e) {
@@ -300,8 +304,14 @@ final class UserRequest<RSP, EXC extends Throwable> extends Request<UserRequest.
             justification = "Used for sending user requests between authorized agent and server.")
     /*package*/ static Object deserialize(final Channel channel, byte[] data, ClassLoader defaultClassLoader)
             throws IOException, ClassNotFoundException {
-        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        return deserialize(channel, new ByteArrayInputStream(data), defaultClassLoader);
+    }
 
+    @SuppressFBWarnings(
+            value = "OBJECT_DESERIALIZATION",
+            justification = "Used for sending user requests between authorized agent and server.")
+    private static Object deserialize(final Channel channel, InputStream in, ClassLoader defaultClassLoader)
+            throws IOException, ClassNotFoundException {
         ObjectInputStream ois;
         if (channel.remoteCapability.supportsMultiClassLoaderRPC()) {
             // this code is coupled with the ObjectOutputStream subtype above
@@ -327,6 +337,59 @@ final class UserRequest<RSP, EXC extends Throwable> extends Request<UserRequest.
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Gets the {@link CompactCommandCodec} tag of a {@link Response} to a {@link UserRequest}.
+     *
+     * @return
+     *      0 if the return value of the response is not a {@link ResponseToUserRequest} that has a compact form.
+     */
+    /*package*/ static int compactTagOf(Object returnValue) {
+        if (returnValue instanceof NormalResponse) {
+            return CompactCommandCodec.RESPONSE_NORMAL;
+        }
+        if (returnValue instanceof ExceptionResponse) {
+            return CompactCommandCodec.RESPONSE_EXCEPTION;
+        }
+        return 0;
+    }
+
+    /**
+     * Writes a return value for which {@link #compactTagOf(Object)} is not 0.
+     */
+    /*package*/ static void writeCompact(Object returnValue, OutputStream out) throws IOException {
+        if (returnValue instanceof NormalResponse) {
+            ((NormalResponse<?, ?>) returnValue).writeCompact(out);
+        } else {
+            ExceptionResponse<?, ?> r = (ExceptionResponse<?, ?>) returnValue;
+            // the length is shifted by one, so that 0 stands for null
+            if (r.rawResponse == null) {
+                CompactCommandCodec.writeInt(out, 0);
+            } else {
+                CompactCommandCodec.writeInt(out, r.rawResponse.length + 1);
+                out.write(r.rawResponse);
+            }
+            CompactCommandCodec.writeBytes(out, r.proxyResponse);
+        }
+    }
+
+    /**
+     * Reads a return value written by {@link #writeCompact(Object, OutputStream)}.
+     */
+    /*package*/ static ResponseToUserRequest<?, ?> readCompact(int tag, InputStream in) throws IOException {
+        if (tag == CompactCommandCodec.RESPONSE_NORMAL) {
+            return new NormalResponse<>(PayloadBuffer.readFrom(in));
+        }
+        byte[] rawResponse = null;
+        int length = CompactCommandCodec.readInt(in);
+        if (length != 0) {
+            rawResponse = in.readNBytes(length - 1);
+            if (rawResponse.length != length - 1) {
+                throw new EOFException();
+            }
+        }
+        return new ExceptionResponse<>(rawResponse, CompactCommandCodec.readBytes(in));
+    }
+
     interface ResponseToUserRequest<RSP, EXC extends Throwable> extends Serializable {
         /**
          * Deserializes the response byte stream into an object.
@@ -336,10 +399,43 @@ final class UserRequest<RSP, EXC extends Throwable> extends Request<UserRequest.
 
     private static final class NormalResponse<RSP, EXC extends Throwable> implements ResponseToUserRequest<RSP, EXC> {
         private static final long serialVersionUID = 1L;
+        /**
+         * The serialized return value, when this response came in as a Java serialized {@link Response}.
+         */
+        @CheckForNull
         private final byte[] response;
 
+        /**
+         * The serialized return value otherwise, which only needs to become a {@code byte[]} in
+         * {@link #writeReplace()}.
+         */
+        @CheckForNull
+        @SuppressFBWarnings(value = "SE_TRANSIENT_FIELD_NOT_RESTORED", justification = "Replaced by the response field")
+        private final transient PayloadBuffer payload;
+
         NormalResponse(byte[] response) {
             this.response = response;
+            this.payload = null;
+        }
+
+        NormalResponse(PayloadBuffer payload) {
+            this.response = null;
+            this.payload = payload;
+        }
+
+        /**
+         * Keeps the Java serialized form of this class as it always was.
+         */
+        private Object writeReplace() {
+            return payload != null ? new NormalResponse<RSP, EXC>(payload.toByteArray()) : this;
+        }
+
+        void writeCompact(OutputStream out) throws IOException {
+            if (payload != null) {
+                payload.writeTo(out);
+            } else {
+                CompactCommandCodec.writeBytes(out, response);
+            }
         }
 
         @SuppressWarnings("unchecked")
@@ -347,7 +443,8 @@ final class UserRequest<RSP, EXC extends Throwable> extends Request<UserRequest.
         public RSP retrieve(Channel channel, ClassLoader cl) throws IOException, ClassNotFoundException {
             Channel old = Channel.setCurrent(channel);
             try {
-                return (RSP) deserialize(channel, response, cl);
+                InputStream in = payload != null ? payload.newInputStream() : new ByteArrayInputStream(response);
+                return (RSP) deserialize(channel, in, cl);
             } finally {
                 Channel.setCurrent(old);
             }
@@ -57,7 +57,7 @@ import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import net.jcip.annotations.GuardedBy;
 import org.jenkinsci.remoting.util.ByteBufferPool;
-import org.jenkinsci.remoting.util.DirectByteBufferPool;
+import org.jenkinsci.remoting.util.MagazineByteBufferPool;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
@@ -129,7 +129,7 @@ public class IOHub implements Executor, Closeable, Runnable, ByteBufferPool {
     /**
      * Our {@link ByteBufferPool}.
      */
-    private final ByteBufferPool bufferPool;
+    private final MagazineByteBufferPool bufferPool;
 
     /**
      * Creates a new {@link IOHub} instance.
@@ -141,7 +141,8 @@ public class IOHub implements Executor, Closeable, Runnable, ByteBufferPool {
         this.selector = Selector.open();
         this.ioHubRunning = true;
         this.executor = executor;
-        this.bufferPool = new DirectByteBufferPool(16916, Runtime.getRuntime().availableProcessors() * 4);
+        this.bufferPool =
+                new MagazineByteBufferPool(16916, 4, Runtime.getRuntime().availableProcessors() * 4);
     }
 
     /**
@@ -701,6 +702,7 @@ public class IOHub implements Executor, Closeable, Runnable, ByteBufferPool {
             sb.append("[closed");
         }
         sb.append(", gen=").append(gen);
+        sb.append(", bufferPool=").append(bufferPool);
         sb.append(']');
         return sb.toString();
     }
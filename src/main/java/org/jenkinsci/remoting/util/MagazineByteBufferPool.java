@@ -0,0 +1,298 @@
+package org.jenkinsci.remoting.util;
+
+import java.lang.ref.Cleaner;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A buffer pool of direct {@link ByteBuffer}s in size classes, that threads can borrow from and return to without
+ * taking any lock.
+ *
+ * <p>
+ * The size classes are the minimum buffer size times the powers of two, up to a number of classes, and a request
+ * is served with a buffer of the smallest class that fits it. Requests larger than the largest class are allocated
+ * each time and are not kept.
+ *
+ * <p>
+ * Each platform thread keeps, for every size class, a magazine of up to {@link #MAGAZINE_SIZE} buffers that it
+ * borrows from and returns to. A thread that empties its magazine swaps it for a full one from the depot, and a
+ * thread that fills its magazine hands it over to the depot, which is a lock-free queue of magazines per size class.
+ * Virtual threads, which are many and short-lived, skip the magazines and borrow from and return to a lock-free
+ * queue of loose buffers per size class, as do the magazines of the threads that have ended.
+ *
+ * <p>
+ * The pool keeps no more than {@code maxPoolSize} buffers per size class in all, magazines included. Buffers that do
+ * not fit are left to the garbage collector, as with {@link DirectByteBufferPool}.
+ *
+ * @since TODO
+ */
+public class MagazineByteBufferPool implements ByteBufferPool {
+    /**
+     * Number of buffers in a magazine.
+     */
+    static final int MAGAZINE_SIZE = 8;
+
+    /**
+     * Hands the magazines of the threads that have ended back to the pool.
+     */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * What {@link #magazines} holds for virtual threads.
+     */
+    private static final Magazine[] NO_MAGAZINES = new Magazine[0];
+
+    /**
+     * The size of the buffers of the smallest class.
+     */
+    private final int bufferSize;
+
+    /**
+     * The full magazines, by size class.
+     */
+    private final Queue<Magazine>[] depot;
+
+    /**
+     * The buffers not in any magazine, by size class.
+     */
+    private final Queue<ByteBuffer>[] loose;
+
+    /**
+     * The number of buffers kept, wherever they are, by size class.
+     */
+    private final AtomicInteger[] counts;
+
+    /**
+     * The maximum number of buffers kept per size class.
+     */
+    private final int maxPoolSize;
+
+    /**
+     * The magazines of the current thread, by size class.
+     */
+    private final ThreadLocal<Magazine[]> magazines;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    private final AtomicLong retainedBytesHighWaterMark = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param minBufferSize the minimum size to create buffers, which is the size of the smallest class.
+     * @param sizeClasses the number of size classes, each twice the size of the previous one.
+     * @param maxPoolSize the maximum buffers to keep per size class, including those in the magazines of threads.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MagazineByteBufferPool(int minBufferSize, int sizeClasses, int maxPoolSize) {
+        if (minBufferSize <= 0 || sizeClasses <= 0 || ((long) minBufferSize << (sizeClasses - 1)) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException();
+        }
+        this.bufferSize = minBufferSize;
+        this.depot = new Queue[sizeClasses];
+        this.loose = new Queue[sizeClasses];
+        this.counts = new AtomicInteger[sizeClasses];
+        for (int i = 0; i < sizeClasses; i++) {
+            depot[i] = new ConcurrentLinkedQueue<>();
+            loose[i] = new ConcurrentLinkedQueue<>();
+            counts[i] = new AtomicInteger();
+        }
+        this.maxPoolSize = maxPoolSize;
+        this.magazines = ThreadLocal.withInitial(this::newMagazines);
+    }
+
+    /**
+     * Creates the magazines of the current thread, which go back to the pool once it has ended.
+     */
+    private Magazine[] newMagazines() {
+        Thread thread = Thread.currentThread();
+        if (VirtualThreads.isVirtual(thread)) {
+            return NO_MAGAZINES;
+        }
+        Magazine[] result = new Magazine[depot.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = new Magazine();
+        }
+        CLEANER.register(thread, new Unload(loose, result));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClassOf(size);
+        if (sizeClass < 0) {
+            misses.increment();
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer result = take(sizeClass);
+        if (result != null) {
+            counts[sizeClass].decrementAndGet();
+            retainedBytes.addAndGet(-result.capacity());
+            hits.increment();
+        } else {
+            result = ByteBuffer.allocateDirect(bufferSize << sizeClass);
+            misses.increment();
+        }
+        ((Buffer) result).clear();
+        ((Buffer) result).limit(size);
+        return result;
+    }
+
+    /**
+     * Takes a buffer of the size class out of the pool, if there is one.
+     */
+    private ByteBuffer take(int sizeClass) {
+        Magazine[] mine = magazines.get();
+        if (mine == NO_MAGAZINES) {
+            ByteBuffer result = loose[sizeClass].poll();
+            if (result == null) {
+                Magazine full = depot[sizeClass].poll();
+                if (full != null) {
+                    result = full.buffers[--full.count];
+                    unload(loose[sizeClass], full);
+                }
+            }
+            return result;
+        }
+        Magazine magazine = mine[sizeClass];
+        if (magazine.count == 0) {
+            Magazine full = depot[sizeClass].poll();
+            if (full != null) {
+                mine[sizeClass] = magazine = full;
+            }
+        }
+        if (magazine.count > 0) {
+            ByteBuffer result = magazine.buffers[--magazine.count];
+            magazine.buffers[magazine.count] = null; // drop reference
+            return result;
+        }
+        return loose[sizeClass].poll();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.isReadOnly() || buffer.capacity() < bufferSize) {
+            // we will let GC tidy any that are smaller than our size
+            return;
+        }
+        // a buffer that is not one of ours goes to the largest class it can serve
+        int sizeClass = Math.min(
+                depot.length - 1, 31 - Integer.numberOfLeadingZeros(buffer.capacity() / bufferSize));
+        if (counts[sizeClass].incrementAndGet() > maxPoolSize) {
+            counts[sizeClass].decrementAndGet();
+            return;
+        }
+        Magazine[] mine = magazines.get();
+        if (mine == NO_MAGAZINES) {
+            loose[sizeClass].add(buffer);
+        } else {
+            Magazine magazine = mine[sizeClass];
+            if (magazine.count == MAGAZINE_SIZE) {
+                depot[sizeClass].add(magazine);
+                mine[sizeClass] = magazine = new Magazine();
+            }
+            magazine.buffers[magazine.count++] = buffer;
+        }
+        long retained = retainedBytes.addAndGet(buffer.capacity());
+        retainedBytesHighWaterMark.accumulateAndGet(retained, Math::max);
+    }
+    /**
+     * Gets the smallest size class that fits the size.
+     *
+     * @return the size class, or {@code -1} if the size is larger than the largest class.
+     */
+    private int sizeClassOf(int size) {
+        if (size <= bufferSize) {
+            return 0;
+        }
+        int sizeClass = 32 - Integer.numberOfLeadingZeros((size - 1) / bufferSize);
+        return sizeClass < depot.length ? sizeClass : -1;
+    }
+
+    /**
+     * Gets the number of requests served with a buffer from the pool.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of requests that needed a new buffer.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the total capacity of the buffers returned to the pool and not borrowed since.
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * Gets the highest value of {@link #getRetainedBytes()} so far.
+     */
+    public long getRetainedBytesHighWaterMark() {
+        return retainedBytesHighWaterMark.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MagazineByteBufferPool{hits=" + getHits() + ", misses=" + getMisses() + ", retainedBytes="
+                + getRetainedBytes() + ", retainedBytesHighWaterMark=" + getRetainedBytesHighWaterMark() + '}';
+    }
+
+    /**
+     * Moves the buffers of a magazine to the loose ones.
+     */
+    private static void unload(Queue<ByteBuffer> loose, Magazine magazine) {
+        while (magazine.count > 0) {
+            loose.add(magazine.buffers[--magazine.count]);
+            magazine.buffers[magazine.count] = null;
+        }
+    }
+
+    /**
+     * A stack of buffers of one size class, only used by one thread at a time.
+     */
+    private static final class Magazine {
+        private final ByteBuffer[] buffers = new ByteBuffer[MAGAZINE_SIZE];
+        private int count;
+    }
+
+    /**
+     * Moves the buffers of the magazines of a thread that has ended to the loose ones, so that other threads can
+     * borrow them. Must not refer to the thread nor to the pool.
+     */
+    private static final class Unload implements Runnable {
+        private final Queue<ByteBuffer>[] loose;
+        private final Magazine[] magazines;
+
+        Unload(Queue<ByteBuffer>[] loose, Magazine[] magazines) {
+            this.loose = loose;
+            this.magazines = magazines;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < magazines.length; i++) {
+                unload(loose[i], magazines[i]);
+            }
+        }
+    }
+}
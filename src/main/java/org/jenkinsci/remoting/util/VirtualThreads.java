@@ -0,0 +1,184 @@
+package org.jenkinsci.remoting.util;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.remoting.ChannelBuilder;
+import hudson.remoting.NamingThreadFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the commands of a channel on virtual threads, where the JVM has them.
+ *
+ * <p>
+ * Every request that the other side sends us occupies a thread of the {@link ChannelBuilder#getExecutors()}
+ * for as long as it runs, including the time it spends blocked on calls back to the other side. With a thread
+ * per request that is cheap to create and to park, an agent can have a large number of such calls in flight.
+ * Remoting itself waits for responses and pipe windows with {@link java.util.concurrent.locks} rather than
+ * monitors, so that waiting does not pin the carrier thread.
+ *
+ * <p>
+ * Remoting is built for Java versions without virtual threads, so they are looked up reflectively.
+ *
+ * @since TODO
+ */
+public final class VirtualThreads {
+    private static final Logger LOGGER = Logger.getLogger(VirtualThreads.class.getName());
+
+    /**
+     * {@code Thread.ofVirtual()}, or {@code null} if the JVM has no virtual threads.
+     */
+    @CheckForNull
+    private static final Method OF_VIRTUAL;
+
+    /**
+     * {@code Thread.Builder.factory()}.
+     */
+    @CheckForNull
+    private static final Method FACTORY;
+
+    /**
+     * {@code Executors.newThreadPerTaskExecutor(ThreadFactory)}.
+     */
+    @CheckForNull
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    /**
+     * {@code Thread.isVirtual()}.
+     */
+    @CheckForNull
+    private static final Method IS_VIRTUAL;
+
+    static {
+        Method ofVirtual = null;
+        Method factory = null;
+        Method newThreadPerTaskExecutor = null;
+        Method isVirtual = null;
+        // virtual threads are a preview feature before 21
+        if (Runtime.version().feature() >= 21) {
+            try {
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+                newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                isVirtual = Thread.class.getMethod("isVirtual");
+            } catch (ReflectiveOperationException e) {
+                LOGGER.log(Level.FINE, "Virtual threads are not available", e);
+                ofVirtual = null;
+            }
+        }
+        OF_VIRTUAL = ofVirtual;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+        IS_VIRTUAL = ofVirtual == null ? null : isVirtual;
+    }
+
+    private VirtualThreads() {
+        // The class cannot be constructed
+    }
+
+    /**
+     * Checks if this JVM can create virtual threads.
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Checks if the given thread is a virtual thread.
+     */
+    public static boolean isVirtual(@NonNull Thread thread) {
+        return IS_VIRTUAL != null && (Boolean) invoke(IS_VIRTUAL, thread);
+    }
+
+    /**
+     * Checks if the built-in executors, such as the one of an agent, should use virtual threads.
+     *
+     * @return
+     *      {@code true} if requested with the {@code org.jenkinsci.remoting.util.VirtualThreads.enabled}
+     *      system property and supported by this JVM.
+     */
+    public static boolean isEnabled() {
+        if (!ENABLED) {
+            return false;
+        }
+        if (!isSupported()) {
+            LOGGER.log(
+                    Level.WARNING,
+                    "Virtual threads were requested, but Java {0} does not support them; using platform threads",
+                    Runtime.version());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates a factory of unnamed virtual threads.
+     *
+     * @throws UnsupportedOperationException
+     *      If {@link #isSupported()} does not hold.
+     */
+    @NonNull
+    public static ThreadFactory newThreadFactory() {
+        if (OF_VIRTUAL == null) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+        }
+        return (ThreadFactory) invoke(FACTORY, invoke(OF_VIRTUAL, null));
+    }
+
+    /**
+     * Creates an executor that starts a new thread of the given factory for each task, which is how
+     * virtual threads are meant to be used instead of being pooled.
+     *
+     * @param factory
+     *      Typically wraps {@link #newThreadFactory()}.
+     * @throws UnsupportedOperationException
+     *      If {@link #isSupported()} does not hold.
+     */
+    @NonNull
+    public static ExecutorService newThreadPerTaskExecutor(@NonNull ThreadFactory factory) {
+        if (NEW_THREAD_PER_TASK_EXECUTOR == null) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+        }
+        return (ExecutorService) invoke(NEW_THREAD_PER_TASK_EXECUTOR, null, factory);
+    }
+
+    /**
+     * Creates an executor that runs each task on a new virtual thread, suitable for {@link ChannelBuilder}.
+     *
+     * @param name
+     *      Used to name the threads, as {@link NamingThreadFactory} does.
+     * @throws UnsupportedOperationException
+     *      If {@link #isSupported()} does not hold.
+     */
+    @NonNull
+    public static ExecutorService newExecutorService(@NonNull String name) {
+        return newThreadPerTaskExecutor(new NamingThreadFactory(newThreadFactory(), name));
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new UnsupportedOperationException(cause);
+        }
+    }
+
+    /**
+     * Set to true to run the commands of agent channels on virtual threads, if supported by the JVM.
+     */
+    static boolean ENABLED = Boolean.getBoolean(VirtualThreads.class.getName() + ".enabled");
+}
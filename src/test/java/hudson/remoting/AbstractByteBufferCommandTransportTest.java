@@ -0,0 +1,162 @@
+package hudson.remoting;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class AbstractByteBufferCommandTransportTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private long coalesceMicros;
+
+    @BeforeEach
+    void setUp() {
+        coalesceMicros = AbstractByteBufferCommandTransport.COALESCE_MICROS;
+        AbstractByteBufferCommandTransport.COALESCE_MICROS = TimeUnit.MILLISECONDS.toMicros(50);
+    }
+
+    @AfterEach
+    void tearDown() {
+        AbstractByteBufferCommandTransport.COALESCE_MICROS = coalesceMicros;
+        executor.shutdownNow();
+    }
+
+    @Test
+    void coalescing() throws Exception {
+        Loopback north = new Loopback();
+        Loopback south = new Loopback();
+        north.peer = south;
+        south.peer = north;
+        Channel southChannel = executor.submit(() -> new ChannelBuilder("south", executor).build(south))
+                .get();
+        Channel channel = new ChannelBuilder("north", executor).build(north);
+        try {
+            int writes = north.writes.get();
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(channel.callAsync(new Echo(i)));
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, futures.get(i).get(10, TimeUnit.SECONDS).intValue());
+            }
+            assertThat(north.writes.get() - writes, lessThan(50));
+            // the timer shared by all channels does not write itself
+            assertThat(north.writers.toString(), not(containsString(ChannelTimer.class.getSimpleName())));
+
+            StringWriter diagnostics = new StringWriter();
+            channel.dumpDiagnostics(new PrintWriter(diagnostics));
+            assertThat(diagnostics.toString(), containsString("Average commands per write="));
+        } finally {
+            channel.close();
+            channel.join(10_000);
+            southChannel.join(10_000);
+        }
+    }
+
+    @Test
+    void heartbeats() throws Exception {
+        Loopback north = new Loopback();
+        Loopback south = new Loopback();
+        north.peer = south;
+        south.peer = north;
+        Channel southChannel = executor.submit(() -> new ChannelBuilder("south", executor).build(south))
+                .get();
+        Channel channel = new ChannelBuilder("north", executor).build(north);
+        try {
+            // heartbeats go in between the frames of commands that take many frames and do not compress
+            HeartbeatsTest.exchange(channel);
+        } finally {
+            channel.close();
+            channel.join(10_000);
+            southChannel.join(10_000);
+        }
+    }
+
+    /**
+     * Delivers whatever one side writes to the other side, on a separate thread as the network would.
+     */
+    private static class Loopback extends AbstractByteBufferCommandTransport {
+        private final ExecutorService delivery = Executors.newSingleThreadExecutor();
+        private final AtomicInteger writes = new AtomicInteger();
+        private final Set<String> writers = ConcurrentHashMap.newKeySet();
+        private Loopback peer;
+
+        Loopback() {
+            super(true);
+        }
+
+        @Override
+        protected void write(ByteBuffer headerAndData) throws IOException {
+            writes.incrementAndGet();
+            writers.add(Thread.currentThread().getName());
+            ByteBuffer copy = ByteBuffer.allocate(headerAndData.remaining());
+            copy.put(headerAndData).flip();
+            delivery.submit(() -> {
+                peer.receive(copy);
+                return null;
+            });
+        }
+
+        @Override
+        public Capability getRemoteCapability() {
+            return new Capability();
+        }
+
+        @Override
+        public void closeWrite() {
+            delivery.submit(() -> peer.terminate(new IOException("closed")));
+            delivery.shutdown();
+        }
+
+        @Override
+        public void closeRead() {}
+    }
+
+    private static class Echo extends CallableBase<Integer, RuntimeException> {
+        private final int value;
+
+        Echo(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public Integer call() {
+            return value;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Length extends CallableBase<Integer, RuntimeException> {
+        private final byte[] data;
+
+        Length(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public Integer call() {
+            return data.length;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
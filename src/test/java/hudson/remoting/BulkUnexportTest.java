@@ -0,0 +1,167 @@
+package hudson.remoting;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link BulkUnexportCommand} and how the proxies that are garbage collected get batched into those.
+ */
+class BulkUnexportTest {
+
+    @Test
+    void duplicates() throws Exception {
+        new InProcessRunner().withChannel(channel -> {
+            Object thrice = new Object();
+            Object once = new Object();
+            int a = channel.exportedObjects.export(Object.class, thrice);
+            channel.exportedObjects.export(Object.class, thrice);
+            channel.exportedObjects.export(Object.class, thrice);
+            int b = channel.exportedObjects.export(Object.class, once);
+
+            new BulkUnexportCommand(new int[] {a, a, b}).execute(channel);
+            assertTrue(channel.exportedObjects.isExported(thrice));
+            assertFalse(channel.exportedObjects.isExported(once));
+
+            new BulkUnexportCommand(new int[] {a}).execute(channel);
+            assertFalse(channel.exportedObjects.isExported(thrice));
+        });
+    }
+
+    /**
+     * Many proxies that go away together are unexported in batches.
+     */
+    @Test
+    void flushedOnSize() throws Exception {
+        new InProcessRunner().withChannel(channel -> {
+            assumeTrue(channel.remoteCapability.supportsBulkUnexport());
+            List<Command> sent = record(channel);
+            importAndDrop(channel, 1000);
+            awaitUnexported(sent, 1000);
+            int bulks = 0;
+            for (Command cmd : sent) {
+                int length = ((BulkUnexportCommand) cmd).oids.length;
+                // the default batch size
+                assertTrue(length <= 256, sent::toString);
+                bulks++;
+            }
+            assertTrue(bulks >= 4, sent::toString);
+        });
+    }
+
+    /**
+     * A proxy that goes away on its own does not wait for others to fill a batch.
+     */
+    @Test
+    void flushedOnTime() throws Exception {
+        new InProcessRunner().withChannel(channel -> {
+            assumeTrue(channel.remoteCapability.supportsBulkUnexport());
+            List<Command> sent = record(channel);
+            importAndDrop(channel, 1);
+            awaitUnexported(sent, 1);
+            assertEquals(1, sent.size(), sent::toString);
+            assertEquals(1, ((BulkUnexportCommand) sent.get(0)).oids.length);
+        });
+    }
+
+    /**
+     * With export traces on, where the proxies were created is sent along, one proxy at a time.
+     */
+    @Test
+    void origin() throws Exception {
+        boolean traces = ExportTable.EXPORT_TRACES;
+        ExportTable.EXPORT_TRACES = true;
+        try {
+            new InProcessRunner().withChannel(channel -> {
+                List<Command> sent = record(channel);
+                importAndDrop(channel, 3);
+                awaitUnexported(sent, 3);
+                for (Command cmd : sent) {
+                    assertTrue(cmd instanceof UnexportCommand, sent::toString);
+                    assertTrue(cmd.createdAt != null && cmd.createdAt.getCause() != null, sent::toString);
+                }
+            });
+        } finally {
+            ExportTable.EXPORT_TRACES = traces;
+        }
+    }
+
+    /**
+     * Records the unexport commands that the channel writes.
+     */
+    private static List<Command> record(Channel channel) {
+        List<Command> sent = Collections.synchronizedList(new ArrayList<>());
+        channel.addListener(new Channel.Listener() {
+            @Override
+            public void onWrite(Channel channel, Command cmd, long blockSize) {
+                if (cmd instanceof BulkUnexportCommand || cmd instanceof UnexportCommand) {
+                    sent.add(cmd);
+                }
+            }
+        });
+        return sent;
+    }
+
+    /**
+     * Has the other side export objects, and lets go of the proxies to them that come back.
+     */
+    private static void importAndDrop(Channel channel, int count) throws Exception {
+        assertEquals(count, channel.call(new Export(count)).size());
+    }
+
+    private static void awaitUnexported(List<Command> sent, int count) throws Exception {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (unexported(sent) < count) {
+            if (System.nanoTime() - end > 0) {
+                throw new TimeoutException(unexported(sent) + " of " + count + " unexported: " + sent);
+            }
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertEquals(count, unexported(sent), sent::toString);
+    }
+
+    private static int unexported(List<Command> sent) {
+        synchronized (sent) {
+            int n = 0;
+            for (Command cmd : sent) {
+                n += cmd instanceof BulkUnexportCommand ? ((BulkUnexportCommand) cmd).oids.length : 1;
+            }
+            return n;
+        }
+    }
+
+    private static class Export extends CallableBase<List<Runnable>, IOException> {
+        private final int count;
+
+        Export(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public List<Runnable> call() throws IOException {
+            Channel channel = getChannelOrFail();
+            List<Runnable> proxies = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                proxies.add(channel.export(Runnable.class, new Noop()));
+            }
+            return proxies;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Noop implements Runnable {
+        @Override
+        public void run() {}
+    }
+}
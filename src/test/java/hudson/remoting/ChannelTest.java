@@ -24,6 +24,7 @@ import java.net.URLClassLoader;
 import java.nio.channels.ClosedChannelException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -230,6 +231,36 @@ class ChannelTest {
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Commands serialized concurrently outside the channel lock must still arrive whole and be matched
+     * to the right caller.
+     */
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void testConcurrentCalls(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            ExecutorService svc = Executors.newFixedThreadPool(8);
+            try {
+                List<java.util.concurrent.Future<Void>> results = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    final int thread = t;
+                    results.add(svc.submit(() -> {
+                        for (int i = 0; i < 50; i++) {
+                            String payload = thread + ":" + i + ":" + "x".repeat(i * 100);
+                            assertEquals(payload, channel.call(new Echo<>(payload)));
+                        }
+                        return null;
+                    }));
+                }
+                for (java.util.concurrent.Future<Void> result : results) {
+                    result.get(60, TimeUnit.SECONDS);
+                }
+            } finally {
+                svc.shutdownNow();
+            }
+        });
+    }
+
     @Issue("JENKINS-39150")
     @ParameterizedTest
     @MethodSource(ChannelRunners.PROVIDER_METHOD)
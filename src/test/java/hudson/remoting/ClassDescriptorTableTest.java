@@ -0,0 +1,120 @@
+package hudson.remoting;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class ClassDescriptorTableTest {
+
+    private final ClassDescriptorTable sender = new ClassDescriptorTable();
+    private final ClassDescriptorTable receiver = new ClassDescriptorTable();
+
+    @Test
+    void descriptorsAreOnlySentOnce() throws Exception {
+        byte[] first = write(new ArrayList<>(List.of(1, 2L, "first")), true);
+        byte[] second = write(new ArrayList<>(List.of(3, 4L, "second")), true);
+        assertTrue(
+                second.length < first.length / 2,
+                "expected the second stream to refer to the descriptors of the first one, but got " + second.length
+                        + " vs " + first.length + " bytes");
+
+        assertEquals(List.of(1, 2L, "first"), read(first));
+        assertEquals(List.of(3, 4L, "second"), read(second));
+        assertEquals("third", ((IOException) read(write(new IOException("third"), true))).getMessage());
+    }
+
+    @Test
+    void uncommittedDescriptorsAreSentAgain() throws Exception {
+        byte[] first = write(new IOException("first"), false);
+        byte[] second = write(new IOException("first"), true);
+        assertEquals(first.length, second.length);
+
+        assertEquals("first", ((IOException) read(second)).getMessage());
+        assertEquals("third", ((IOException) read(write(new IOException("third"), true))).getMessage());
+    }
+
+    @Test
+    void referenceToUnknownDescriptor() throws Exception {
+        write(new IOException("first"), true);
+        byte[] second = write(new IOException("second"), true);
+        assertThrows(StreamCorruptedException.class, () -> read(second));
+    }
+
+    @Test
+    void definitionsOfRejectedStream() throws Exception {
+        // the stream is rejected as soon as it gets to the first element, before any of the exception is read
+        byte[] first = write(new ArrayList<>(List.of(new Rejected(), new IOException("first"))), true);
+        ClassFilter filter = new ClassFilter() {
+            @Override
+            public boolean isBlacklisted(String name) {
+                return name.equals(Rejected.class.getName());
+            }
+        };
+        assertThrows(SecurityException.class, () -> read(first, filter));
+
+        // yet the descriptors that the exception defined are there for the next stream
+        assertEquals("second", ((IOException) read(write(new IOException("second"), true), filter)).getMessage());
+        assertThrows(SecurityException.class, () -> read(write(new Rejected(), true), filter));
+    }
+
+    @Test
+    void regularStreams() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = sender.newOutputStream(Capability.NONE, baos)) {
+            oos.writeObject(new IOException("plain"));
+        }
+        byte[] plain = baos.toByteArray();
+        assertEquals((byte) 0xAC, plain[0]);
+        assertEquals((byte) 0xED, plain[1]);
+
+        assertEquals("plain", ((IOException) read(plain)).getMessage());
+        assertEquals("plain", ((IOException) read(plain)).getMessage());
+    }
+
+    private byte[] write(Object o, boolean commit) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = sender.newOutputStream(new Capability(), baos);
+        try (oos) {
+            oos.writeObject(o);
+        }
+        Map<Class<?>, Integer> definitions = ClassDescriptorTable.definitionsOf(oos);
+        if (commit) {
+            sender.commit(definitions);
+        }
+        byte[] header = ClassDescriptorTable.headerOf(oos);
+        if (header == null) {
+            return baos.toByteArray();
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(header);
+        baos.writeTo(payload);
+        return payload.toByteArray();
+    }
+
+    private Object read(byte[] payload) throws IOException, ClassNotFoundException {
+        return read(payload, ClassFilter.NONE);
+    }
+
+    private Object read(byte[] payload, ClassFilter filter) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois =
+                receiver.newInputStream(new ByteArrayInputStream(payload), getClass().getClassLoader(), filter)) {
+            return ois.readObject();
+        }
+    }
+
+    private static class Rejected implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+}
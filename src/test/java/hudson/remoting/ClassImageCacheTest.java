@@ -0,0 +1,59 @@
+package hudson.remoting;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link ClassImageCache}.
+ */
+class ClassImageCacheTest {
+
+    private static final byte[] IMAGE = "not really a class file".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    private File tmp;
+
+    private ClassImageCache cache;
+
+    @BeforeEach
+    void beforeEach() {
+        cache = new ClassImageCache(tmp);
+    }
+
+    @Test
+    void roundTrip() {
+        Checksum sum = Checksum.forBytes(IMAGE);
+        assertNull(cache.get(sum));
+        cache.put(sum, IMAGE);
+        assertArrayEquals(IMAGE, cache.get(sum));
+        assertArrayEquals(IMAGE, new ClassImageCache(tmp).get(sum));
+    }
+
+    @Test
+    void corruptedImage() throws Exception {
+        Checksum sum = Checksum.forBytes(IMAGE);
+        cache.put(sum, IMAGE);
+        File image = cache.map(sum);
+        Files.write(image.toPath(), "tampered".getBytes(StandardCharsets.UTF_8));
+        assertNull(cache.get(sum));
+        assertFalse(image.exists());
+    }
+
+    @Test
+    void sums() {
+        assertEquals(0, cache.getSums("Foo").length);
+        long[] sums = {1, 2, 3, 4};
+        cache.putSums("Foo", sums);
+        assertArrayEquals(sums, cache.getSums("Foo"));
+        assertEquals(0, cache.getSums("Bar").length);
+    }
+}
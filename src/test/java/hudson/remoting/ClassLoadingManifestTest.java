@@ -0,0 +1,60 @@
+package hudson.remoting;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for {@link ClassLoadingManifest}.
+ */
+class ClassLoadingManifestTest {
+
+    @TempDir
+    private File tmp;
+
+    @Test
+    void roundTrip() {
+        File file = new File(tmp, "warmUp/controller.manifest");
+        ClassLoadingManifest first = ClassLoadingManifest.load(file);
+        ClassLoadingManifest.Section section = first.open("plugin");
+        assertFalse(section.claimWarmUp());
+        section.addClass("org.acme.Foo");
+        section.addClass("org.acme.Bar");
+        section.addResource("org/acme/foo.properties");
+        first.open("@org.acme.Main").addClass("org.acme.Main");
+        first.save();
+
+        ClassLoadingManifest second = ClassLoadingManifest.load(file);
+        section = second.open("plugin");
+        assertTrue(section.claimWarmUp());
+        assertFalse(section.claimWarmUp());
+        assertArrayEquals(new String[] {"org.acme.Foo", "org.acme.Bar"}, section.getClasses());
+        assertArrayEquals(new String[] {"org/acme/foo.properties"}, section.getResources());
+        section.removeClass("org.acme.Bar");
+        section.addClass("org.acme.Baz");
+        second.save();
+
+        // written once per session
+        second.open("plugin").addClass("org.acme.Late");
+        second.save();
+
+        ClassLoadingManifest third = ClassLoadingManifest.load(file);
+        assertArrayEquals(new String[] {"org.acme.Foo", "org.acme.Baz"}, third.open("plugin").getClasses());
+        // dropped as it did not come up in the second session
+        assertFalse(third.open("@org.acme.Main").claimWarmUp());
+    }
+
+    @Test
+    void unrecordable() {
+        ClassLoadingManifest manifest = ClassLoadingManifest.load(new File(tmp, "controller.manifest"));
+        assertNull(manifest.open("two\nlines"));
+        ClassLoadingManifest.Section section = manifest.open("plugin");
+        section.addResource("two\nlines");
+        assertArrayEquals(new String[0], section.getResources());
+    }
+}
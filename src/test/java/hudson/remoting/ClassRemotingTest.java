@@ -26,15 +26,19 @@ package hudson.remoting;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.jvnet.hudson.test.Issue;
@@ -49,6 +53,9 @@ import org.objectweb.asm.Opcodes;
  */
 class ClassRemotingTest {
 
+    @TempDir
+    private File jarCache;
+
     private static final String TESTCALLABLE_TRANSFORMED_CLASSNAME = "hudson.rem0ting.TestCallable";
     private static final String TESTLINKAGE_TRANSFORMED_CLASSNAME = "hudson.rem0ting.TestLinkage";
 
@@ -184,6 +191,44 @@ class ClassRemotingTest {
         });
     }
 
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void testNegativeLookupCache(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            final DummyClassLoader dcl = new DummyClassLoader(TestNegativeLookups.class);
+            final Callable<Object, Exception> callable =
+                    (Callable<Object, Exception>) dcl.load(TestNegativeLookups.class);
+            // the first class and resource lookups go to this side, the other two of each do not
+            assertEquals(4, channel.call(callable));
+        });
+    }
+
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void testAbsentReference(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            assumeTrue(channel.remoteCapability.supportsAbsentClasses());
+            // the other side prefetches only when it has a jar cache
+            channel.call(new JarCacher(jarCache));
+            final DummyClassLoader dcl = new DummyClassLoader(TestAbsentReference.class);
+            final Callable<Object, Exception> callable =
+                    (Callable<Object, Exception>) dcl.load(TestAbsentReference.class);
+            // told along with the class that refers to it, then forgotten on pin
+            assertEquals("1 0 1", channel.call(callable));
+        });
+    }
+
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void testParallelLoads(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            final DummyClassLoader dcl = new DummyClassLoader(
+                    TestParallelLoads.class, TestParallelLoads.A.class, TestParallelLoads.B.class, TestParallelLoads.C.class);
+            final Callable<Object, Exception> callable = (Callable<Object, Exception>) dcl.load(TestParallelLoads.class);
+            assertNull(channel.call(callable));
+        });
+    }
+
     static void assertTestStaticResourceReferenceResults(
             Channel channel, Callable<Object, Exception> callable, Object result) throws Exception {
         assertEquals(String.class, channel.call(callable).getClass());
@@ -234,6 +279,22 @@ class ClassRemotingTest {
         }
     }
 
+    private static class JarCacher extends CallableBase<Void, IOException> {
+        private final File dir;
+
+        JarCacher(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            getChannelOrFail().setJarCache(new FileSystemJarCache(dir, true));
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
     private static class RemotePropertyVerifier extends CallableBase<Object, IOException> {
         @Override
         public Object call() throws IOException {
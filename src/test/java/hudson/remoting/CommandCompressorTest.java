@@ -0,0 +1,132 @@
+package hudson.remoting;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class CommandCompressorTest {
+
+    private final CommandCompressor compressor = new CommandCompressor();
+
+    @Test
+    void compressible() throws Exception {
+        byte[] payload = "All work and no play makes Jack a dull boy. ".repeat(1000).getBytes();
+        byte[] written = write(payload);
+        assertEquals(CommandCompressor.DEFLATED, written[0]);
+        assertTrue(written.length < payload.length / 10, "compressed to " + written.length + " bytes");
+        assertArrayEquals(payload, inflate(written));
+        // again, with the same inflater
+        assertArrayEquals(payload, inflate(written));
+    }
+
+    @Test
+    void tooLargeToInflate() throws Exception {
+        int maxInflatedSize = CommandCompressor.MAX_INFLATED_SIZE;
+        try {
+            byte[] payload = new byte[64 * 1024];
+            byte[] written = write(payload);
+            assertEquals(CommandCompressor.DEFLATED, written[0]);
+            CommandCompressor.MAX_INFLATED_SIZE = payload.length - 1;
+            IOException e = assertThrows(IOException.class, () -> inflate(written));
+            assertTrue(e.getMessage().contains("inflates to more than"), e::getMessage);
+            // nor is anything that large compressed to begin with, even when the setting is larger
+            assertArrayEquals(payload, write(payload));
+        } finally {
+            CommandCompressor.MAX_INFLATED_SIZE = maxInflatedSize;
+        }
+    }
+
+    @Test
+    void tooLargeToCompress() throws Exception {
+        int maxSize = CommandCompressor.MAX_SIZE;
+        try {
+            byte[] payload = new byte[64 * 1024];
+            CommandCompressor.MAX_SIZE = payload.length - 1;
+            assertArrayEquals(payload, write(payload));
+        } finally {
+            CommandCompressor.MAX_SIZE = maxSize;
+        }
+    }
+
+    @Test
+    void small() throws Exception {
+        byte[] payload = "All work and no play makes Jack a dull boy. ".getBytes();
+        assertArrayEquals(payload, write(payload));
+    }
+
+    @Test
+    void backOffWhenIncompressible() throws Exception {
+        byte[] random = new byte[64 * 1024];
+        new Random(0).nextBytes(random);
+        byte[] text = "All work and no play makes Jack a dull boy. ".repeat(1000).getBytes();
+
+        // skips 1, 2, 4, ... commands after each failure
+        assertArrayEquals(random, write(random));
+        assertArrayEquals(text, write(text));
+        assertArrayEquals(random, write(random));
+        assertArrayEquals(text, write(text));
+        assertArrayEquals(text, write(text));
+        assertEquals(CommandCompressor.DEFLATED, write(text)[0]);
+
+        // and a good ratio resets that
+        assertArrayEquals(random, write(random));
+        assertArrayEquals(text, write(text));
+        assertEquals(CommandCompressor.DEFLATED, write(text)[0]);
+    }
+
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void largeCall(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            String text = "All work and no play makes Jack a dull boy. ".repeat(100_000);
+            assertEquals(text, channel.call(new Echo(text)));
+        });
+    }
+
+    /**
+     * What is sent for the given serialized command.
+     */
+    private byte[] write(byte[] payload) {
+        if (compressor.shouldCompress(payload.length)) {
+            byte[] compressed = new byte[CommandCompressor.bound(payload.length)];
+            int length = compressor.compress(payload, payload.length, compressed);
+            if (length >= 0) {
+                return Arrays.copyOf(compressed, length);
+            }
+        }
+        return payload;
+    }
+
+    private byte[] inflate(byte[] written) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(written);
+        assertEquals(CommandCompressor.DEFLATED, in.read());
+        try (InputStream inflated = compressor.inflate(in)) {
+            return inflated.readAllBytes();
+        }
+    }
+
+    private static class Echo extends CallableBase<String, RuntimeException> {
+        private final String text;
+
+        Echo(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public String call() {
+            return text;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,270 @@
+package hudson.remoting;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class CompactCommandCodecTest {
+
+    @Test
+    void varints() throws Exception {
+        int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (int v : values) {
+            CompactCommandCodec.writeInt(baos, v);
+        }
+        InputStream in = new ByteArrayInputStream(baos.toByteArray());
+        for (int v : values) {
+            assertEquals(v, CompactCommandCodec.readInt(in));
+        }
+        assertThrows(EOFException.class, () -> CompactCommandCodec.readInt(in));
+
+        baos.reset();
+        CompactCommandCodec.writeInt(baos, 127);
+        assertEquals(1, baos.size());
+    }
+
+    @Test
+    void malformedVarint() {
+        byte[] tooLong = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0};
+        assertThrows(
+                StreamCorruptedException.class, () -> CompactCommandCodec.readInt(new ByteArrayInputStream(tooLong)));
+    }
+
+    @Test
+    void bytes() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CompactCommandCodec.writeBytes(baos, new byte[] {1, 2, 3});
+        CompactCommandCodec.writeBytes(baos, new byte[0]);
+        byte[] payload = baos.toByteArray();
+        InputStream in = new ByteArrayInputStream(payload);
+        assertArrayEquals(new byte[] {1, 2, 3}, CompactCommandCodec.readBytes(in));
+        assertArrayEquals(new byte[0], CompactCommandCodec.readBytes(in));
+
+        assertThrows(
+                EOFException.class,
+                () -> CompactCommandCodec.readBytes(new ByteArrayInputStream(payload, 0, payload.length - 2)));
+    }
+
+    @Test
+    void tagsDoNotCollideWithSerialization() {
+        assertFalse(CompactCommandCodec.isCompact((ObjectStreamConstants.STREAM_MAGIC >> 8) & 0xFF));
+        assertFalse(CompactCommandCodec.isCompact((ClassDescriptorTable.MAGIC >> 8) & 0xFF));
+        assertFalse(CompactCommandCodec.isCompact(-1));
+        assertTrue(CompactCommandCodec.isCompact(CompactCommandCodec.PIPE_CHUNK));
+    }
+
+    @Test
+    void unexport() throws Exception {
+        Command cmd = roundTrip(new UnexportCommand(42, null));
+        assertInstanceOf(UnexportCommand.class, cmd);
+        assertNull(cmd.createdAt);
+    }
+
+    @Test
+    void renewLeases() throws Exception {
+        int[] oids = {3, 4, 5, 1000, 1_000_000};
+        Command cmd = roundTrip(new RenewLeasesCommand(oids));
+        assertArrayEquals(oids, ((RenewLeasesCommand) cmd).oids);
+    }
+
+    @Test
+    void bulkUnexport() throws Exception {
+        int[] oids = {3, 4, 4, 5, 6, 1000, 1000, 1001, 1_000_000};
+        Command cmd = roundTrip(new BulkUnexportCommand(oids));
+        assertArrayEquals(oids, ((BulkUnexportCommand) cmd).oids);
+    }
+
+    @Test
+    void nullResponse() throws Exception {
+        Response<?, ?> rsp = (Response<?, ?>)
+                roundTrip(new Response<Serializable, Throwable>(null, 7, 3, (Serializable) null));
+        assertNull(rsp.returnValue);
+        assertNull(rsp.exception);
+    }
+
+    @Test
+    void chunk() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(CompactCommandCodec.PIPE_CHUNK);
+        CompactCommandCodec.writeInt(baos, 1000);
+        CompactCommandCodec.writeInt(baos, 42);
+        CompactCommandCodec.writeInt(baos, 7);
+        CompactCommandCodec.writeBytes(baos, new byte[] {1, 2, 3});
+        Command cmd = reencode(baos.toByteArray());
+        assertEquals("Pipe.Chunk(42,3)", cmd.toString());
+        assertNull(cmd.createdAt);
+    }
+
+    @Test
+    void flush() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(CompactCommandCodec.PIPE_FLUSH);
+        CompactCommandCodec.writeInt(baos, 1000);
+        CompactCommandCodec.writeInt(baos, 42);
+        CompactCommandCodec.writeInt(baos, 7);
+        assertEquals("Pipe.Flush(42)", reencode(baos.toByteArray()).toString());
+    }
+
+    @Test
+    void valueResponse() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(CompactCommandCodec.RESPONSE_NORMAL);
+        CompactCommandCodec.writeInt(baos, 7);
+        CompactCommandCodec.writeInt(baos, 3);
+        CompactCommandCodec.writeBytes(baos, serialize("value"));
+        Response<?, ?> rsp = (Response<?, ?>) reencode(baos.toByteArray());
+        assertEquals(CompactCommandCodec.RESPONSE_NORMAL, UserRequest.compactTagOf(rsp.returnValue));
+        assertNull(rsp.exception);
+    }
+
+    @Test
+    void userExceptionResponse() throws Exception {
+        byte[] raw = serialize(new IOException("raw"));
+        byte[] proxy = serialize(new ProxyException(new IOException("proxy")));
+        for (byte[] r : new byte[][] {raw, null}) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            baos.write(CompactCommandCodec.RESPONSE_EXCEPTION);
+            CompactCommandCodec.writeInt(baos, 7);
+            CompactCommandCodec.writeInt(baos, 3);
+            // the length of the raw response is shifted by one, so that 0 stands for none
+            if (r == null) {
+                CompactCommandCodec.writeInt(baos, 0);
+            } else {
+                CompactCommandCodec.writeInt(baos, r.length + 1);
+                baos.write(r);
+            }
+            CompactCommandCodec.writeBytes(baos, proxy);
+            Response<?, ?> rsp = (Response<?, ?>) reencode(baos.toByteArray());
+            assertEquals(CompactCommandCodec.RESPONSE_EXCEPTION, UserRequest.compactTagOf(rsp.returnValue));
+        }
+    }
+
+    /**
+     * With the codec negotiated, the responses and pipe commands of a channel go in the compact form, values and
+     * exceptions included.
+     */
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void channel(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            assumeTrue(channel.remoteCapability.supportsCompactCommands());
+            Map<String, Long> largest = new ConcurrentHashMap<>();
+            channel.addListener(new Channel.Listener() {
+                @Override
+                public void onRead(Channel channel, Command cmd, long blockSize) {
+                    largest.merge(cmd.toString().replaceAll("[:(].*", ""), blockSize, Math::max);
+                }
+            });
+            assertEquals("value", channel.call(new Value()));
+            // a serialized Response alone takes hundreds of bytes
+            assertThat(largest.toString(), largest.get("Response"), lessThan(64L));
+            IOException e = assertThrows(IOException.class, () -> channel.call(new Failure()));
+            assertEquals("failure", e.getMessage());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            channel.call(new Write(new RemoteOutputStream(out)));
+            channel.syncLocalIO();
+            assertEquals("hello", out.toString());
+
+            assertThat(largest.toString(), largest.get("Pipe.Chunk"), lessThan(16L));
+            assertThat(largest.toString(), largest.get("Pipe.Flush"), lessThan(16L));
+        });
+    }
+
+    @Test
+    void exceptionResponseIsSerialized() throws Exception {
+        Command cmd = new Response<Serializable, Throwable>(null, 7, 3, new IOException());
+        assertFalse(cmd.writeCompact(new ByteArrayOutputStream()));
+    }
+
+    /**
+     * Reads a command from its compact form, and checks that it is written back the same.
+     */
+    private static Command reencode(byte[] compact) throws IOException {
+        InputStream in = new ByteArrayInputStream(compact);
+        Command cmd = CompactCommandCodec.read(in.read(), in);
+        assertEquals(-1, in.read());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        assertTrue(cmd.writeCompact(baos));
+        assertArrayEquals(compact, baos.toByteArray());
+        return cmd;
+    }
+
+    private static byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeObject(o);
+        }
+        return baos.toByteArray();
+    }
+
+    private static class Value extends CallableBase<String, RuntimeException> {
+        @Override
+        public String call() {
+            return "value";
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Failure extends CallableBase<Void, IOException> {
+        @Override
+        public Void call() throws IOException {
+            throw new IOException("failure");
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Write extends CallableBase<Void, IOException> {
+        private final OutputStream out;
+
+        Write(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            try (OutputStream o = out) {
+                o.write("hello".getBytes(StandardCharsets.UTF_8));
+                o.flush();
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static Command roundTrip(Command cmd) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        assertTrue(cmd.writeCompact(baos));
+        InputStream in = new ByteArrayInputStream(baos.toByteArray());
+        Command read = CompactCommandCodec.read(in.read(), in);
+        assertEquals(-1, in.read());
+        return read;
+    }
+}
@@ -0,0 +1,87 @@
+package hudson.remoting;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class DelayedAcksTest {
+
+    private static final int LINES = 1000;
+
+    /**
+     * Streaming a log line by line must not send back an ack per line.
+     */
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void cumulative(ChannelRunner channelRunner) throws Exception {
+        long delay = DelayedAcks.ACK_DELAY_MILLIS;
+        DelayedAcks.ACK_DELAY_MILLIS = 10;
+        try {
+            channelRunner.withChannel(channel -> {
+                AtomicInteger acks = new AtomicInteger();
+                Set<String> senders = ConcurrentHashMap.newKeySet();
+                channel.addListener(new Channel.Listener() {
+                    @Override
+                    public void onWrite(Channel channel, Command cmd, long blockSize) {
+                        if (cmd.toString().startsWith("ProxyOutputStream.Ack")) {
+                            acks.incrementAndGet();
+                            senders.add(Thread.currentThread().getName());
+                        }
+                    }
+                });
+                ByteArrayOutputStream log = new ByteArrayOutputStream();
+                channel.call(new StreamLog(new RemoteOutputStream(log)));
+                channel.syncLocalIO();
+                assertEquals(StreamLog.expected(), log.toString());
+                assertThat(acks.get(), lessThan(LINES / 5));
+                // the timer shared by all channels does not send them itself
+                assertThat(senders.toString(), not(containsString(ChannelTimer.class.getSimpleName())));
+            });
+        } finally {
+            DelayedAcks.ACK_DELAY_MILLIS = delay;
+        }
+    }
+
+    private static class StreamLog extends CallableBase<Void, IOException> {
+        private final OutputStream out;
+
+        StreamLog(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            try (OutputStream o = out) {
+                for (int i = 0; i < LINES; i++) {
+                    o.write(line(i).getBytes());
+                }
+            }
+            return null;
+        }
+
+        static String line(int i) {
+            return "[" + i + "] Building module " + i + " of " + LINES + "\n";
+        }
+
+        static String expected() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < LINES; i++) {
+                sb.append(line(i));
+            }
+            return sb.toString();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
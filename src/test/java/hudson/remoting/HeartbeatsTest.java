@@ -0,0 +1,175 @@
+package hudson.remoting;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link Heartbeats}.
+ */
+class HeartbeatsTest {
+
+    /**
+     * The heartbeats go in between the frames of commands that take many frames and do not compress.
+     */
+    @Test
+    void chunked() throws Exception {
+        new InProcessRunner().withChannel(channel -> {
+            assertTrue(channel.remoteCapability.supportsChunking());
+            exchange(channel);
+        });
+    }
+
+    @Test
+    void answeredOffTheReadingThread() throws Exception {
+        new InProcessRunner().withChannel(channel -> {
+            BlockingQueue<Long> pongs = new LinkedBlockingQueue<>();
+            CountDownLatch writing = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicReference<String> writer = new AtomicReference<>();
+            CommandTransport stalled = new Silent() {
+                @Override
+                void writeHeartbeat(byte kind, long id) throws IOException {
+                    assertEquals(Heartbeats.PONG, kind);
+                    writer.compareAndSet(null, Thread.currentThread().getName());
+                    writing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    pongs.add(id);
+                }
+            };
+            channel.heartbeats.received(stalled, Heartbeats.PING, 1);
+            assertTrue(writing.await(10, TimeUnit.SECONDS));
+            // not from the executor, where it could wait behind the requests
+            assertTrue(writer.get().startsWith(Heartbeats.class.getSimpleName()), writer::get);
+            // the output does not go through, yet the reading goes on
+            for (long id = 2; id <= 5; id++) {
+                channel.heartbeats.received(stalled, Heartbeats.PING, id);
+            }
+            assertTrue(pongs.isEmpty());
+            release.countDown();
+            assertEquals(1L, pongs.poll(10, TimeUnit.SECONDS).longValue());
+            // the pings read while the first pong was stuck get a single pong
+            assertEquals(5L, pongs.poll(10, TimeUnit.SECONDS).longValue());
+            assertNull(pongs.poll(100, TimeUnit.MILLISECONDS));
+        });
+    }
+
+    @Test
+    void pongAnswersEarlierPings() throws Exception {
+        new InProcessRunner().withChannel(channel -> {
+            CommandTransport silent = new Silent();
+            List<CompletableFuture<Long>> pings = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                pings.add(channel.heartbeats.ping(silent));
+            }
+            channel.heartbeats.received(silent, Heartbeats.PONG, 2);
+            assertTrue(pings.get(0).isDone());
+            assertTrue(pings.get(1).isDone());
+            assertFalse(pings.get(2).isDone());
+            channel.heartbeats.abort(new IOException("closed"));
+            assertTrue(pings.get(2).isCompletedExceptionally());
+        });
+    }
+
+    /**
+     * Sends heartbeats from a few threads while commands of many frames are sent.
+     */
+    static void exchange(Channel channel) throws Exception {
+        ExecutorService es = Executors.newFixedThreadPool(4);
+        try {
+            Random random = new Random(0);
+            List<Future<Integer>> calls = new ArrayList<>();
+            List<Future<List<CompletableFuture<Long>>>> heartbeats = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                heartbeats.add(es.submit(() -> {
+                    List<CompletableFuture<Long>> sent = new ArrayList<>();
+                    for (int i = 0; i < 50; i++) {
+                        sent.add(channel.heartbeat());
+                        Thread.yield();
+                    }
+                    return sent;
+                }));
+            }
+            for (int i = 0; i < 20; i++) {
+                byte[] data = new byte[i * 10_000];
+                random.nextBytes(data);
+                calls.add(channel.callAsync(new Length(data)));
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i * 10_000, calls.get(i).get(30, TimeUnit.SECONDS).intValue());
+            }
+            for (Future<List<CompletableFuture<Long>>> f : heartbeats) {
+                for (CompletableFuture<Long> rtt : f.get(30, TimeUnit.SECONDS)) {
+                    assertNotNull(rtt);
+                    assertTrue(rtt.get(30, TimeUnit.SECONDS) >= 0L);
+                }
+            }
+
+            StringWriter diagnostics = new StringWriter();
+            channel.dumpDiagnostics(new PrintWriter(diagnostics));
+            assertTrue(diagnostics.toString().contains("Heartbeats received=200"), diagnostics::toString);
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes nothing at all.
+     */
+    private static class Silent extends CommandTransport {
+        @Override
+        public Capability getRemoteCapability() {
+            return new Capability();
+        }
+
+        @Override
+        public void setup(Channel channel, CommandReceiver receiver) {}
+
+        @Override
+        public void write(Command cmd, boolean last) {}
+
+        @Override
+        public void closeWrite() {}
+
+        @Override
+        public void closeRead() {}
+    }
+
+    private static class Length extends CallableBase<Integer, RuntimeException> {
+        private final byte[] data;
+
+        Length(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public Integer call() {
+            return data.length;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
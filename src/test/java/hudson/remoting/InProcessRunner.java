@@ -29,7 +29,7 @@ public class InProcessRunner implements DualSideChannelRunner {
 
         final SynchronousQueue<Channel> southHandoff = new SynchronousQueue<>();
 
-        executor = Executors.newCachedThreadPool();
+        executor = createExecutor();
 
         Thread t = new Thread("south bridge runner") {
             @Override
@@ -52,6 +52,10 @@ public class InProcessRunner implements DualSideChannelRunner {
         return north;
     }
 
+    protected ExecutorService createExecutor() {
+        return Executors.newCachedThreadPool();
+    }
+
     protected ChannelBuilder configureNorth() {
         return new ChannelBuilder("north", executor)
                 .withMode(Channel.Mode.BINARY)
@@ -0,0 +1,120 @@
+package hudson.remoting;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+class IntKeyTableTest {
+
+    private static final class Value {
+        final int key;
+
+        Value(int key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Behaves like a map through growing, tombstones and shrinking.
+     */
+    @Test
+    void sameAsMap() {
+        IntKeyTable<Value> table = new IntKeyTable<>(v -> v.key);
+        Map<Integer, Value> expected = new HashMap<>();
+        Random r = new Random(0);
+        int next = 1;
+        for (int i = 0; i < 200_000; i++) {
+            // grow for a while, then shrink
+            boolean add = i < 120_000 ? r.nextInt(3) != 0 : r.nextInt(3) == 0;
+            if (add || expected.isEmpty()) {
+                Value v = new Value(next++);
+                table.put(v);
+                expected.put(v.key, v);
+            } else {
+                int key = 1 + r.nextInt(next - 1);
+                assertSame(expected.remove(key), table.remove(key));
+            }
+            if (i % 1000 == 0) {
+                int key = r.nextInt(next + 10);
+                assertSame(expected.get(key), table.get(key));
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        assertEquals(new HashSet<>(expected.values()), new HashSet<>(table.values()));
+        for (Value v : expected.values()) {
+            assertSame(v, table.get(v.key));
+        }
+
+        Value replacement = new Value(expected.keySet().iterator().next());
+        table.put(replacement);
+        assertSame(replacement, table.get(replacement.key));
+        assertEquals(expected.size(), table.size());
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertNull(table.get(replacement.key));
+    }
+
+    /**
+     * Lookups without the lock keep finding the values that stay in the table while others come and go.
+     */
+    @Test
+    void concurrentReads() throws Exception {
+        IntKeyTable<Value> table = new IntKeyTable<>(v -> v.key);
+        List<Value> stable = new ArrayList<>();
+        for (int key = 1; key <= 1000; key++) {
+            Value v = new Value(key);
+            stable.add(v);
+            table.put(v);
+        }
+        AtomicInteger misses = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[4];
+        long end = System.currentTimeMillis() + 1000;
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(() -> {
+                Random r = new Random();
+                try {
+                    while (System.currentTimeMillis() < end) {
+                        Value v = stable.get(r.nextInt(stable.size()));
+                        if (table.get(v.key) != v) {
+                            misses.incrementAndGet();
+                        }
+                    }
+                } catch (Throwable x) {
+                    failure.set(x);
+                }
+            });
+            readers[t].start();
+        }
+        int next = 1001;
+        while (System.currentTimeMillis() < end) {
+            // grows to thousands of extra values and shrinks back, rebuilding the table as it goes
+            List<Integer> added = new ArrayList<>();
+            for (int i = 0; i < 5000; i++) {
+                Value v = new Value(next++);
+                table.put(v);
+                added.add(v.key);
+            }
+            for (int key : added) {
+                table.remove(key);
+            }
+        }
+        for (Thread t : readers) {
+            t.join();
+        }
+        assertNull(failure.get());
+        assertEquals(0, misses.get());
+        assertEquals(stable.size(), table.size());
+    }
+}
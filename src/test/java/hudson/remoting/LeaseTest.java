@@ -0,0 +1,88 @@
+package hudson.remoting;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutionException;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class LeaseTest {
+
+    /**
+     * An object stays exported for as long as the other side holds its proxy, and gets unexported once its lease
+     * is not renewed, as when the other side loses the proxy without ever unexporting it.
+     */
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void expiresWhenNotRenewed(ChannelRunner channelRunner) throws Exception {
+        // only this side is configured, as the lease goes along with the proxy
+        long leaseMillis = ExportTable.LEASE_MILLIS;
+        ExportTable.LEASE_MILLIS = 1000;
+        try {
+            channelRunner.withChannel(channel -> {
+                assumeTrue(channel.remoteCapability.supportsLeaseRenewal());
+                Greeter greeter = channel.export(Greeter.class, () -> "hello");
+                channel.call(new Hold(greeter));
+                // exported on a lease as the proxy is, but without a proxy to renew it
+                int lost = channel.exportedObjects.export(Greeter.class, () -> "lost", false, true);
+
+                Thread.sleep(3000);
+                // renewed for as long as it is held
+                assertEquals("hello", channel.call(new Greet()));
+                assertThat(diagnostics(channel), containsString("leased=1"));
+                // lost like an unexport that never came
+                Throwable x = assertThrows(ExecutionException.class, () -> channel.getExportedObject(lost));
+                StringWriter trace = new StringWriter();
+                x.printStackTrace(new PrintWriter(trace));
+                assertThat(trace.toString(), containsString("lease was not renewed"));
+                assertThat(diagnostics(channel), containsString("lease expiries=1"));
+                channel.call(new Hold(null));
+            });
+        } finally {
+            ExportTable.LEASE_MILLIS = leaseMillis;
+        }
+    }
+
+    private static String diagnostics(Channel channel) throws Exception {
+        StringWriter diagnostics = new StringWriter();
+        channel.dumpDiagnostics(new PrintWriter(diagnostics));
+        return diagnostics.toString();
+    }
+
+    public interface Greeter {
+        String greet();
+    }
+
+    private static Greeter held;
+
+    private static class Hold extends CallableBase<Void, RuntimeException> {
+        private final Greeter greeter;
+
+        Hold(Greeter greeter) {
+            this.greeter = greeter;
+        }
+
+        @Override
+        public Void call() {
+            held = greeter;
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Greet extends CallableBase<String, RuntimeException> {
+        @Override
+        public String call() {
+            return held.greet();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,121 @@
+package hudson.remoting;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class LockFreeLaneExecutorServiceTest {
+
+    private final ExecutorService base = Executors.newFixedThreadPool(5);
+
+    @AfterEach
+    void afterEach() {
+        base.shutdown();
+    }
+
+    /**
+     * Tasks added from several threads at once never overlap and run in the order each thread added them.
+     */
+    @Test
+    void fifoFromManyThreads() throws Exception {
+        ExecutorService lane = new LockFreeLaneExecutorService(base);
+        int threads = 8;
+        int tasks = 20_000;
+        int[] last = new int[threads];
+        AtomicBoolean running = new AtomicBoolean();
+        AtomicInteger failures = new AtomicInteger();
+
+        ExecutorService producers = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(producers.submit(() -> {
+                start.await();
+                for (int i = 1; i <= tasks; i++) {
+                    int seq = i;
+                    lane.execute(() -> {
+                        if (!running.compareAndSet(false, true)) {
+                            failures.incrementAndGet();
+                        }
+                        if (last[thread] != seq - 1) {
+                            failures.incrementAndGet();
+                        }
+                        last[thread] = seq;
+                        running.set(false);
+                    });
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        producers.shutdown();
+
+        lane.shutdown();
+        assertTrue(lane.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        for (int t = 0; t < threads; t++) {
+            assertEquals(tasks, last[t]);
+        }
+    }
+
+    /**
+     * A failing task does not stop the lane.
+     */
+    @Test
+    void failingTask() throws Exception {
+        ExecutorService lane = new LockFreeLaneExecutorService(base);
+        CountDownLatch release = new CountDownLatch(1);
+        lane.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            throw new IllegalStateException("expected");
+        });
+        Future<String> after = lane.submit(() -> "done");
+        release.countDown();
+        assertEquals("done", after.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void shutdown() throws Exception {
+        ExecutorService lane = new LockFreeLaneExecutorService(base);
+        CountDownLatch release = new CountDownLatch(1);
+        lane.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        });
+        Future<?> queued = lane.submit(() -> {});
+        lane.shutdown();
+        assertTrue(lane.isShutdown());
+        assertThrows(RejectedExecutionException.class, () -> lane.execute(() -> {}));
+        assertFalse(lane.awaitTermination(100, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(lane.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(queued.isDone());
+        assertTrue(lane.isTerminated());
+    }
+}
@@ -0,0 +1,39 @@
+package hudson.remoting;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class NegativeLookupCacheTest {
+
+    @Test
+    void bounded() throws Exception {
+        NegativeLookupCache cache = new NegativeLookupCache(8, TimeUnit.HOURS.toNanos(1));
+        for (int i = 0; i < 8; i++) {
+            cache.add("old" + i);
+            Thread.sleep(1);
+        }
+        cache.add("new");
+        // down to three quarters, dropping the names added the longest ago
+        assertEquals(6, cache.size());
+        assertFalse(cache.contains("old0"));
+        assertFalse(cache.contains("old2"));
+        assertTrue(cache.contains("old3"));
+        assertTrue(cache.contains("new"));
+    }
+
+    @Test
+    void expires() throws Exception {
+        NegativeLookupCache cache = new NegativeLookupCache(10, TimeUnit.MILLISECONDS.toNanos(50));
+        cache.add("a");
+        assertTrue(cache.contains("a"));
+        Thread.sleep(100);
+        assertFalse(cache.contains("a"));
+        assertEquals(0, cache.size());
+        cache.add("a");
+        assertTrue(cache.contains("a"));
+    }
+}
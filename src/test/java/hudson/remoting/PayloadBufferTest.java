@@ -0,0 +1,94 @@
+package hudson.remoting;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class PayloadBufferTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 65535, 65536, 65537, 1_000_000})
+    void roundTrip(int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        PayloadBuffer buffer = new PayloadBuffer();
+        // mix single bytes and arrays
+        if (size > 0) {
+            buffer.write(data[0]);
+        }
+        buffer.write(data, Math.min(size, 1), Math.max(size - 1, 0));
+        assertEquals(size, buffer.size());
+        assertArrayEquals(data, buffer.toByteArray());
+        assertArrayEquals(data, buffer.newInputStream().readAllBytes());
+
+        // same wire format as CompactCommandCodec.writeBytes
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        buffer.writeTo(written);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        CompactCommandCodec.writeBytes(expected, data);
+        assertArrayEquals(expected.toByteArray(), written.toByteArray());
+
+        PayloadBuffer read = PayloadBuffer.readFrom(new ByteArrayInputStream(written.toByteArray()));
+        assertEquals(size, read.size());
+        assertArrayEquals(data, read.newInputStream().readAllBytes());
+    }
+
+    @Test
+    void writeAfterRead() throws IOException {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        CompactCommandCodec.writeBytes(written, new byte[] {1, 2, 3});
+        PayloadBuffer buffer = PayloadBuffer.readFrom(new ByteArrayInputStream(written.toByteArray()));
+        buffer.write(4);
+        buffer.write(new byte[] {5, 6}, 0, 2);
+        assertEquals(6, buffer.size());
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6}, buffer.toByteArray());
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6}, buffer.newInputStream().readAllBytes());
+    }
+
+    @Test
+    void truncated() throws IOException {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        CompactCommandCodec.writeBytes(written, new byte[100_000]);
+        byte[] bytes = Arrays.copyOf(written.toByteArray(), 70_000);
+        assertThrows(EOFException.class, () -> PayloadBuffer.readFrom(new ByteArrayInputStream(bytes)));
+    }
+
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void largeResult(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            byte[] data = channel.call(new Generate(10 * 1024 * 1024));
+            byte[] expected = new byte[10 * 1024 * 1024];
+            new Random(0).nextBytes(expected);
+            assertArrayEquals(expected, data);
+        });
+    }
+
+    private static class Generate extends CallableBase<byte[], RuntimeException> {
+        private final int size;
+
+        Generate(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public byte[] call() {
+            byte[] data = new byte[size];
+            new Random(0).nextBytes(data);
+            return data;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -25,6 +25,7 @@ package hudson.remoting;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -327,6 +328,53 @@ class PipeTest implements Serializable {
         });
     }
 
+    /**
+     * Chunks are sent straight from the buffer of the writer, which it may overwrite as soon as the write returns.
+     */
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void testReusedBuffer(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            channel.call(new ReusedBufferWriter(new RemoteOutputStream(received)));
+            channel.syncLocalIO();
+            assertArrayEquals(ReusedBufferWriter.expected(), received.toByteArray());
+        });
+    }
+
+    private static class ReusedBufferWriter extends CallableBase<Void, IOException> {
+        private static final int ROUNDS = 500;
+        private static final int SIZE = 3000;
+
+        private final OutputStream out;
+
+        ReusedBufferWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            byte[] buf = new byte[SIZE + 2];
+            try (OutputStream o = out) {
+                for (int i = 0; i < ROUNDS; i++) {
+                    Arrays.fill(buf, (byte) i);
+                    o.write(buf, 1, SIZE);
+                }
+            }
+            return null;
+        }
+
+        static byte[] expected() {
+            byte[] expected = new byte[ROUNDS * SIZE];
+            for (int i = 0; i < ROUNDS; i++) {
+                Arrays.fill(expected, i * SIZE, (i + 1) * SIZE, (byte) i);
+            }
+            return expected;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
     private static class DevNullSink extends CallableBase<OutputStream, IOException> {
         @Override
         public OutputStream call() {
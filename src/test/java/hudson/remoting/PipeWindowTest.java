@@ -0,0 +1,70 @@
+package hudson.remoting;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class PipeWindowTest {
+
+    /**
+     * The window is resized as data flows through the pipe, which must neither lose data nor get stuck when it shrinks
+     * below what the writer waits for, and it is reported in the diagnostics.
+     */
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void autoTune(ChannelRunner channelRunner) throws Exception {
+        boolean autoTune = PipeWindow.AUTO_TUNE;
+        PipeWindow.AUTO_TUNE = true;
+        try {
+            channelRunner.withChannel(channel -> {
+                byte[] data = new byte[8 * 1024 * 1024];
+                new Random(0).nextBytes(data);
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                String diagnostics = channel.call(new Stream(new RemoteOutputStream(received), data));
+                channel.syncLocalIO();
+                assertArrayEquals(data, received.toByteArray());
+
+                if (channel.remoteCapability.supportsPipeThrottling()) {
+                    Matcher m = Pattern.compile("Pipe \\d+ window=(\\d+)").matcher(diagnostics);
+                    assertTrue(m.find(), diagnostics);
+                    int size = Integer.parseInt(m.group(1));
+                    assertTrue(size >= PipeWindow.MIN_SIZE && size <= PipeWindow.MAX_SIZE, diagnostics);
+                }
+            });
+        } finally {
+            PipeWindow.AUTO_TUNE = autoTune;
+        }
+    }
+
+    private static class Stream extends CallableBase<String, IOException> {
+        private final OutputStream out;
+        private final byte[] data;
+
+        Stream(OutputStream out, byte[] data) {
+            this.out = out;
+            this.data = data;
+        }
+
+        @Override
+        public String call() throws IOException {
+            try (OutputStream o = out) {
+                o.write(data);
+            }
+            StringWriter diagnostics = new StringWriter();
+            getChannelOrFail().dumpDiagnostics(new PrintWriter(diagnostics));
+            return diagnostics.toString();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
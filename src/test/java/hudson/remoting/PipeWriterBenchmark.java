@@ -0,0 +1,76 @@
+package hudson.remoting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares how many pipe writes per second a {@link PipeWriter} takes from several reader threads, each syncing on
+ * its last I/O ID now and then the way {@link Request} does, over {@link SingleLaneExecutorService} and over
+ * {@link LockFreeLaneExecutorService}.
+ */
+@Disabled("This is not a test just a benchmark and is here for ease of running")
+class PipeWriterBenchmark {
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int WRITES_PER_THREAD = 500_000;
+    private static final int WRITES_PER_SYNC = 100;
+
+    @Test
+    void singleLane() throws Exception {
+        run("single lane", SingleLaneExecutorService::new);
+    }
+
+    @Test
+    void lockFreeLane() throws Exception {
+        run("lock-free lane", LockFreeLaneExecutorService::new);
+    }
+
+    private static void run(String name, Function<ExecutorService, ExecutorService> lane) throws Exception {
+        ExecutorService base = Executors.newCachedThreadPool();
+        try {
+            for (int round = 0; round < 5; round++) {
+                PipeWriter pipeWriter = new PipeWriter(lane.apply(base));
+                AtomicInteger ioId = new AtomicInteger();
+                long[] sink = new long[1];
+                ExecutorService es = Executors.newFixedThreadPool(THREADS);
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    futures.add(es.submit(() -> {
+                        start.await();
+                        for (int i = 1; i <= WRITES_PER_THREAD; i++) {
+                            int id = ioId.incrementAndGet();
+                            pipeWriter.submit(id, () -> sink[0]++);
+                            if (i % WRITES_PER_SYNC == 0) {
+                                pipeWriter.get(id).get();
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                long begin = System.nanoTime();
+                start.countDown();
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+                pipeWriter.submit(0, () -> {}).get();
+                long duration = System.nanoTime() - begin;
+                es.shutdown();
+                pipeWriter.shutdown();
+                System.out.printf(
+                        "%s, %d threads: %,d writes/s%n",
+                        name, THREADS, THREADS * (long) WRITES_PER_THREAD * 1_000_000_000L / duration);
+            }
+        } finally {
+            base.shutdown();
+        }
+    }
+}
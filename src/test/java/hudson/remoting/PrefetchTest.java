@@ -23,10 +23,13 @@
  */
 package hudson.remoting;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.objectweb.asm.ClassReader;
@@ -48,6 +51,37 @@ class PrefetchTest {
         });
     }
 
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void testTransitivePrefetch(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            int depth = RemoteClassLoader.PREFETCH_DEPTH;
+            RemoteClassLoader.PREFETCH_DEPTH = 2;
+            try {
+                Map<String, RemoteClassLoader.ClassFile2> all = new RemoteClassLoader.ClassLoaderProxy(
+                                PrefetchTest.class.getClassLoader(), channel)
+                        .fetch3(PrefetchFirst.class.getName());
+                assertTrue(all.containsKey(PrefetchSecond.class.getName()));
+                assertTrue(all.containsKey(PrefetchThird.class.getName()));
+                assertFalse(all.containsKey(PrefetchFourth.class.getName()));
+            } finally {
+                RemoteClassLoader.PREFETCH_DEPTH = depth;
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void testFetchAll(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            String[] names = {PrefetchFirst.class.getName(), PrefetchFourth.class.getName(), "no.such.Class"};
+            Map<String, RemoteClassLoader.ClassFile2> all = new RemoteClassLoader.ClassLoaderProxy(
+                            PrefetchTest.class.getClassLoader(), channel)
+                    .fetchAll(names, null);
+            assertEquals(Set.of(PrefetchFirst.class.getName(), PrefetchFourth.class.getName()), all.keySet());
+        });
+    }
+
     private static class VerifyTask extends CallableBase<String, IOException> {
         @Override
         public String call() throws IOException {
@@ -57,3 +91,23 @@ class PrefetchTest {
         private static final long serialVersionUID = 1L;
     }
 }
+
+class PrefetchFirst {
+    Object next() {
+        return new PrefetchSecond();
+    }
+}
+
+class PrefetchSecond {
+    Object next() {
+        return new PrefetchThird();
+    }
+}
+
+class PrefetchThird {
+    Object next() {
+        return new PrefetchFourth();
+    }
+}
+
+class PrefetchFourth {}
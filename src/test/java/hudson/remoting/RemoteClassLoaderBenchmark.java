@@ -0,0 +1,112 @@
+package hudson.remoting;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Measures how long it takes a number of threads to load the same set of classes from one {@link RemoteClassLoader},
+ * as when a parallel pipeline starts on an agent.
+ */
+@Disabled("This is not a test just a benchmark and is here for ease of running")
+class RemoteClassLoaderBenchmark {
+
+    private static final int THREADS = 40;
+
+    @Test
+    void parallelClassLoading() throws Exception {
+        URL jar = ClassReader.class.getProtectionDomain().getCodeSource().getLocation();
+        List<String> names = new ArrayList<>();
+        try (JarFile jf = new JarFile(new File(jar.toURI()))) {
+            Enumeration<JarEntry> entries = jf.entries();
+            while (entries.hasMoreElements()) {
+                String entry = entries.nextElement().getName();
+                if (entry.endsWith(".class") && !entry.endsWith("module-info.class")) {
+                    names.add(entry.substring(0, entry.length() - 6).replace('/', '.'));
+                }
+            }
+        }
+
+        ChannelRunner runner = new InProcessRunner();
+        Channel channel = runner.start();
+        try {
+            for (int threads : new int[] {1, THREADS}) {
+                for (int round = 0; round < 5; round++) {
+                    // a new class loader each round, so that the other side has to load everything again
+                    try (URLClassLoader cl = new URLClassLoader(new URL[] {jar}, null)) {
+                        long duration = channel.call(
+                                new LoadAll(RemoteClassLoader.export(cl, channel), names, threads));
+                        System.out.printf(
+                                "%d threads, %d classes: %,dms%n", threads, names.size(), duration / 1_000_000);
+                    }
+                }
+            }
+        } finally {
+            runner.stop(channel);
+        }
+    }
+
+    private static class LoadAll extends CallableBase<Long, Exception> {
+        private final RemoteClassLoader.IClassLoader loader;
+        private final List<String> names;
+        private final int threads;
+
+        LoadAll(RemoteClassLoader.IClassLoader loader, List<String> names, int threads) {
+            this.loader = loader;
+            this.names = names;
+            this.threads = threads;
+        }
+
+        @Override
+        public Long call() throws Exception {
+            Channel channel = getChannelOrFail();
+            if (channel.getJarCache() == null) {
+                channel.setJarCache(new FileSystemJarCache(
+                        Files.createTempDirectory("remoting-cache").toFile(), false));
+            }
+            ClassLoader cl = channel.importedClassLoaders.get(loader);
+            ExecutorService es = Executors.newFixedThreadPool(threads);
+            try {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    // every thread goes through all the classes, in its own order
+                    List<String> order = new ArrayList<>(names);
+                    Collections.shuffle(order, new Random(t));
+                    futures.add(es.submit(() -> {
+                        start.await();
+                        for (String name : order) {
+                            Class.forName(name, false, cl);
+                        }
+                        return null;
+                    }));
+                }
+                long begin = System.nanoTime();
+                start.countDown();
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+                return System.nanoTime() - begin;
+            } finally {
+                es.shutdown();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,118 @@
+package hudson.remoting;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for how {@link RemoteClassLoader} shares the fetches of threads that want the same thing at the same time.
+ */
+class RemoteClassLoaderTest {
+
+    private final ConcurrentMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    private final ExecutorService es = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void tearDown() {
+        es.shutdownNow();
+    }
+
+    @Test
+    void fetchedOnce() throws Exception {
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<String>> callers = callers(8, () -> {
+            fetches.incrementAndGet();
+            release.await();
+            return "value";
+        });
+        release.countDown();
+        for (Future<String> f : callers) {
+            assertEquals("value interrupted=false", f.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, fetches.get());
+        assertEquals(0, inFlight.size());
+    }
+
+    @Test
+    void failuresReachWaiters() throws Exception {
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<String>> callers = callers(8, () -> {
+            if (fetches.incrementAndGet() > 1) {
+                throw new IOException("late");
+            }
+            release.await();
+            throw new IOException("owner");
+        });
+        release.countDown();
+        for (Future<String> f : callers) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> f.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(IOException.class, e.getCause());
+            assertEquals("owner", e.getCause().getMessage());
+        }
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    void interruptedFetchDoesNotInterruptWaiters() throws Exception {
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<String>> callers = callers(8, () -> {
+            if (fetches.incrementAndGet() > 1) {
+                return "value";
+            }
+            release.await();
+            throw new InterruptedException();
+        });
+        release.countDown();
+        int interrupted = 0;
+        for (Future<String> f : callers) {
+            try {
+                assertEquals("value interrupted=false", f.get(10, TimeUnit.SECONDS));
+            } catch (ExecutionException e) {
+                assertInstanceOf(InterruptedException.class, e.getCause());
+                interrupted++;
+            }
+        }
+        // only the thread that was interrupted is told so, the others have a go themselves
+        assertEquals(1, interrupted);
+    }
+
+    /**
+     * Starts the given number of threads fetching the same thing, and waits until all but the first are waiting
+     * for the first.
+     */
+    private List<Future<String>> callers(int n, RemoteClassLoader.Fetch<String> fetch) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(n);
+        List<Future<String>> callers = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            callers.add(es.submit(() -> {
+                started.countDown();
+                String v = RemoteClassLoader.coalesce(inFlight, "name", fetch);
+                return v + " interrupted=" + Thread.currentThread().isInterrupted();
+            }));
+        }
+        started.await();
+        // give them the time to line up behind the first
+        Thread.sleep(200);
+        return callers;
+    }
+}
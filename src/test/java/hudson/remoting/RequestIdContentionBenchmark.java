@@ -0,0 +1,168 @@
+package hudson.remoting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares how the allocation of {@link Request} IDs and the registration in {@link Channel#pendingCalls}
+ * scale with the number of threads and channels.
+ */
+@Disabled("This is not a test just a benchmark and is here for ease of running")
+class RequestIdContentionBenchmark {
+
+    private static final int CHANNELS = 64;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors() * 2;
+    private static final int CALLS_PER_THREAD = 1_000_000;
+
+    /**
+     * What {@link Request} used to do: one JVM wide monitor for the ID, then the channel monitor to register.
+     */
+    @Test
+    void globalLock() throws Exception {
+        Object requestClass = new Object();
+        int[] nextId = new int[1];
+        List<Map<Integer, Object>> pendingCalls = newPendingCalls();
+        run("global lock", (thread, i) -> {
+            Map<Integer, Object> channel = pendingCalls.get((thread + i) % CHANNELS);
+            int id;
+            synchronized (requestClass) {
+                id = nextId[0]++;
+            }
+            synchronized (channel) {
+                channel.put(id, channel);
+            }
+            channel.remove(id);
+        });
+    }
+
+    /**
+     * What {@link Channel#newRequestId()} does now.
+     */
+    @Test
+    void perChannelAtomic() throws Exception {
+        List<AtomicInteger> nextIds = new ArrayList<>();
+        for (int i = 0; i < CHANNELS; i++) {
+            nextIds.add(new AtomicInteger());
+        }
+        List<Map<Integer, Object>> pendingCalls = newPendingCalls();
+        run("per channel atomic", (thread, i) -> {
+            int c = (thread + i) % CHANNELS;
+            Map<Integer, Object> channel = pendingCalls.get(c);
+            int id = nextIds.get(c).getAndIncrement();
+            channel.put(id, channel);
+            channel.remove(id);
+        });
+    }
+
+    /**
+     * End to end, small calls from many threads over a handful of real channels.
+     */
+    @Test
+    void calls() throws Exception {
+        List<ChannelRunner> runners = new ArrayList<>();
+        List<Channel> channels = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ChannelRunner runner = new InProcessRunner();
+            runners.add(runner);
+            channels.add(runner.start());
+        }
+        try {
+            for (int round = 0; round < 5; round++) {
+                ExecutorService es = Executors.newFixedThreadPool(THREADS);
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    Channel channel = channels.get(t % channels.size());
+                    futures.add(es.submit(() -> {
+                        start.await();
+                        for (int i = 0; i < 2000; i++) {
+                            channel.call(new Echo(i));
+                        }
+                        return null;
+                    }));
+                }
+                long begin = System.nanoTime();
+                start.countDown();
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+                long duration = System.nanoTime() - begin;
+                es.shutdown();
+                System.out.printf(
+                        "%d threads, %d channels: %,d calls/s%n",
+                        THREADS,
+                        channels.size(),
+                        THREADS * 2000L * TimeUnit.SECONDS.toNanos(1) / duration);
+            }
+        } finally {
+            for (int i = 0; i < runners.size(); i++) {
+                runners.get(i).stop(channels.get(i));
+            }
+        }
+    }
+
+    private static List<Map<Integer, Object>> newPendingCalls() {
+        List<Map<Integer, Object>> pendingCalls = new ArrayList<>();
+        for (int i = 0; i < CHANNELS; i++) {
+            pendingCalls.add(new ConcurrentHashMap<>());
+        }
+        return pendingCalls;
+    }
+
+    private static void run(String name, Operation op) throws Exception {
+        for (int round = 0; round < 5; round++) {
+            ExecutorService es = Executors.newFixedThreadPool(THREADS);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                futures.add(es.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                        op.run(thread, i);
+                    }
+                    return null;
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            long duration = System.nanoTime() - begin;
+            es.shutdown();
+            System.out.printf(
+                    "%s, %d threads: %,d ns/op%n", name, THREADS, duration / ((long) THREADS * CALLS_PER_THREAD));
+        }
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        void run(int thread, int i);
+    }
+
+    private static class Echo extends CallableBase<Integer, RuntimeException> {
+        private final int value;
+
+        Echo(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public Integer call() {
+            return value;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,166 @@
+package hudson.remoting;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class ScheduledPingTest {
+
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void aliveChannel(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            AtomicReference<Throwable> dead = new AtomicReference<>();
+            ScheduledPing ping = new ScheduledPing(channel, 10_000, 20) {
+                @Override
+                protected void onDead(Throwable diagnosis) {
+                    dead.set(diagnosis);
+                }
+            };
+            ping.start();
+            try {
+                Thread.sleep(1000);
+                // the channel still works while the pings go on
+                assertNull(channel.call(new Echo()));
+            } finally {
+                ping.stop();
+            }
+            assertNull(dead.get());
+        });
+    }
+
+    @Test
+    void timeout() throws Exception {
+        new InProcessRunner().withChannel(channel -> {
+            BlockingQueue<Throwable> dead = new LinkedBlockingQueue<>();
+            ScheduledPing ping = new ScheduledPing(channel, 2000, 60_000) {
+                @Override
+                CompletableFuture<?> send() throws IOException {
+                    return channel.callAsyncCompletable(new Stuck());
+                }
+
+                @Override
+                protected void onDead(Throwable diagnosis) {
+                    dead.add(diagnosis);
+                }
+            };
+            ping.start();
+            try {
+                assertInstanceOf(TimeoutException.class, dead.poll(10, TimeUnit.SECONDS));
+                // the ping is withdrawn on this side, and interrupted on the other
+                long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (!channel.pendingCalls.isEmpty() && System.nanoTime() - end < 0) {
+                    Thread.sleep(10);
+                }
+                assertTrue(channel.pendingCalls.isEmpty(), channel.pendingCalls::toString);
+                assertTrue(Stuck.INTERRUPTED.await(10, TimeUnit.SECONDS));
+            } finally {
+                ping.stop();
+            }
+            assertNull(dead.poll(500, TimeUnit.MILLISECONDS));
+        });
+    }
+
+    @Test
+    void hangingSend() throws Exception {
+        new InProcessRunner().withChannel(channel -> {
+            BlockingQueue<Throwable> dead = new LinkedBlockingQueue<>();
+            CountDownLatch sending = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            ScheduledPing ping = new ScheduledPing(channel, 200, 60_000) {
+                @Override
+                CompletableFuture<?> send() throws IOException {
+                    sending.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    return channel.callAsyncCompletable(new Echo());
+                }
+
+                @Override
+                protected void onDead(Throwable diagnosis) {
+                    dead.add(diagnosis);
+                }
+            };
+            ping.start();
+            try {
+                assertTrue(sending.await(10, TimeUnit.SECONDS));
+                // the timer shared by all channels goes on while the ping is stuck sending
+                CountDownLatch timer = new CountDownLatch(1);
+                ChannelTimer.get().schedule(timer::countDown, 0, TimeUnit.MILLISECONDS);
+                assertTrue(timer.await(10, TimeUnit.SECONDS));
+                assertInstanceOf(TimeoutException.class, dead.poll(10, TimeUnit.SECONDS));
+            } finally {
+                release.countDown();
+                ping.stop();
+            }
+            assertNull(dead.poll(500, TimeUnit.MILLISECONDS));
+        });
+    }
+
+    @Test
+    void closedChannel() throws Exception {
+        AtomicReference<Throwable> dead = new AtomicReference<>();
+        AtomicReference<ScheduledPing> ping = new AtomicReference<>();
+        new InProcessRunner().withChannel(channel -> {
+            ping.set(new ScheduledPing(channel, 10_000, 20) {
+                @Override
+                protected void onDead(Throwable diagnosis) {
+                    dead.set(diagnosis);
+                }
+            });
+            ping.get().start();
+            Thread.sleep(100);
+        });
+        try {
+            Thread.sleep(500);
+            // the pings stop once the channel is closed, which is not taken as the channel being dead
+            assertNull(dead.get());
+        } finally {
+            ping.get().stop();
+        }
+    }
+
+    /**
+     * Never answers, but tells when it is interrupted.
+     */
+    private static class Stuck extends CallableBase<Void, InterruptedException> {
+        static final CountDownLatch INTERRUPTED = new CountDownLatch(1);
+
+        @Override
+        public Void call() throws InterruptedException {
+            try {
+                new CountDownLatch(1).await();
+            } finally {
+                INTERRUPTED.countDown();
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Echo extends CallableBase<Void, RuntimeException> {
+        @Override
+        public Void call() {
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
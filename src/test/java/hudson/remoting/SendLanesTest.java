@@ -0,0 +1,152 @@
+package hudson.remoting;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class SendLanesTest {
+
+    private final SendLanes lanes = new SendLanes();
+    private final List<Command> written = new ArrayList<>();
+
+    @Test
+    void controlFirst() throws Exception {
+        SendLanes.Entry bulk1 = lanes.add(new Dummy(true), null);
+        SendLanes.Entry bulk2 = lanes.add(new Dummy(true), null);
+        Dummy control = new Dummy(false);
+        SendLanes.Entry controlEntry = lanes.add(control, null);
+
+        lanes.drain(controlEntry, this::write);
+        assertEquals(List.of(control), written);
+
+        // the bulk lane stays in order
+        lanes.drain(bulk2, this::write);
+        assertEquals(3, written.size());
+        assertTrue(written.get(1).isBulk());
+        lanes.drain(bulk1, this::write);
+        assertEquals(3, written.size());
+    }
+
+    @Test
+    void bulkNotStarved() throws Exception {
+        Dummy bulk = new Dummy(true);
+        lanes.add(bulk, null);
+        SendLanes.Entry last = null;
+        for (int i = 0; i <= SendLanes.CONTROL_BURST; i++) {
+            last = lanes.add(new Dummy(false), null);
+        }
+        lanes.drain(last, this::write);
+        assertSame(bulk, written.get(SendLanes.CONTROL_BURST));
+        assertEquals(SendLanes.CONTROL_BURST + 2, written.size());
+    }
+
+    @Test
+    void failureOnBehalfOfAnotherThread() throws Exception {
+        SendLanes.Entry first = lanes.add(new Dummy(true), null);
+        SendLanes.Entry second = lanes.add(new Dummy(true), null);
+        SendLanes.Writer broken = (cmd, prepared) -> {
+            throw new IOException("broken");
+        };
+        assertThrows(IOException.class, () -> lanes.drain(second, broken));
+        IOException e = assertThrows(IOException.class, () -> lanes.drain(first, this::write));
+        assertEquals("broken", e.getCause().getMessage());
+        assertTrue(written.isEmpty());
+    }
+
+    /**
+     * Calls keep completing while another thread streams through a pipe, whose data still arrives intact.
+     */
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void callsDuringPipeTransfer(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            byte[] data = new byte[8 * 1024 * 1024];
+            new Random(0).nextBytes(data);
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            RemoteOutputStream ros = new RemoteOutputStream(received);
+            Future<Void> transfer = channel.callAsync(new Stream(ros, data));
+            for (int i = 0; i < 20; i++) {
+                assertEquals(Integer.valueOf(i), channel.call(new Echo(i)));
+            }
+            transfer.get(60, TimeUnit.SECONDS);
+            channel.syncLocalIO();
+            assertArrayEquals(data, received.toByteArray());
+        });
+    }
+
+    private void write(Command cmd, CommandTransport.PreparedCommand prepared) {
+        written.add(cmd);
+    }
+
+    private static class Dummy extends Command {
+        private final boolean bulk;
+
+        Dummy(boolean bulk) {
+            super(false);
+            this.bulk = bulk;
+        }
+
+        @Override
+        boolean isBulk() {
+            return bulk;
+        }
+
+        @Override
+        void execute(Channel channel) {}
+
+        @Override
+        public String toString() {
+            return bulk ? "Bulk" : "Control";
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Stream extends CallableBase<Void, IOException> {
+        private final OutputStream out;
+        private final byte[] data;
+
+        Stream(OutputStream out, byte[] data) {
+            this.out = out;
+            this.data = data;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            try (OutputStream o = out) {
+                o.write(data);
+            }
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Echo extends CallableBase<Integer, RuntimeException> {
+        private final int value;
+
+        Echo(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public Integer call() {
+            return value;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
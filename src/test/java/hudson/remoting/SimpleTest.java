@@ -30,8 +30,12 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
 
@@ -93,6 +97,31 @@ class SimpleTest {
         });
     }
 
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void test1AsyncCompletable(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            CompletableFuture<Integer> r = channel.callAsyncCompletable(new Callable1());
+            assertEquals(6, (int) r.thenApply(i -> i + 1).get(30, TimeUnit.SECONDS));
+        });
+    }
+
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void test2AsyncCompletable(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            ExecutorService es = Executors.newSingleThreadExecutor();
+            try {
+                CompletableFuture<Integer> r = channel.callAsyncCompletable(new Callable2(), es);
+                final ExecutionException e =
+                        assertThrows(ExecutionException.class, () -> r.get(30, TimeUnit.SECONDS));
+                assertEquals("foo", e.getCause().getMessage());
+            } finally {
+                es.shutdown();
+            }
+        });
+    }
+
     private static class Callable2 extends CallableBase<Integer, RuntimeException> {
         @Override
         public Integer call() throws RuntimeException {
@@ -154,6 +183,21 @@ class SimpleTest {
         });
     }
 
+    @ParameterizedTest
+    @MethodSource(ChannelRunners.PROVIDER_METHOD)
+    void testCompletableCancellation(ChannelRunner channelRunner) throws Exception {
+        channelRunner.withChannel(channel -> {
+            Cancellable task = new Cancellable();
+            CompletableFuture<Integer> r = channel.callAsyncCompletable(task);
+            assertTrue(r.cancel(true));
+
+            assertThrows(CancellationException.class, r::get, "should not return normally");
+
+            assertTrue(r.isCancelled());
+            assertFalse(task.ran);
+        });
+    }
+
     private static class Cancellable extends CallableBase<Integer, InterruptedException> {
         boolean ran;
 
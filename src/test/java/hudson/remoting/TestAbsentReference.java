@@ -0,0 +1,45 @@
+package hudson.remoting;
+
+/**
+ * Refers to a class that the other side does not have, and looks it up again once its class loader is pinned.
+ * Returns the number of lookups that did not take a round trip: the first, as the other side said the class is
+ * absent when it sent this one, then none right after the pin, and then one again.
+ *
+ * @see DummyClassLoader
+ */
+public class TestAbsentReference extends CallableBase<Object, Exception> {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Object call() throws Exception {
+        ClassLoader cl = getClass().getClassLoader();
+        Channel channel = getChannelOrFail();
+        StringBuilder hits = new StringBuilder();
+        int before = channel.negativeCacheHitCount.get();
+        try {
+            new Gone();
+            return "found the impossible class";
+        } catch (NoClassDefFoundError e) {
+            // expected
+        }
+        hits.append(channel.negativeCacheHitCount.get() - before);
+        channel.pinClassLoader(cl);
+        for (int i = 0; i < 2; i++) {
+            before = channel.negativeCacheHitCount.get();
+            try {
+                cl.loadClass(getClass().getName() + "$Gone");
+                return "found the impossible class";
+            } catch (ClassNotFoundException e) {
+                // expected
+            }
+            hits.append(' ').append(channel.negativeCacheHitCount.get() - before);
+        }
+        return hits.toString();
+    }
+
+    /**
+     * Left out of the {@link DummyClassLoader}.
+     */
+    public static class Gone {}
+}
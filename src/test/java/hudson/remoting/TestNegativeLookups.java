@@ -0,0 +1,30 @@
+package hudson.remoting;
+
+/**
+ * Looks up a class and a resource that the other side does not have, a few times over.
+ *
+ * @see DummyClassLoader
+ */
+public class TestNegativeLookups extends CallableBase<Object, Exception> {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Object call() throws Exception {
+        ClassLoader cl = getClass().getClassLoader();
+        Channel channel = getChannelOrFail();
+        int before = channel.negativeCacheHitCount.get();
+        for (int i = 0; i < 3; i++) {
+            try {
+                cl.loadClass("hudson.remoting.NoSuchClass");
+                return "found the impossible class";
+            } catch (ClassNotFoundException e) {
+                // expected
+            }
+            if (cl.getResource("no-such-resource") != null) {
+                return "found the impossible resource";
+            }
+        }
+        return channel.negativeCacheHitCount.get() - before;
+    }
+}
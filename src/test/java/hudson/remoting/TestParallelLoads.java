@@ -0,0 +1,74 @@
+package hudson.remoting;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the same classes and resources, and a class that the other side does not have, from many threads at once.
+ * Returns {@code null} if every thread got the same classes and resources, and every thread was told that the
+ * missing class is missing, or else what went wrong.
+ *
+ * @see DummyClassLoader
+ */
+public class TestParallelLoads extends CallableBase<Object, Exception> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int THREADS = 16;
+
+    @Override
+    public Object call() throws Exception {
+        ClassLoader cl = getClass().getClassLoader();
+        String[] names = {
+            getClass().getName() + "$A", getClass().getName() + "$B", getClass().getName() + "$C",
+        };
+        String missing = getClass().getName() + "$Missing";
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<List<Object>>> all = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                all.add(es.submit(() -> {
+                    start.await();
+                    List<Object> loaded = new ArrayList<>();
+                    for (String name : names) {
+                        loaded.add(Class.forName(name, false, cl));
+                        loaded.add(Objects.toString(cl.getResource(name.replace('.', '/') + ".class")));
+                    }
+                    try {
+                        cl.loadClass(missing);
+                        loaded.add("found the impossible class");
+                    } catch (ClassNotFoundException e) {
+                        // expected
+                    }
+                    return loaded;
+                }));
+            }
+            start.countDown();
+            List<Object> first = null;
+            for (Future<List<Object>> f : all) {
+                List<Object> loaded = f.get();
+                if (first == null) {
+                    first = loaded;
+                } else if (!first.equals(loaded)) {
+                    return first + " but " + loaded;
+                }
+            }
+            return first.contains("null") ? "missing resource: " + first : null;
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    public static class A {}
+
+    public static class B {}
+
+    public static class C {}
+}
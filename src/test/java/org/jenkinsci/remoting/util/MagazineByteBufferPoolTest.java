@@ -0,0 +1,136 @@
+package org.jenkinsci.remoting.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+class MagazineByteBufferPoolTest {
+
+    @Test
+    void reusesReleasedBuffer() {
+        MagazineByteBufferPool pool = new MagazineByteBufferPool(1024, 4, 64);
+        ByteBuffer buffer = pool.acquire(100);
+        assertThat(buffer.capacity(), is(1024));
+        assertThat(buffer.limit(), is(100));
+        pool.release(buffer);
+        assertThat(pool.getRetainedBytes(), is(1024L));
+        ByteBuffer again = pool.acquire(1000);
+        assertThat(again, sameInstance(buffer));
+        assertThat(again.position(), is(0));
+        assertThat(again.limit(), is(1000));
+        assertThat(pool.getHits(), is(1L));
+        assertThat(pool.getMisses(), is(1L));
+        assertThat(pool.getRetainedBytes(), is(0L));
+        assertThat(pool.getRetainedBytesHighWaterMark(), is(1024L));
+    }
+
+    @Test
+    void sizeClasses() {
+        MagazineByteBufferPool pool = new MagazineByteBufferPool(1024, 4, 64);
+        assertThat(pool.acquire(1025).capacity(), is(2048));
+        assertThat(pool.acquire(2048).capacity(), is(2048));
+        assertThat(pool.acquire(8192).capacity(), is(8192));
+        // beyond the largest class
+        assertThat(pool.acquire(8193).capacity(), is(8193));
+
+        ByteBuffer big = pool.acquire(4000);
+        pool.release(big);
+        assertThat(pool.acquire(1024), not(sameInstance(big)));
+        assertThat(pool.acquire(3000), sameInstance(big));
+    }
+
+    @Test
+    void ignoresForeignBuffers() {
+        MagazineByteBufferPool pool = new MagazineByteBufferPool(1024, 4, 64);
+        pool.release(ByteBuffer.allocate(1024));
+        pool.release(ByteBuffer.allocateDirect(1023));
+        pool.release(ByteBuffer.allocateDirect(1024).asReadOnlyBuffer());
+        assertThat(pool.getRetainedBytes(), is(0L));
+    }
+
+    @Test
+    void sharesBuffersAcrossThreads() throws Exception {
+        MagazineByteBufferPool pool = new MagazineByteBufferPool(1024, 1, 64);
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 2 * MagazineByteBufferPool.MAGAZINE_SIZE; i++) {
+            buffers.add(pool.acquire(1024));
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // a thread that releases more than a magazine hands the full ones over to the depot
+            executor.submit(() -> buffers.forEach(pool::release)).get();
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(pool.acquire(1024), sameInstance(buffers.get(MagazineByteBufferPool.MAGAZINE_SIZE - 1)));
+    }
+
+    @Test
+    void boundedAcrossThreads() throws Exception {
+        MagazineByteBufferPool pool = new MagazineByteBufferPool(1024, 1, 10);
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            buffers.add(pool.acquire(1024));
+        }
+        // each thread keeps what it releases in its own magazine, yet no more than the pool size is kept in all
+        for (ByteBuffer buffer : buffers) {
+            Thread t = new Thread(() -> pool.release(buffer));
+            t.start();
+            t.join();
+        }
+        assertThat(pool.getRetainedBytes(), is(10 * 1024L));
+    }
+
+    @Test
+    void magazinesOfEndedThreadsComeBack() throws Exception {
+        MagazineByteBufferPool pool = new MagazineByteBufferPool(1024, 1, 64);
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            buffers.add(pool.acquire(1024));
+        }
+        Thread t = new Thread(() -> buffers.forEach(pool::release));
+        t.start();
+        t.join();
+        t = null;
+        assertThat(pool.getRetainedBytes(), is(3 * 1024L));
+        // once the thread is collected, another thread can borrow what was left in its magazine
+        AtomicReference<ByteBuffer> borrowed = new AtomicReference<>();
+        for (int i = 0; i < 100 && !buffers.contains(borrowed.get()); i++) {
+            System.gc();
+            Thread.sleep(10);
+            Thread borrower = new Thread(() -> borrowed.set(pool.acquire(1024)));
+            borrower.start();
+            borrower.join();
+        }
+        assertThat(buffers.contains(borrowed.get()), is(true));
+    }
+
+    @Test
+    void virtualThreadsShareLooseBuffers() throws Exception {
+        assumeTrue(VirtualThreads.isSupported());
+        MagazineByteBufferPool pool = new MagazineByteBufferPool(1024, 1, 64);
+        ByteBuffer buffer = pool.acquire(1024);
+        ThreadFactory factory = VirtualThreads.newThreadFactory();
+        Thread t = factory.newThread(() -> pool.release(buffer));
+        t.start();
+        t.join();
+        assertThat(pool.getRetainedBytes(), is(1024L));
+        AtomicReference<ByteBuffer> borrowed = new AtomicReference<>();
+        t = factory.newThread(() -> borrowed.set(pool.acquire(1024)));
+        t.start();
+        t.join();
+        assertThat(borrowed.get(), sameInstance(buffer));
+        assertThat(pool.getRetainedBytes(), is(0L));
+    }
+}
@@ -0,0 +1,101 @@
+package org.jenkinsci.remoting.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import hudson.remoting.CallableBase;
+import hudson.remoting.Channel;
+import hudson.remoting.Future;
+import hudson.remoting.InProcessRunner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class VirtualThreadsTest {
+
+    private static final int CALLS = 500;
+
+    private static final CountDownLatch started = new CountDownLatch(CALLS);
+    private static final CountDownLatch release = new CountDownLatch(1);
+
+    @Test
+    void unsupported() {
+        assumeFalse(VirtualThreads.isSupported());
+        assertThrows(UnsupportedOperationException.class, VirtualThreads::newThreadFactory);
+        assertThrows(UnsupportedOperationException.class, () -> VirtualThreads.newExecutorService("test"));
+        boolean enabled = VirtualThreads.ENABLED;
+        VirtualThreads.ENABLED = true;
+        try {
+            assertFalse(VirtualThreads.isEnabled());
+        } finally {
+            VirtualThreads.ENABLED = enabled;
+        }
+    }
+
+    /**
+     * Blocks many requests at once on the other side, each of which then calls back to this side.
+     */
+    @Test
+    void manyBlockedCalls() throws Exception {
+        assumeTrue(VirtualThreads.isSupported());
+        InProcessRunner runner = new InProcessRunner() {
+            @Override
+            protected ExecutorService createExecutor() {
+                return VirtualThreads.newExecutorService("virtual");
+            }
+        };
+        Channel channel = runner.start();
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < CALLS; i++) {
+                futures.add(channel.callAsync(new Block(i)));
+            }
+            assertTrue(started.await(30, TimeUnit.SECONDS), "all requests should be running at once");
+            release.countDown();
+            for (int i = 0; i < CALLS; i++) {
+                assertEquals(Integer.valueOf(i), futures.get(i).get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            runner.stop(channel);
+        }
+    }
+
+    private static class Block extends CallableBase<Integer, Exception> {
+        private final int value;
+
+        Block(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            started.countDown();
+            release.await();
+            return Channel.currentOrFail().call(new Echo(value));
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Echo extends CallableBase<Integer, RuntimeException> {
+        private final int value;
+
+        Echo(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public Integer call() {
+            return value;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}